@@ -0,0 +1,255 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.ezbroadcast.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.base.thrift.Permission;
+import ezbake.base.thrift.Visibility;
+import ezbake.security.client.EzSecurityTokenWrapper;
+import ezbake.security.client.EzbakeSecurityClient;
+import ezbake.security.permissions.CompiledAuthorizations;
+import ezbake.security.permissions.PermissionUtils;
+import ezbake.security.permissions.VisibilityCanonicalizer;
+import org.apache.accumulo.core.util.BadArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the application token used to check whether received messages may be read, and caches the permissions
+ * granted by that token for each distinct message visibility.
+ *
+ * The token is refreshed shortly before it expires. While one thread refreshes it, others keep using the current
+ * token, so receiving never waits on the security service unless the token has actually expired. Permissions are
+ * cached by the {@link VisibilityCanonicalizer#fingerprint(Visibility) fingerprint} of the message visibility, and an
+ * entry is only used if its canonical visibility matches exactly. When a refreshed token carries different
+ * authorizations the cached permissions are discarded. The token's authorizations are compiled once when it is
+ * fetched, so evaluating an uncached visibility does not rebuild them.
+ */
+public class AuthorizationCache {
+    private static final Logger log = LoggerFactory.getLogger(AuthorizationCache.class);
+
+    /**
+     * Maximum number of visibilities whose permissions are cached.
+     */
+    public static final String CACHE_SIZE = "broadcaster.auth.cache.size";
+
+    /**
+     * How long in milliseconds before the application token expires it is refreshed.
+     */
+    public static final String REFRESH_AHEAD_MS = "broadcaster.auth.token.refresh.ahead.ms";
+
+    private static final long DEFAULT_CACHE_SIZE = 10000;
+    private static final long DEFAULT_REFRESH_AHEAD_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final long cacheSize;
+    private final long refreshAheadMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile TokenState state;
+
+    AuthorizationCache(Properties props) {
+        cacheSize = Long.parseLong(props.getProperty(CACHE_SIZE, Long.toString(DEFAULT_CACHE_SIZE)));
+        refreshAheadMillis = Long.parseLong(
+                props.getProperty(REFRESH_AHEAD_MS, Long.toString(DEFAULT_REFRESH_AHEAD_MS)));
+    }
+
+    /**
+     * Get the permissions the application token grants for a visibility.
+     *
+     * @param security the client to fetch the application token from
+     * @param visibility the message visibility
+     * @return the permissions granted
+     * @throws BadArgumentException if the visibility is not valid
+     */
+    Set<Permission> getPermissions(EzbakeSecurityClient security, Visibility visibility)
+            throws EzSecurityTokenException {
+        TokenState current = getState(security);
+        Visibility canonical = VisibilityCanonicalizer.canonicalize(visibility);
+        long fingerprint = VisibilityCanonicalizer.fingerprint(canonical);
+
+        Decision decision = current.decisions.getIfPresent(fingerprint);
+        if (decision == null || !decision.matches(canonical)) {
+            Set<Permission> permissions = PermissionUtils.getPermissions(
+                    current.compiled, visibility, true, PermissionUtils.ALL_PERMS);
+            decision = new Decision(canonical, permissions);
+            current.decisions.put(fingerprint, decision);
+        }
+        return decision.permissions;
+    }
+
+    /**
+     * Get the permissions the application token grants for a batch of visibilities. Visibilities that are not cached
+     * are evaluated together, so identical visibilities are only checked once.
+     *
+     * @param security the client to fetch the application token from
+     * @param visibilities the message visibilities
+     * @return the permissions for each visibility, null for invalid visibilities
+     */
+    List<Set<Permission>> getPermissions(EzbakeSecurityClient security, List<Visibility> visibilities)
+            throws EzSecurityTokenException {
+        TokenState current = getState(security);
+        List<Set<Permission>> permissions = Lists.newArrayListWithCapacity(visibilities.size());
+        List<Integer> missing = Lists.newArrayList();
+        List<Visibility> missingCanonical = Lists.newArrayList();
+        List<Long> missingFingerprints = Lists.newArrayList();
+
+        for (int i = 0; i < visibilities.size(); i++) {
+            Visibility canonical;
+            long fingerprint;
+            try {
+                canonical = VisibilityCanonicalizer.canonicalize(visibilities.get(i));
+                fingerprint = VisibilityCanonicalizer.fingerprint(canonical);
+            } catch (BadArgumentException e) {
+                permissions.add(null);
+                continue;
+            }
+
+            Decision decision = current.decisions.getIfPresent(fingerprint);
+            if (decision != null && decision.matches(canonical)) {
+                permissions.add(decision.permissions);
+            } else {
+                permissions.add(null);
+                missing.add(i);
+                missingCanonical.add(canonical);
+                missingFingerprints.add(fingerprint);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            List<Visibility> toEvaluate = Lists.newArrayListWithCapacity(missing.size());
+            for (int index : missing) {
+                toEvaluate.add(visibilities.get(index));
+            }
+            List<Set<Permission>> evaluated;
+            try {
+                evaluated = PermissionUtils.getPermissions(
+                        current.compiled, toEvaluate, true, PermissionUtils.ALL_PERMS, null);
+            } catch (BadArgumentException e) {
+                // Every visibility here could be canonicalized, so this should not happen
+                log.error("Could not evaluate permissions for a batch of valid visibilities", e);
+                return permissions;
+            }
+            for (int i = 0; i < missing.size(); i++) {
+                permissions.set(missing.get(i), evaluated.get(i));
+                current.decisions.put(missingFingerprints.get(i), new Decision(missingCanonical.get(i), evaluated.get(i)));
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Forget the application token and all cached permissions.
+     */
+    void invalidate() {
+        state = null;
+    }
+
+    private TokenState getState(EzbakeSecurityClient security) throws EzSecurityTokenException {
+        TokenState current = state;
+        long now = System.currentTimeMillis();
+        if (current != null && now < current.refreshAt) {
+            return current;
+        }
+
+        if (current != null && now < current.expiresAt) {
+            // Refresh ahead of expiry. Only one thread refreshes, the others keep using the current token.
+            if (!refreshing.compareAndSet(false, true)) {
+                return current;
+            }
+            try {
+                return refresh(security, current);
+            } catch (EzSecurityTokenException e) {
+                log.warn("Could not refresh application token, using the current token until it expires", e);
+                return current;
+            } finally {
+                refreshing.set(false);
+            }
+        }
+
+        synchronized (this) {
+            current = state;
+            if (current == null || System.currentTimeMillis() >= current.expiresAt) {
+                current = refresh(security, current);
+            }
+            return current;
+        }
+    }
+
+    private TokenState refresh(EzbakeSecurityClient security, TokenState previous) throws EzSecurityTokenException {
+        // The client caches the token until it expires, so later refreshes must ask the security service for a new one
+        EzSecurityTokenWrapper token = previous == null ? security.fetchAppToken() : security.fetchAppToken(true);
+        Authorizations authorizations = token.getAuthorizations();
+
+        Cache<Long, Decision> decisions;
+        CompiledAuthorizations compiled;
+        if (previous != null && previous.authorizations.equals(authorizations)) {
+            decisions = previous.decisions;
+            compiled = previous.compiled;
+        } else {
+            compiled = CompiledAuthorizations.of(authorizations);
+            if (previous != null) {
+                log.info("Application authorizations changed, discarding cached permissions");
+            }
+            decisions = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        }
+
+        long now = System.currentTimeMillis();
+        long expiresAt = token.isSetValidity() ? token.getValidity().getNotAfter() : now + refreshAheadMillis;
+        long refreshAt = expiresAt - Math.min(refreshAheadMillis, Math.max(expiresAt - now, 0) / 2);
+        TokenState refreshed = new TokenState(authorizations, compiled, expiresAt, refreshAt, decisions);
+        state = refreshed;
+        return refreshed;
+    }
+
+    private static class TokenState {
+        private final Authorizations authorizations;
+        private final CompiledAuthorizations compiled;
+        private final long expiresAt;
+        private final long refreshAt;
+        private final Cache<Long, Decision> decisions;
+
+        TokenState(Authorizations authorizations, CompiledAuthorizations compiled, long expiresAt, long refreshAt,
+                Cache<Long, Decision> decisions) {
+            this.authorizations = authorizations;
+            this.compiled = compiled;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+            this.decisions = decisions;
+        }
+    }
+
+    private static class Decision {
+        private final Visibility visibility;
+        private final Set<Permission> permissions;
+
+        Decision(Visibility visibility, Set<Permission> permissions) {
+            this.visibility = visibility;
+            this.permissions = permissions;
+        }
+
+        boolean matches(Visibility canonical) {
+            return visibility == null ? canonical == null : visibility.equals(canonical);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.ezbroadcast.core;
+
+import ezbake.base.thrift.Visibility;
+
+/**
+ * A payload and its visibility, waiting to be broadcast as part of a batch.
+ */
+public class BroadcastMessage {
+    private Visibility visibility;
+    private byte[] payload;
+
+    public BroadcastMessage(Visibility visibility, byte[] payload) {
+        this.visibility = visibility;
+        this.payload = payload;
+    }
+
+    public Visibility getVisibility() {
+        return visibility;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
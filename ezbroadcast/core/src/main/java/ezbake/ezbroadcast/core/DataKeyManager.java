@@ -0,0 +1,313 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.ezbroadcast.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import ezbake.crypto.PKeyCryptoException;
+import ezbake.crypto.RSAKeyCrypto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the symmetric data keys used to encrypt broadcast messages.
+ *
+ * Rather than generating and RSA-wrapping a new key for every message, a sender keeps using the same data key for a
+ * topic until it has encrypted a configured number of messages or reached a configured age. Each data key has a random
+ * ID and is sent with every message in a key envelope:
+ *
+ * <pre>
+ *     magic (4 bytes) | version (1 byte) | key ID (16 bytes) | data key wrapped with the topic's RSA key
+ * </pre>
+ *
+ * The version selects how message content is encrypted (see {@link MessageCipher}): version 1 is AES/ECB, as used by
+ * older senders, and version 2 is AES-GCM, which new keys use whenever it is available. Envelopes with any other
+ * version are rejected rather than guessed at.
+ *
+ * Receivers cache unwrapped data keys by envelope in a bounded cache, so only the first message encrypted with a data
+ * key pays for the RSA private key operation. Messages from older senders carry the bare wrapped key, which is still
+ * accepted and is cached the same way.
+ *
+ * Receivers from before key envelopes were introduced can only read the bare wrapped key with AES/ECB content, and
+ * fail on anything else. When upgrading, upgrade receivers before senders, or set {@link #LEGACY_FORMAT} on senders
+ * until every receiver of their topics has been upgraded. Data keys are still reused and rotated in the legacy format.
+ *
+ * Rotation and caching are configured with the properties below. Each can be overridden for a single topic by
+ * appending "." and the topic name to the property name.
+ */
+public class DataKeyManager {
+    private static final Logger log = LoggerFactory.getLogger(DataKeyManager.class);
+
+    /**
+     * Number of messages a data key is used for before a new one is generated.
+     */
+    public static final String ROTATION_MESSAGES = "broadcaster.key.rotation.messages";
+
+    /**
+     * Time in milliseconds a data key is used for before a new one is generated.
+     */
+    public static final String ROTATION_MS = "broadcaster.key.rotation.ms";
+
+    /**
+     * Maximum number of unwrapped data keys a receiver keeps for a topic.
+     */
+    public static final String CACHE_SIZE = "broadcaster.key.cache.size";
+
+    /**
+     * Time in milliseconds after which an unused unwrapped data key is dropped by a receiver.
+     */
+    public static final String CACHE_EXPIRY_MS = "broadcaster.key.cache.expiry.ms";
+
+    /**
+     * "true" to send the bare wrapped data key and AES/ECB content that receivers without key envelope support
+     * expect, instead of a key envelope. Defaults to false.
+     */
+    public static final String LEGACY_FORMAT = "broadcaster.key.legacy.format";
+
+    private static final long DEFAULT_ROTATION_MESSAGES = 100000;
+    private static final long DEFAULT_ROTATION_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long DEFAULT_CACHE_SIZE = 1000;
+    private static final long DEFAULT_CACHE_EXPIRY_MS = TimeUnit.HOURS.toMillis(2);
+
+    static final String ALGO = "AES";
+    private static final int KEY_BITS = 256;
+
+    private static final byte[] MAGIC = {'E', 'Z', 'D', 'K'};
+    static final byte VERSION_1 = 1;
+    static final byte VERSION_2 = 2;
+    private static final int KEY_ID_LENGTH = 16;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + KEY_ID_LENGTH;
+
+    private final Properties props;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<String, TopicSender> senders = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Cache<ByteBuffer, SecretKey>> receivers = new ConcurrentHashMap<>();
+
+    public DataKeyManager(Properties props) {
+        this.props = props;
+    }
+
+    /**
+     * Get the data key to encrypt the next messages on a topic with, generating and wrapping a new one if the current
+     * key has been used for too many messages or for too long.
+     *
+     * @param topic the topic the messages are broadcast on
+     * @param crypto the topic's RSA key
+     * @param messages the number of messages that will be encrypted with the key
+     * @return the data key and the envelope to send with each message
+     */
+    public DataKey getEncryptionKey(String topic, RSAKeyCrypto crypto, int messages) throws PKeyCryptoException {
+        TopicSender sender = senders.get(topic);
+        if (sender == null) {
+            TopicSender newSender = new TopicSender(
+                    getLong(ROTATION_MESSAGES, topic, DEFAULT_ROTATION_MESSAGES),
+                    getLong(ROTATION_MS, topic, DEFAULT_ROTATION_MS),
+                    Boolean.parseBoolean(getProperty(LEGACY_FORMAT, topic)));
+            sender = senders.putIfAbsent(topic, newSender);
+            if (sender == null) {
+                sender = newSender;
+            }
+        }
+        return sender.next(crypto, messages);
+    }
+
+    /**
+     * Get the data key a message was encrypted with from the message's key envelope.
+     *
+     * @param topic the topic the message was received on
+     * @param crypto the topic's RSA private key
+     * @param envelope the key field of the message
+     * @return the data key
+     */
+    public SecretKey getDecryptionKey(String topic, RSAKeyCrypto crypto, byte[] envelope) throws PKeyCryptoException {
+        Cache<ByteBuffer, SecretKey> keys = receivers.get(topic);
+        if (keys == null) {
+            Cache<ByteBuffer, SecretKey> newKeys = CacheBuilder.newBuilder()
+                    .maximumSize(getLong(CACHE_SIZE, topic, DEFAULT_CACHE_SIZE))
+                    .expireAfterAccess(getLong(CACHE_EXPIRY_MS, topic, DEFAULT_CACHE_EXPIRY_MS), TimeUnit.MILLISECONDS)
+                    .build();
+            keys = receivers.putIfAbsent(topic, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+
+        ByteBuffer cacheKey = ByteBuffer.wrap(envelope);
+        SecretKey key = keys.getIfPresent(cacheKey);
+        if (key == null) {
+            byte[] wrappedKey = isEnvelope(envelope)
+                    ? Arrays.copyOfRange(envelope, HEADER_LENGTH, envelope.length) : envelope;
+            key = new SecretKeySpec(crypto.decrypt(wrappedKey), ALGO);
+
+            // Copy the envelope so later changes to the message can't change the cache key
+            keys.put(ByteBuffer.wrap(envelope.clone()), key);
+        }
+        return key;
+    }
+
+    /**
+     * Get the version of a key envelope.
+     *
+     * @param envelope the key field of a message
+     * @return the envelope version, or 0 if the message carries a bare wrapped key
+     * @throws IllegalArgumentException if the envelope has a version this broadcaster does not support
+     */
+    public static int getVersion(byte[] envelope) {
+        if (!isEnvelope(envelope)) {
+            return 0;
+        }
+        byte version = envelope[MAGIC.length];
+        if (version != VERSION_1 && version != VERSION_2) {
+            throw new IllegalArgumentException("Unsupported key envelope version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Forget the keys for a topic, for example when unsubscribing from it.
+     *
+     * @param topic the topic to forget
+     */
+    public void removeTopic(String topic) {
+        senders.remove(topic);
+        receivers.remove(topic);
+    }
+
+    private static boolean isEnvelope(byte[] key) {
+        if (key.length <= HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (key[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long getLong(String property, String topic, long defaultValue) {
+        String value = getProperty(property, topic);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private String getProperty(String property, String topic) {
+        return props.getProperty(property + "." + topic, props.getProperty(property));
+    }
+
+    /**
+     * A data key and the envelope that identifies it to receivers.
+     */
+    public static class DataKey {
+        private final SecretKey key;
+        private final byte[] envelope;
+        private final int noncePrefix;
+        private final AtomicLong nonceCounter = new AtomicLong();
+
+        DataKey(SecretKey key, byte[] envelope, int noncePrefix) {
+            this.key = key;
+            this.envelope = envelope;
+            this.noncePrefix = noncePrefix;
+        }
+
+        public SecretKey getKey() {
+            return key;
+        }
+
+        public byte[] getEnvelope() {
+            return envelope;
+        }
+
+        public int getVersion() {
+            return DataKeyManager.getVersion(envelope);
+        }
+
+        /**
+         * Get a nonce that has not been used with this key before: a random prefix chosen when the key was generated
+         * followed by a counter.
+         */
+        byte[] nextNonce() {
+            return ByteBuffer.allocate(MessageCipher.NONCE_LENGTH)
+                    .putInt(noncePrefix).putLong(nonceCounter.getAndIncrement()).array();
+        }
+    }
+
+    /**
+     * The current data key for one topic and how much it has been used.
+     */
+    private class TopicSender {
+        private final long maxMessages;
+        private final long maxAgeNanos;
+        private final boolean legacyFormat;
+        private DataKey current;
+        private long used;
+        private long created;
+
+        TopicSender(long maxMessages, long maxAgeMillis, boolean legacyFormat) {
+            this.maxMessages = maxMessages;
+            this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+            this.legacyFormat = legacyFormat;
+        }
+
+        synchronized DataKey next(RSAKeyCrypto crypto, int messages) throws PKeyCryptoException {
+            if (current == null || used + messages > maxMessages || System.nanoTime() - created >= maxAgeNanos) {
+                current = generate(crypto);
+                used = 0;
+                created = System.nanoTime();
+            }
+            used += messages;
+            return current;
+        }
+
+        private DataKey generate(RSAKeyCrypto crypto) throws PKeyCryptoException {
+            SecretKey key;
+            try {
+                KeyGenerator gen = KeyGenerator.getInstance(ALGO);
+                gen.init(KEY_BITS, random);
+                key = gen.generateKey();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Could not generate data key", e);
+            }
+
+            byte[] wrappedKey = crypto.encrypt(key.getEncoded());
+            if (legacyFormat) {
+                // Old receivers unwrap the whole key field and decrypt with AES/ECB
+                log.debug("Generated new legacy data key");
+                return new DataKey(key, wrappedKey, 0);
+            }
+
+            byte[] keyId = new byte[KEY_ID_LENGTH];
+            random.nextBytes(keyId);
+
+            ByteBuffer envelope = ByteBuffer.allocate(HEADER_LENGTH + wrappedKey.length);
+            byte version = MessageCipher.isGcmAvailable() ? VERSION_2 : VERSION_1;
+            envelope.put(MAGIC).put(version).put(keyId).put(wrappedKey);
+            log.debug("Generated new version {} data key", version);
+            return new DataKey(key, envelope.array(), random.nextInt());
+        }
+    }
+}
@@ -17,6 +17,7 @@ package ezbake.ezbroadcast.core;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import ezbake.base.thrift.EzSecurityToken;
@@ -25,11 +26,9 @@ import ezbake.base.thrift.Permission;
 import ezbake.base.thrift.Visibility;
 import ezbake.common.openshift.OpenShiftUtil;
 import ezbake.ezbroadcast.core.thrift.SecureMessage;
-import ezbake.security.client.EzSecurityTokenWrapper;
 import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.crypto.PKeyCryptoException;
 import ezbake.crypto.RSAKeyCrypto;
-import ezbake.security.permissions.PermissionUtils;
 import ezbake.thrift.ThriftUtils;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.accumulo.core.security.ColumnVisibility;
@@ -37,38 +36,127 @@ import org.apache.accumulo.core.security.VisibilityEvaluator;
 import org.apache.accumulo.core.security.VisibilityParseException;
 import org.apache.accumulo.core.util.BadArgumentException;
 import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.*;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public abstract class EzBroadcaster implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(EzBroadcaster.class);
+
+    /**
+     * How long closing waits for the listener threads to stop fetching, in milliseconds.
+     */
+    private static final long FETCHER_STOP_MS = TimeUnit.SECONDS.toMillis(5);
     
     public static final String BROADCASTER_CLASS = "broadcaster.class";
     public static final String PRODUCTION_MODE = "broadcaster.security.production";
 
-    private static final String ALGO = "AES";
-
     protected EzbakeSecurityClient security;
     protected boolean isProduction = false;
     private ConcurrentHashMap<String, RSAKeyCrypto> topicKeys = new ConcurrentHashMap<>();
+    private DataKeyManager dataKeys = new DataKeyManager(new Properties());
+    private AuthorizationCache authorizations = new AuthorizationCache(new Properties());
+    private Properties props = new Properties();
     
     public abstract void startListening(Receiver receiver);
+
+    /**
+     * Create the pipeline that decrypts and delivers messages fetched by {@link #startListening(Receiver)}, configured
+     * from the properties the broadcaster was created with.
+     *
+     * @param receiver the receiver to deliver messages to
+     * @return a new listener pipeline, which the caller must close
+     */
+    protected ListenerPipeline createListenerPipeline(Receiver receiver) {
+        return new ListenerPipeline(this, receiver, props);
+    }
+
+    /**
+     * Stop the threads fetching messages for {@link #startListening(Receiver)}, then wait for the pipeline to deliver
+     * the messages they already fetched. Implementations call this when closing, before they commit their position on
+     * the message bus or disconnect from it, so that a clean shutdown does not lose fetched messages.
+     *
+     * @param fetchers the fetching threads, may be null if the broadcaster never listened
+     * @param pipeline the listener pipeline, may be null if the broadcaster never listened
+     */
+    protected static void stopListening(ExecutorService fetchers, ListenerPipeline pipeline) {
+        if (fetchers != null) {
+            fetchers.shutdownNow();
+            try {
+                // A fetcher still running when the pipeline closes can't submit what it fetched
+                if (!fetchers.awaitTermination(FETCHER_STOP_MS, TimeUnit.MILLISECONDS)) {
+                    log.warn("Listener threads did not stop within {} ms", FETCHER_STOP_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
     
     protected abstract void broadcastImpl(String topic, byte[] payload) throws IOException;
 
+    /**
+     * This method sends a batch of serialized messages onto the given topic, in order. The default implementation
+     * calls {@link #broadcastImpl(String, byte[])} for each message, so implementations that can send several messages
+     * at once should override it.
+     *
+     * @param topic the topic to broadcast onto
+     * @param payloads the serialized messages to send
+     */
+    protected void broadcastImpl(String topic, List<byte[]> payloads) throws IOException {
+        for (byte[] payload : payloads) {
+            broadcastImpl(topic, payload);
+        }
+    }
+
     protected abstract Optional<byte[]> receiveImpl(String topic) throws IOException;
 
+    /**
+     * This method polls the given topic for up to maxMessages new messages, waiting no longer than the given timeout
+     * for them to arrive. The default implementation calls {@link #receiveImpl(String)} until it has enough messages
+     * or no message is returned, so implementations that can fetch several messages at once should override it. The
+     * timeout is only checked between messages, so each call to {@link #receiveImpl(String)} may still wait for as
+     * long as the implementation's own poll timeout. Implementations whose single receive blocks should override this
+     * method to honor the timeout.
+     *
+     * @param topic the topic to poll
+     * @param maxMessages the maximum number of messages to return
+     * @param timeoutMillis the maximum time to wait for messages, in milliseconds
+     * @return the serialized messages received, in order. The list is empty if no message was found
+     */
+    protected List<byte[]> receiveImpl(String topic, int maxMessages, long timeoutMillis) throws IOException {
+        List<byte[]> result = Lists.newArrayListWithCapacity(Math.min(maxMessages, 1024));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (result.size() < maxMessages) {
+            Optional<byte[]> message = receiveImpl(topic);
+            if (!message.isPresent()) {
+                break;
+            }
+            result.add(message.get());
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
     /**
      * This method retrieves any necessary configuration values for the operation of
      * the EzBroadcaster implementation and initializes all underlying portions of
@@ -124,6 +212,7 @@ public abstract class EzBroadcaster implements Closeable {
      */
     public void unsubscribeFromTopic(String topic) {
         topicKeys.remove(topic);
+        dataKeys.removeTopic(topic);
         unsubscribe(topic);
     }
     
@@ -144,6 +233,7 @@ public abstract class EzBroadcaster implements Closeable {
      */
     public void unregisterFromTopic(String topic) {
         topicKeys.remove(topic);
+        dataKeys.removeTopic(topic);
         unregister(topic);
     }
     
@@ -155,35 +245,64 @@ public abstract class EzBroadcaster implements Closeable {
      * @param payload the payload of the message
      */
     public void broadcast(String topic, Visibility visibility, byte[] payload) throws IOException {
-        byte[] payloadToSend = payload;
-        SecureMessage message = new SecureMessage();
-        message.setVisibility(visibility);
+        broadcast(topic, Collections.singletonList(new BroadcastMessage(visibility, payload)));
+    }
+
+    /**
+     * This method broadcasts a batch of payloads onto the given topic, in order. In production mode the whole batch
+     * is encrypted with the topic's current data key (see {@link DataKeyManager}), and the messages are handed to the
+     * underlying message bus together.
+     *
+     * @param topic the topic to broadcast onto
+     * @param messages the payloads to send and their visibilities
+     */
+    public void broadcast(String topic, List<BroadcastMessage> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        DataKeyManager.DataKey dataKey = null;
         if (isProduction) {
             try {
-                // Generate a new symmetric key and encrypt the message
-                Cipher cipher = Cipher.getInstance(ALGO);
-                KeyGenerator gen = KeyGenerator.getInstance(ALGO);
-                gen.init(256);
-                SecretKey key = gen.generateKey();
-                cipher.init(Cipher.ENCRYPT_MODE, key);
-                payloadToSend = cipher.doFinal(payload);
-
-                // Get topic crypto object, encrypt the key and embed it into the message
+                // Get the topic's current data key, which is rotated after enough messages or time
                 RSAKeyCrypto crypto = topicKeys.get(topic);
-                message.setKey(crypto.encrypt(key.getEncoded()));
+                dataKey = dataKeys.getEncryptionKey(topic, crypto, messages.size());
             } catch (Exception e) {
                 log.error("Could not encrypt message for topic [{}].", topic, e);
                 throw new RuntimeException(e);
             }
         }
-        message.setContent(payloadToSend);
-        byte[] serializedMessage;
-        try {
-            serializedMessage = ThriftUtils.serialize(message);
-        } catch (TException e) {
-            throw new IOException("Could not serialize message", e);
+
+        TSerializer serializer = new TSerializer();
+        List<byte[]> serializedMessages = Lists.newArrayListWithCapacity(messages.size());
+        for (BroadcastMessage toSend : messages) {
+            SecureMessage message = new SecureMessage();
+            message.setVisibility(toSend.getVisibility());
+            if (dataKey != null) {
+                try {
+                    byte[] associatedData = dataKey.getVersion() == DataKeyManager.VERSION_2
+                            ? MessageCipher.getAssociatedData(toSend.getVisibility()) : null;
+                    message.setContent(MessageCipher.encrypt(dataKey, associatedData, toSend.getPayload()));
+                } catch (TException e) {
+                    throw new IOException("Could not serialize message visibility", e);
+                } catch (BadArgumentException e) {
+                    throw new IOException("Message visibility is not valid", e);
+                } catch (GeneralSecurityException e) {
+                    log.error("Could not encrypt message for topic [{}].", topic, e);
+                    throw new RuntimeException(e);
+                }
+                message.setKey(dataKey.getEnvelope());
+            } else {
+                message.setContent(toSend.getPayload());
+            }
+
+            try {
+                serializedMessages.add(serializer.serialize(message));
+            } catch (TException e) {
+                throw new IOException("Could not serialize message", e);
+            }
         }
-        broadcastImpl(topic, serializedMessage);
+        broadcastImpl(topic, serializedMessages);
     }
     
     /**
@@ -201,6 +320,29 @@ public abstract class EzBroadcaster implements Closeable {
         return payloadToReturn;
     }
 
+    /**
+     * This method polls the given topic for up to maxMessages new messages. Messages are decrypted and checked against
+     * the application's authorizations as a batch, and messages the application may not read are dropped.
+     *
+     * @param topic the topic to poll
+     * @param maxMessages the maximum number of messages to return
+     * @param timeout the maximum time to wait for messages
+     * @param unit the unit of the timeout
+     * @return the messages received, in order. The list is empty if no readable message was found
+     */
+    public List<SecureMessage> receive(String topic, int maxMessages, long timeout, TimeUnit unit) throws IOException {
+        Preconditions.checkArgument(maxMessages > 0, "maxMessages must be positive");
+        List<byte[]> serializedMessages = receiveImpl(topic, maxMessages, unit.toMillis(timeout));
+        List<SecureMessage> messages = Lists.newArrayListWithCapacity(serializedMessages.size());
+        for (byte[] serializedMessage : serializedMessages) {
+            messages.add(extractMessage(Optional.of(serializedMessage)).get());
+        }
+        if (isProduction && !messages.isEmpty()) {
+            messages = decrypt(topic, messages);
+        }
+        return messages;
+    }
+
     protected Optional<SecureMessage> extractMessage(Optional<byte[]> serializedMessage) throws IOException {
         try {
             Optional<SecureMessage> result = Optional.absent();
@@ -214,54 +356,146 @@ public abstract class EzBroadcaster implements Closeable {
         }
     }
 
+    /**
+     * Deserialize a message fetched from the message bus and, in production mode, decrypt it.
+     *
+     * @param topic the topic the message was received on
+     * @param payload the serialized message
+     * @return the message, or absent if it could not be read by this application
+     */
+    protected Optional<SecureMessage> decode(String topic, byte[] payload) throws IOException {
+        Optional<SecureMessage> message = extractMessage(Optional.of(payload));
+        if (isProduction && message.isPresent()) {
+            message = decrypt(topic, message.get());
+        }
+        return message;
+    }
+
     protected Optional<SecureMessage> decrypt(String topic, SecureMessage message) throws IOException {
         RSAKeyCrypto crypto = topicKeys.get(topic);
         Optional<SecureMessage> decryptedPayload = Optional.absent();
         try {
             if (message.isSetKey()) {
-                if (crypto != null && crypto.hasPrivate()) {
-                    Visibility visibility = message.getVisibility();
-                    EzSecurityTokenWrapper token = security.fetchAppToken();
-                    if (PermissionUtils.getPermissions(token.getAuthorizations(), visibility, true).contains(Permission.READ)) {
-                        // Decrypt the symmetric key
-                        byte[] symmetricKey = crypto.decrypt(message.getKey());
-
-                        // Use the symmetric key to decrypt the message
-                        SecretKey key = new SecretKeySpec(symmetricKey, ALGO);
-                        Cipher cipher = Cipher.getInstance(ALGO);
-                        cipher.init(Cipher.DECRYPT_MODE, key);
-                        decryptedPayload = Optional.of(new SecureMessage(visibility, ByteBuffer.wrap(cipher.doFinal(message.getContent()))));
-                    } else {
-                        log.warn("Pipeline is not authorized to read message with visibility of {}, dropping message.", visibility);
-                    }
+                checkPrivateKey(topic, crypto);
+                Visibility visibility = message.getVisibility();
+                if (authorizations.getPermissions(security, visibility).contains(Permission.READ)) {
+                    decryptedPayload = Optional.of(decryptContent(topic, crypto, message));
                 } else {
-                    String error = "No private key found for broadcaster topic [" + topic + "]. Cannot decrypt messages. Please re-initialize the broadcaster with a private key to receive messages.";
-                    log.error(error);
-                    throw new RuntimeException(error);
+                    log.warn("Pipeline is not authorized to read message with visibility of {}, dropping message.", visibility);
                 }
             } else {
                 log.debug("Message was not encrypted, or no key was set");
             }
-        } catch (IllegalBlockSizeException | InvalidKeyException | BadPaddingException e) {
-            log.error("Encryption not set up properly, this error is fatal.", e);
-            throw new RuntimeException(e);
         } catch (BadArgumentException e) {
             log.error(String.format("Visibility string %s not valid, message cannot be decrypted.", message.getVisibility().getFormalVisibility()), e);
             throw new IOException(e);
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Incorrect algorithm used to initialize crypto", e);
+        } catch (EzSecurityTokenException e) {
+            log.error("Could not retrieve token from security service", e);
+            throw new RuntimeException(e);
+        }
+        return decryptedPayload;
+    }
+
+    /**
+     * Decrypt a batch of messages from the same topic. Permissions for visibilities that have not been seen with the
+     * current application token are evaluated together, so identical visibilities are only checked once. Messages the
+     * application may not read, including messages with invalid visibilities, are logged and dropped.
+     *
+     * @param topic the topic the messages were received on
+     * @param messages the messages to decrypt
+     * @return the decrypted messages the application may read, in order
+     */
+    protected List<SecureMessage> decrypt(String topic, List<SecureMessage> messages) throws IOException {
+        RSAKeyCrypto crypto = topicKeys.get(topic);
+        List<Visibility> visibilities = Lists.newArrayListWithCapacity(messages.size());
+        boolean anyEncrypted = false;
+        for (SecureMessage message : messages) {
+            visibilities.add(message.getVisibility());
+            anyEncrypted |= message.isSetKey();
+        }
+        if (!anyEncrypted) {
+            log.debug("Messages were not encrypted, or no key was set");
+            return Lists.newArrayList();
+        }
+        checkPrivateKey(topic, crypto);
+
+        List<Set<Permission>> permissions;
+        try {
+            permissions = authorizations.getPermissions(security, visibilities);
+        } catch (EzSecurityTokenException e) {
+            log.error("Could not retrieve token from security service", e);
             throw new RuntimeException(e);
-        } catch (NoSuchPaddingException e) {
-            log.error("Incorrect padding used to initialize crypto", e);
+        }
+
+        List<SecureMessage> decrypted = Lists.newArrayListWithCapacity(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            SecureMessage message = messages.get(i);
+            if (!message.isSetKey()) {
+                log.debug("Message was not encrypted, or no key was set");
+            } else if (permissions.get(i) == null) {
+                log.error("Visibility string {} not valid, message cannot be decrypted.", message.getVisibility().getFormalVisibility());
+            } else if (permissions.get(i).contains(Permission.READ)) {
+                try {
+                    decrypted.add(decryptContent(topic, crypto, message));
+                } catch (IOException e) {
+                    log.error("Could not decrypt message, dropping message.", e);
+                }
+            } else {
+                log.warn("Pipeline is not authorized to read message with visibility of {}, dropping message.", message.getVisibility());
+            }
+        }
+        return decrypted;
+    }
+
+    private static void checkPrivateKey(String topic, RSAKeyCrypto crypto) {
+        if (crypto == null || !crypto.hasPrivate()) {
+            String error = "No private key found for broadcaster topic [" + topic + "]. Cannot decrypt messages. Please re-initialize the broadcaster with a private key to receive messages.";
+            log.error(error);
+            throw new RuntimeException(error);
+        }
+    }
+
+    /**
+     * Decrypt the content of a message the application is allowed to read.
+     *
+     * @param topic the topic the message was received on
+     * @param crypto the topic's private key
+     * @param message the encrypted message
+     * @return a message with the decrypted content
+     */
+    private SecureMessage decryptContent(String topic, RSAKeyCrypto crypto, SecureMessage message) throws IOException {
+        int version;
+        try {
+            version = DataKeyManager.getVersion(message.getKey());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Message on topic [" + topic + "] has an unsupported key envelope", e);
+        }
+
+        try {
+            // Unwrap the symmetric key, which is cached for messages that share a data key
+            SecretKey key = dataKeys.getDecryptionKey(topic, crypto, message.getKey());
+
+            // Use the symmetric key to decrypt the message, authenticating its visibility as well for version 2
+            byte[] associatedData = version == DataKeyManager.VERSION_2
+                    ? MessageCipher.getAssociatedData(message.getVisibility()) : null;
+            byte[] content = MessageCipher.decrypt(key, version, associatedData, message.getContent());
+            return new SecureMessage(message.getVisibility(), ByteBuffer.wrap(content));
+        } catch (TException e) {
+            throw new IOException("Could not serialize message visibility", e);
+        } catch (BadPaddingException e) {
+            if (version == DataKeyManager.VERSION_2) {
+                // The authentication tag did not match, so the message was corrupted or tampered with
+                throw new IOException("Message on topic [" + topic + "] failed integrity check", e);
+            }
+            log.error("Encryption not set up properly, this error is fatal.", e);
+            throw new RuntimeException(e);
+        } catch (GeneralSecurityException e) {
+            log.error("Encryption not set up properly, this error is fatal.", e);
             throw new RuntimeException(e);
         } catch (PKeyCryptoException e) {
             log.error("Invalid crypto object", e);
             throw new RuntimeException(e);
-        } catch (EzSecurityTokenException e) {
-            log.error("Could not retrieve token from security service", e);
-            throw new RuntimeException(e);
         }
-        return decryptedPayload;
     }
 
     /**
@@ -291,6 +525,9 @@ public abstract class EzBroadcaster implements Closeable {
             if (!broadcaster.isProduction) {
                 log.warn("Broadcaster is running in local mode. Encryption and security checking is off");
             }
+            broadcaster.props = props;
+            broadcaster.dataKeys = new DataKeyManager(props);
+            broadcaster.authorizations = new AuthorizationCache(props);
             broadcaster.prepare(props, groupId);
             broadcaster.security = new EzbakeSecurityClient(props);
         } catch (Exception e) {
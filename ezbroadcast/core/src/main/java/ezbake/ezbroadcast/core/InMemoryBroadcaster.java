@@ -14,47 +14,130 @@
 
 package ezbake.ezbroadcast.core;
 
-import java.util.Map;
-import java.util.HashMap;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.base.Optional;
-import org.apache.accumulo.core.security.Authorizations;
-import org.apache.accumulo.core.security.VisibilityEvaluator;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * This class is for testing purposes ONLY. It can be used in situations where a broadcaster
- * is required but there is no message bus running (unit testing for example).
+ * A broadcaster that passes messages through an {@link InMemoryBroker} instead of a message bus. It can be used in
+ * situations where a broadcaster is required but there is no message bus running (unit testing for example), or to
+ * connect components running in the same JVM.
+ *
+ * By default each broadcaster has a broker of its own. Broadcasters created with the same
+ * {@link #BROKER_NAME broker name} share a broker, and so see each other's messages.
  */
-public class InMemoryBroadcaster extends EzBroadcaster { 
-    private Map<String, byte[]> broadcasted;
+public class InMemoryBroadcaster extends EzBroadcaster {
+    private static final Logger log = LoggerFactory.getLogger(InMemoryBroadcaster.class);
+
+    /**
+     * Name of the broker to share with other in-memory broadcasters in the JVM. If not set the broadcaster uses a
+     * broker of its own.
+     */
+    public static final String BROKER_NAME = "broadcaster.inmemory.broker";
+
+    /**
+     * Number of messages kept for each topic. For a shared broker this is set by the first broadcaster to use it.
+     */
+    public static final String TOPIC_CAPACITY = "broadcaster.inmemory.topic.capacity";
+
+    private static final int DEFAULT_TOPIC_CAPACITY = 10000;
+
+    /**
+     * Time in milliseconds each listener thread waits for messages before checking whether it has been stopped.
+     */
+    private static final long LISTEN_POLL_MS = 100;
+    private static final int LISTEN_BATCH_SIZE = 100;
+
+    private InMemoryBroker broker;
+    private String groupId;
+    private Set<String> topicsToListenTo;
+    private ExecutorService executor;
+    private ListenerPipeline pipeline;
 
     @Override
     protected void broadcastImpl(String topic, byte[] payload) throws IOException {
-        broadcasted.put(topic, payload);
+        broker.publish(topic, Collections.singletonList(payload));
+    }
+
+    @Override
+    protected void broadcastImpl(String topic, List<byte[]> payloads) throws IOException {
+        broker.publish(topic, payloads);
     }
 
     @Override
     protected Optional<byte[]> receiveImpl(String topic) throws IOException {
-        return Optional.of(broadcasted.remove(topic));
+        List<byte[]> messages = receiveImpl(topic, 1, 0);
+        return messages.isEmpty() ? Optional.<byte[]>absent() : Optional.of(messages.get(0));
+    }
+
+    @Override
+    protected List<byte[]> receiveImpl(String topic, int maxMessages, long timeoutMillis) throws IOException {
+        try {
+            return broker.poll(topic, groupId, maxMessages, timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving from topic " + topic, e);
+        }
     }
 
     @Override
     public void startListening(Receiver receiver) {
+        Preconditions.checkState(!topicsToListenTo.isEmpty(), "Not subscribed to any topics. Please subscribe to topics before attempting to listen");
+        pipeline = createListenerPipeline(receiver);
+        executor = Executors.newFixedThreadPool(topicsToListenTo.size(),
+                new ThreadFactoryBuilder().setNameFormat("inmemory-listener-%d").setDaemon(true).build());
+
+        for (final String topic : topicsToListenTo) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            for (byte[] payload : broker.poll(topic, groupId, LISTEN_BATCH_SIZE, LISTEN_POLL_MS)) {
+                                pipeline.submit(topic, topic, payload);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        log.debug("Stopped listening to topic {}", topic);
+                    }
+                }
+            });
+        }
     }
 
+    /**
+     * Get the most recent message broadcast on a topic, without consuming it.
+     *
+     * @param topic the topic
+     * @return the serialized message, or null if nothing has been broadcast on the topic
+     */
     public byte[] getMessageFromTopic(String topic) {
-        return broadcasted.get(topic);
+        return broker.peekLatest(topic);
     }
 
     @Override
     protected void prepare(Properties props, String groupId) {
-        broadcasted = new HashMap<>();
+        int capacity = Integer.parseInt(props.getProperty(TOPIC_CAPACITY, Integer.toString(DEFAULT_TOPIC_CAPACITY)));
+        String brokerName = props.getProperty(BROKER_NAME);
+        broker = brokerName == null ? new InMemoryBroker(capacity) : InMemoryBroker.getShared(brokerName, capacity);
+        this.groupId = groupId;
+        topicsToListenTo = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     }
 
     @Override
     public void subscribe(String topic) {
+        topicsToListenTo.add(topic);
     }
 
     @Override
@@ -63,6 +146,8 @@ public class InMemoryBroadcaster extends EzBroadcaster {
 
     @Override
     public void unsubscribe(String topic) {
+        topicsToListenTo.remove(topic);
+        broker.removeGroup(topic, groupId);
     }
 
     @Override
@@ -71,5 +156,7 @@ public class InMemoryBroadcaster extends EzBroadcaster {
 
     @Override
     public void close() throws IOException {
+        stopListening(executor, pipeline);
+        super.close();
     }
 }
@@ -0,0 +1,214 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.ezbroadcast.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A message bus inside the JVM, used by {@link InMemoryBroadcaster}.
+ *
+ * Each topic keeps its most recent messages in a fixed size ring buffer. Consumers read a topic as part of a group,
+ * and each message is delivered to one consumer in every group, as with the other broadcasters. A group starts at
+ * the oldest message still in the buffer. When the buffer is full the oldest message is overwritten, and a group that
+ * has fallen that far behind skips to the oldest remaining message.
+ *
+ * Brokers can be shared by name, so that broadcasters created separately in the same JVM can talk to each other.
+ */
+public class InMemoryBroker {
+    private static final Logger log = LoggerFactory.getLogger(InMemoryBroker.class);
+
+    private static final ConcurrentMap<String, InMemoryBroker> shared = new ConcurrentHashMap<>();
+
+    private final int capacity;
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity the number of messages kept for each topic
+     */
+    public InMemoryBroker(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the broker with the given name, creating it if it does not exist yet.
+     *
+     * @param name the name of the broker
+     * @param capacity the number of messages kept for each topic, if the broker is created
+     * @return the shared broker
+     */
+    public static InMemoryBroker getShared(String name, int capacity) {
+        InMemoryBroker broker = shared.get(name);
+        if (broker == null) {
+            InMemoryBroker newBroker = new InMemoryBroker(capacity);
+            broker = shared.putIfAbsent(name, newBroker);
+            if (broker == null) {
+                broker = newBroker;
+            }
+        }
+        return broker;
+    }
+
+    /**
+     * Append messages to a topic, waking any consumers waiting for them.
+     *
+     * @param topic the topic to append to
+     * @param payloads the messages, in order
+     */
+    public void publish(String topic, List<byte[]> payloads) {
+        getTopic(topic).publish(payloads);
+    }
+
+    /**
+     * Take a group's next messages from a topic, waiting for up to the timeout if there are none.
+     *
+     * @param topic the topic to read
+     * @param groupId the consumer group reading the topic
+     * @param maxMessages the maximum number of messages to return
+     * @param timeoutMillis how long to wait for a message, in milliseconds
+     * @return the messages taken, in order. The list is empty if no message arrived before the timeout
+     */
+    public List<byte[]> poll(String topic, String groupId, int maxMessages, long timeoutMillis)
+            throws InterruptedException {
+        return getTopic(topic).poll(groupId, maxMessages, timeoutMillis);
+    }
+
+    /**
+     * Get the most recent message on a topic without consuming it.
+     *
+     * @param topic the topic to read
+     * @return the last message published to the topic, or null if there is none
+     */
+    public byte[] peekLatest(String topic) {
+        return getTopic(topic).peekLatest();
+    }
+
+    /**
+     * Forget a group's position on a topic. If the group reads the topic again it starts at the oldest message.
+     *
+     * @param topic the topic
+     * @param groupId the consumer group
+     */
+    public void removeGroup(String topic, String groupId) {
+        getTopic(topic).removeGroup(groupId);
+    }
+
+    private Topic getTopic(String name) {
+        Topic topic = topics.get(name);
+        if (topic == null) {
+            Topic newTopic = new Topic(name);
+            topic = topics.putIfAbsent(name, newTopic);
+            if (topic == null) {
+                topic = newTopic;
+            }
+        }
+        return topic;
+    }
+
+    private class Topic {
+        private final String name;
+        private final byte[][] buffer = new byte[capacity][];
+        private final Map<String, Long> groups = new HashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+
+        /**
+         * The sequence number of the next message. Message n is held in buffer[n % capacity] until it is overwritten.
+         */
+        private long next;
+
+        Topic(String name) {
+            this.name = name;
+        }
+
+        void publish(List<byte[]> payloads) {
+            lock.lock();
+            try {
+                for (byte[] payload : payloads) {
+                    buffer[(int)(next % capacity)] = payload;
+                    next++;
+                }
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<byte[]> poll(String groupId, int maxMessages, long timeoutMillis) throws InterruptedException {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try {
+                long oldest = Math.max(0, next - capacity);
+                Long position = groups.get(groupId);
+                long cursor = position == null ? oldest : position;
+                while (cursor >= next) {
+                    if (remaining <= 0) {
+                        return Collections.emptyList();
+                    }
+                    remaining = published.awaitNanos(remaining);
+                    // Other consumers in the group may have taken messages while we waited
+                    position = groups.get(groupId);
+                    cursor = position == null ? Math.max(0, next - capacity) : position;
+                }
+
+                oldest = Math.max(0, next - capacity);
+                if (cursor < oldest) {
+                    log.debug("Group {} skipped {} overwritten messages on topic {}", groupId, oldest - cursor, name);
+                    cursor = oldest;
+                }
+                int count = (int)Math.min(maxMessages, next - cursor);
+                List<byte[]> messages = Lists.newArrayListWithCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(buffer[(int)((cursor + i) % capacity)]);
+                }
+                groups.put(groupId, cursor + count);
+                return messages;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        byte[] peekLatest() {
+            lock.lock();
+            try {
+                return next == 0 ? null : buffer[(int)((next - 1) % capacity)];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeGroup(String groupId) {
+            lock.lock();
+            try {
+                groups.remove(groupId);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
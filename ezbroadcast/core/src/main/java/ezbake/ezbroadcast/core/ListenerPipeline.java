@@ -0,0 +1,261 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.ezbroadcast.core;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import ezbake.ezbroadcast.core.thrift.SecureMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes messages for {@link EzBroadcaster#startListening(Receiver)}.
+ *
+ * Broadcaster implementations fetch raw messages from their message bus, usually with one thread per topic, and
+ * {@link #submit(String, Object, byte[]) submit} them here. Deserializing, permission checking and decrypting happen on
+ * a pool of worker threads, after which messages are handed to the receiver. In {@link DeliveryMode#ORDERED} mode
+ * messages that share an ordering key are delivered in the order they were submitted, one at a time; in
+ * {@link DeliveryMode#UNORDERED} mode they are delivered as soon as they are decrypted. In both modes at most a
+ * configured number of messages are in flight between submit and delivery, and submit blocks until there is room.
+ */
+public class ListenerPipeline implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ListenerPipeline.class);
+
+    /**
+     * Number of worker threads that decrypt and deliver messages. Defaults to the number of processors.
+     */
+    public static final String WORKER_THREADS = "broadcaster.listener.threads";
+
+    /**
+     * How messages are delivered to the receiver, either "ordered" (the default) or "unordered".
+     */
+    public static final String DELIVERY_MODE = "broadcaster.listener.delivery";
+
+    /**
+     * Maximum number of submitted messages that have not yet been delivered.
+     */
+    public static final String MAX_IN_FLIGHT = "broadcaster.listener.max.in.flight";
+
+    /**
+     * How long {@link #close()} waits for messages already submitted to be delivered, in milliseconds.
+     */
+    public static final String DRAIN_TIMEOUT_MS = "broadcaster.listener.drain.timeout.ms";
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    private static final long DEFAULT_DRAIN_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    public enum DeliveryMode {
+        /**
+         * Messages with the same ordering key are delivered one at a time, in the order they were submitted.
+         */
+        ORDERED,
+
+        /**
+         * Messages are delivered as soon as they have been decrypted, possibly concurrently.
+         */
+        UNORDERED
+    }
+
+    private final EzBroadcaster broadcaster;
+    private final Receiver receiver;
+    private final DeliveryMode mode;
+    private final Semaphore inFlight;
+    private final long drainTimeoutMillis;
+    private final ExecutorService workers;
+    private final ConcurrentMap<List<Object>, KeyQueue> keyQueues = new ConcurrentHashMap<>();
+
+    public ListenerPipeline(EzBroadcaster broadcaster, Receiver receiver, Properties props) {
+        this.broadcaster = broadcaster;
+        this.receiver = receiver;
+        this.mode = DeliveryMode.valueOf(props.getProperty(DELIVERY_MODE, "ordered").toUpperCase());
+
+        int threads = Integer.parseInt(props.getProperty(WORKER_THREADS,
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        int maxInFlight = Integer.parseInt(props.getProperty(MAX_IN_FLIGHT, Integer.toString(DEFAULT_MAX_IN_FLIGHT)));
+        Preconditions.checkArgument(threads > 0, WORKER_THREADS + " must be positive");
+        Preconditions.checkArgument(maxInFlight > 0, MAX_IN_FLIGHT + " must be positive");
+
+        inFlight = new Semaphore(maxInFlight);
+        drainTimeoutMillis = Long.parseLong(props.getProperty(DRAIN_TIMEOUT_MS,
+                Long.toString(DEFAULT_DRAIN_TIMEOUT_MS)));
+        workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("broadcaster-listener-%d").setDaemon(true).build());
+        log.debug("Listening with {} workers, {} delivery and up to {} messages in flight", threads, mode, maxInFlight);
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return mode;
+    }
+
+    /**
+     * Queue a fetched message for decryption and delivery, waiting if too many messages are already in flight.
+     *
+     * @param topic the topic the message was received on
+     * @param orderingKey messages on the topic with equal keys are delivered in submission order in ordered mode, for
+     *                    example the partition the message was read from
+     * @param payload the serialized message
+     */
+    public void submit(String topic, Object orderingKey, byte[] payload) throws InterruptedException {
+        inFlight.acquire();
+        Task task = new Task(topic, payload);
+        try {
+            if (mode == DeliveryMode.ORDERED) {
+                task.queue = getKeyQueue(topic, orderingKey);
+                task.queue.add(task);
+            }
+            workers.execute(task);
+        } catch (RuntimeException e) {
+            // The pool has been shut down, so the task will never complete
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting messages and wait for the messages already submitted to be delivered, for up to the
+     * {@link #DRAIN_TIMEOUT_MS drain timeout}. Messages still undelivered after that are discarded.
+     *
+     * Broadcasters have already consumed submitted messages from their message bus, so they must stop fetching and
+     * close the pipeline before they commit their position and disconnect.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("Discarding undelivered messages after waiting {} ms for them", drainTimeoutMillis);
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the worker threads to finish after {@link #close()}.
+     *
+     * @return true if the workers finished within the timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    private KeyQueue getKeyQueue(String topic, Object orderingKey) {
+        List<Object> key = Arrays.asList(topic, orderingKey);
+        KeyQueue queue = keyQueues.get(key);
+        if (queue == null) {
+            KeyQueue newQueue = new KeyQueue();
+            queue = keyQueues.putIfAbsent(key, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    private void deliver(Task task) {
+        try {
+            if (task.message != null) {
+                receiver.receive(task.topic, task.message);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Receiver failed to process message on topic {}", task.topic, e);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private class Task implements Runnable {
+        private final String topic;
+        private final byte[] payload;
+        private KeyQueue queue;
+        private SecureMessage message;
+        private boolean done;
+
+        Task(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Optional<SecureMessage> decoded = broadcaster.decode(topic, payload);
+                message = decoded.orNull();
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not decrypt message on topic {}", topic, e);
+            }
+
+            if (queue == null) {
+                deliver(this);
+            } else {
+                queue.completed(this);
+            }
+        }
+    }
+
+    /**
+     * The messages for one ordering key that have not been delivered yet, in submission order. Whichever worker finds
+     * the oldest message complete delivers it and any completed messages behind it, so one key's messages are never
+     * delivered concurrently while other workers keep decrypting.
+     */
+    private class KeyQueue {
+        private final Queue<Task> pending = new ArrayDeque<>();
+        private boolean draining;
+
+        synchronized void add(Task task) {
+            pending.add(task);
+        }
+
+        void completed(Task task) {
+            synchronized (this) {
+                task.done = true;
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+
+            while (true) {
+                Task next;
+                synchronized (this) {
+                    next = pending.peek();
+                    if (next == null || !next.done) {
+                        draining = false;
+                        return;
+                    }
+                    pending.remove();
+                }
+                deliver(next);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.ezbroadcast.core;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.security.permissions.VisibilityCanonicalizer;
+import ezbake.thrift.ThriftUtils;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Encrypts and decrypts broadcast message content with a data key.
+ *
+ * The cipher is chosen by the version of the message's key envelope (see {@link DataKeyManager}): messages without an
+ * envelope or with a version 1 envelope use the original AES/ECB encryption, and version 2 messages use AES-GCM, whose
+ * content is the 12-byte nonce followed by the ciphertext and 128-bit authentication tag. Version 2 content is bound
+ * to the message visibility as associated data. Other versions are rejected. Cipher objects are kept per thread, so
+ * no provider lookup is needed per message.
+ */
+final class MessageCipher {
+    private static final Logger log = LoggerFactory.getLogger(MessageCipher.class);
+
+    private static final String ECB_TRANSFORMATION = "AES";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final ThreadLocal<Cipher> ecbCiphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return newCipher(ECB_TRANSFORMATION);
+        }
+    };
+
+    private static final ThreadLocal<Cipher> gcmCiphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return newCipher(GCM_TRANSFORMATION);
+        }
+    };
+
+    private static final boolean gcmAvailable = checkGcmAvailable();
+
+    private MessageCipher() {
+    }
+
+    /**
+     * Whether AES-GCM is available from the installed providers. Senders fall back to the version 1 format when it is
+     * not.
+     *
+     * @return true if messages can be encrypted with AES-GCM
+     */
+    static boolean isGcmAvailable() {
+        return gcmAvailable;
+    }
+
+    /**
+     * Get the associated data that binds version 2 message content to the message's visibility, so that a message
+     * relabelled with a different visibility fails authentication. This is the serialized canonical visibility, since
+     * the sets in a visibility are not serialized in a stable order.
+     *
+     * @param visibility the message visibility, may be null
+     * @return the associated data
+     * @throws org.apache.accumulo.core.util.BadArgumentException if the visibility is not valid
+     */
+    static byte[] getAssociatedData(Visibility visibility) throws TException {
+        if (visibility == null) {
+            return new byte[0];
+        }
+        return ThriftUtils.serialize(VisibilityCanonicalizer.canonicalize(visibility));
+    }
+
+    /**
+     * Encrypt message content with a data key, using the cipher for the key's envelope version.
+     *
+     * @param key the data key
+     * @param associatedData data authenticated along with version 2 content, see {@link #getAssociatedData}
+     * @param plaintext the content to encrypt
+     * @return the encrypted content
+     */
+    static byte[] encrypt(DataKeyManager.DataKey key, byte[] associatedData, byte[] plaintext)
+            throws GeneralSecurityException {
+        int version = key.getVersion();
+        switch (version) {
+            case 0:
+            case DataKeyManager.VERSION_1:
+                Cipher ecb = ecbCiphers.get();
+                ecb.init(Cipher.ENCRYPT_MODE, key.getKey());
+                return ecb.doFinal(plaintext);
+            case DataKeyManager.VERSION_2:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported key envelope version " + version);
+        }
+
+        byte[] nonce = key.nextNonce();
+        Cipher cipher = gcmCiphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key.getKey(), new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(associatedData);
+        byte[] content = new byte[NONCE_LENGTH + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(nonce, 0, content, 0, NONCE_LENGTH);
+        int length = cipher.doFinal(plaintext, 0, plaintext.length, content, NONCE_LENGTH);
+        if (NONCE_LENGTH + length != content.length) {
+            throw new IllegalStateException("Unexpected AES-GCM output length " + length);
+        }
+        return content;
+    }
+
+    /**
+     * Decrypt message content.
+     *
+     * @param key the data key
+     * @param version the version of the message's key envelope
+     * @param associatedData data authenticated along with version 2 content, see {@link #getAssociatedData}
+     * @param content the encrypted content
+     * @return the decrypted content
+     * @throws javax.crypto.BadPaddingException if the content is corrupt, including failed AES-GCM authentication
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    static byte[] decrypt(SecretKey key, int version, byte[] associatedData, byte[] content)
+            throws GeneralSecurityException {
+        switch (version) {
+            case 0:
+            case DataKeyManager.VERSION_1:
+                Cipher ecb = ecbCiphers.get();
+                ecb.init(Cipher.DECRYPT_MODE, key);
+                return ecb.doFinal(content);
+            case DataKeyManager.VERSION_2:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported key envelope version " + version);
+        }
+
+        if (content.length < NONCE_LENGTH) {
+            throw new BadPaddingException("Message content is shorter than the AES-GCM nonce");
+        }
+        Cipher cipher = gcmCiphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, content, 0, NONCE_LENGTH));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(content, NONCE_LENGTH, content.length - NONCE_LENGTH);
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException("Cipher " + transformation + " is not available", e);
+        }
+    }
+
+    private static boolean checkGcmAvailable() {
+        try {
+            gcmCiphers.get();
+            return true;
+        } catch (IllegalStateException e) {
+            log.warn("AES-GCM is not available, broadcast messages will be encrypted with AES/ECB", e);
+            gcmCiphers.remove();
+            return false;
+        }
+    }
+}
@@ -18,24 +18,40 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
 
 import com.google.common.io.Resources;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import ezbake.base.thrift.AdvancedMarkings;
 import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.base.thrift.Permission;
+import ezbake.base.thrift.PlatformObjectVisibilities;
 import ezbake.base.thrift.Visibility;
 import ezbake.configuration.constants.EzBakePropertyConstants;
+import ezbake.crypto.RSAKeyCrypto;
 import ezbake.security.client.EzSecurityTokenWrapper;
 import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.thrift.ThriftTestUtils;
+import ezbake.thrift.ThriftUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.junit.Assume;
 import org.junit.Test;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import com.google.common.io.Files;
 import com.google.common.base.Optional;
@@ -151,6 +167,301 @@ public class EzBroadcasterTest {
         assertFalse("Message is received and decrypted properly", received.isPresent());
     }
     
+    @Test
+    public void testReceiveBatch_NotProduction() throws Exception {
+        log.info("STARTING TEST: [RECEIVE_BATCH_NOT_PRODUCTION]");
+        setupBroadcaster(false, false);
+        broadcaster.broadcast("topic", new Visibility().setFormalVisibility("U"), "hello".getBytes("UTF-8"));
+
+        List<SecureMessage> received = broadcaster.receive("topic", 10, 100, TimeUnit.MILLISECONDS);
+        assertEquals("One message is received", 1, received.size());
+        assertEquals("Message is received", "hello", new String(received.get(0).getContent(), "UTF-8"));
+        assertTrue("No more messages", broadcaster.receive("topic", 10, 100, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    @Test
+    public void testReceiveBatch_Encrypted() throws Exception {
+        log.info("STARTING TEST: [RECEIVE_BATCH_ENCRYPTED]");
+        setupBroadcaster(true, true);
+
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("S&(USA|CAN)"), "something".getBytes("UTF-8"));
+        List<SecureMessage> received = broadcaster.receive("encrypted", 10, 100, TimeUnit.MILLISECONDS);
+        assertEquals("One message is received", 1, received.size());
+        assertEquals("Message is received and decrypted properly", "something", new String(received.get(0).getContent(), "UTF-8"));
+
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("AB&G"), "something".getBytes("UTF-8"));
+        assertTrue("Unreadable message is dropped", broadcaster.receive("encrypted", 10, 100, TimeUnit.MILLISECONDS).isEmpty());
+
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("AB&G@#$"), "something".getBytes("UTF-8"));
+        assertTrue("Message with bad visibility is dropped", broadcaster.receive("encrypted", 10, 100, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    @Test
+    public void testBroadcastBatch_Encrypted() throws Exception {
+        log.info("STARTING TEST: [BROADCAST_BATCH_ENCRYPTED]");
+        setupBroadcaster(true, true);
+
+        broadcaster.broadcast("encrypted", Lists.newArrayList(
+                new BroadcastMessage(new Visibility().setFormalVisibility("U"), "first".getBytes("UTF-8")),
+                new BroadcastMessage(new Visibility().setFormalVisibility("S&(USA|CAN)"), "second".getBytes("UTF-8"))));
+
+        byte[] payload = ((InMemoryBroadcaster)broadcaster).getMessageFromTopic("encrypted");
+        assertFalse("Encrypted string should not equal original", new String(payload).contains("second"));
+
+        assertEquals("Message is received and decrypted properly", "first", new String(broadcaster.receive("encrypted").get().getContent(), "UTF-8"));
+        assertEquals("Message is received and decrypted properly", "second", new String(broadcaster.receive("encrypted").get().getContent(), "UTF-8"));
+        assertFalse("No more messages", broadcaster.receive("encrypted").isPresent());
+    }
+
+    @Test
+    public void testInMemory_StartListening() throws Exception {
+        log.info("STARTING TEST: [IN_MEMORY_START_LISTENING]");
+        setupBroadcaster(false, false);
+        broadcaster.subscribeToTopic("topic");
+
+        final List<String> received = Collections.synchronizedList(Lists.<String>newArrayList());
+        final CountDownLatch delivered = new CountDownLatch(100);
+        broadcaster.startListening(new Receiver() {
+            @Override
+            public void receive(String topic, SecureMessage message) throws IOException {
+                received.add(new String(message.getContent(), "UTF-8"));
+                delivered.countDown();
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            broadcaster.broadcast("topic", new Visibility().setFormalVisibility("U"), ("message" + i).getBytes("UTF-8"));
+        }
+        assertTrue("All messages are delivered", delivered.await(30, TimeUnit.SECONDS));
+        broadcaster.close();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Messages are delivered in order", "message" + i, received.get(i));
+        }
+    }
+
+    @Test
+    public void testBroadcast_DataKeyReused() throws Exception {
+        log.info("STARTING TEST: [DATA_KEY_REUSED]");
+        setupBroadcaster(true, true);
+
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("U"), "first".getBytes("UTF-8"));
+        SecureMessage first = ThriftUtils.deserialize(SecureMessage.class, ((InMemoryBroadcaster)broadcaster).getMessageFromTopic("encrypted"));
+        assertEquals("Message is received and decrypted properly", "first", new String(broadcaster.receive("encrypted").get().getContent(), "UTF-8"));
+
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("U"), "second".getBytes("UTF-8"));
+        SecureMessage second = ThriftUtils.deserialize(SecureMessage.class, ((InMemoryBroadcaster)broadcaster).getMessageFromTopic("encrypted"));
+        assertTrue("Data key is reused", Arrays.equals(first.getKey(), second.getKey()));
+        assertEquals("Key envelope is versioned", MessageCipher.isGcmAvailable() ? 2 : 1, DataKeyManager.getVersion(second.getKey()));
+        assertFalse("Each message has its own nonce", MessageCipher.isGcmAvailable()
+                && Arrays.equals(Arrays.copyOf(first.getContent(), 12), Arrays.copyOf(second.getContent(), 12)));
+        assertEquals("Message is received and decrypted properly", "second", new String(broadcaster.receive("encrypted").get().getContent(), "UTF-8"));
+    }
+
+    @Test
+    public void testReceive_AuthorizationCached() throws Exception {
+        log.info("STARTING TEST: [AUTHORIZATION_CACHED]");
+        setupBroadcaster(true, true);
+
+        for (int i = 0; i < 5; i++) {
+            broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("U&(USA|CAN)"), ("message" + i).getBytes("UTF-8"));
+            assertEquals("Message is received and decrypted properly", "message" + i, new String(broadcaster.receive("encrypted").get().getContent(), "UTF-8"));
+        }
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("(CAN|USA)&U"), "equivalent".getBytes("UTF-8"));
+        assertEquals("Message is received and decrypted properly", "equivalent", new String(broadcaster.receive("encrypted").get().getContent(), "UTF-8"));
+        broadcaster.broadcast("encrypted", new Visibility().setFormalVisibility("U&GBR"), "unauthorized".getBytes("UTF-8"));
+        assertFalse("Unauthorized message is dropped", broadcaster.receive("encrypted").isPresent());
+
+        verify(broadcaster.security, times(1)).fetchAppToken();
+    }
+
+    @Test
+    public void testAuthorizationCache_RefreshesAheadOfExpiry() throws Exception {
+        log.info("STARTING TEST: [AUTHORIZATION_REFRESH_AHEAD]");
+        EzSecurityTokenWrapper expiring = new EzSecurityTokenWrapper(ThriftTestUtils.generateTestSecurityToken("U"));
+        expiring.getValidity().setNotAfter(System.currentTimeMillis() + 400);
+        EzSecurityTokenWrapper renewed = new EzSecurityTokenWrapper(ThriftTestUtils.generateTestSecurityToken("U"));
+        EzbakeSecurityClient security = mock(EzbakeSecurityClient.class);
+        when(security.fetchAppToken()).thenReturn(expiring);
+        when(security.fetchAppToken(true)).thenReturn(renewed);
+
+        AuthorizationCache cache = new AuthorizationCache(new Properties());
+        Visibility visibility = new Visibility().setFormalVisibility("U");
+        assertTrue("Token grants read", cache.getPermissions(security, visibility).contains(Permission.READ));
+
+        // Past the refresh point, halfway to expiry. The client would return the cached token unless forced.
+        Thread.sleep(250);
+        assertTrue("Token grants read", cache.getPermissions(security, visibility).contains(Permission.READ));
+        assertTrue("Token grants read", cache.getPermissions(security, visibility).contains(Permission.READ));
+
+        verify(security, times(1)).fetchAppToken();
+        verify(security, times(1)).fetchAppToken(true);
+    }
+
+    @Test
+    public void testDataKeyRotation() throws Exception {
+        log.info("STARTING TEST: [DATA_KEY_ROTATION]");
+        InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("keys/encrypted.priv");
+        RSAKeyCrypto crypto = new RSAKeyCrypto(getKeyData("keys/encrypted.priv", inputStream), true);
+
+        Properties props = new Properties();
+        props.setProperty(DataKeyManager.ROTATION_MESSAGES + ".rotating", "2");
+        DataKeyManager keys = new DataKeyManager(props);
+
+        DataKeyManager.DataKey first = keys.getEncryptionKey("rotating", crypto, 1);
+        assertTrue("Key is reused within the limit", first == keys.getEncryptionKey("rotating", crypto, 1));
+        DataKeyManager.DataKey rotated = keys.getEncryptionKey("rotating", crypto, 1);
+        assertFalse("Key is rotated after the limit", first == rotated);
+        assertFalse("Rotated key has a new envelope", Arrays.equals(first.getEnvelope(), rotated.getEnvelope()));
+
+        assertEquals("Receiver unwraps the data key", first.getKey(), keys.getDecryptionKey("rotating", crypto, first.getEnvelope()));
+        byte[] legacy = crypto.encrypt(first.getKey().getEncoded());
+        assertEquals("Receiver unwraps bare wrapped keys", first.getKey(), keys.getDecryptionKey("rotating", crypto, legacy));
+        assertEquals("Bare wrapped keys have no version", 0, DataKeyManager.getVersion(legacy));
+    }
+
+    @Test
+    public void testDataKeyLegacyFormat() throws Exception {
+        log.info("STARTING TEST: [DATA_KEY_LEGACY_FORMAT]");
+        InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("keys/encrypted.priv");
+        RSAKeyCrypto crypto = new RSAKeyCrypto(getKeyData("keys/encrypted.priv", inputStream), true);
+
+        Properties props = new Properties();
+        props.setProperty(DataKeyManager.LEGACY_FORMAT + ".legacy", "true");
+        DataKeyManager keys = new DataKeyManager(props);
+        DataKeyManager.DataKey key = keys.getEncryptionKey("legacy", crypto, 1);
+        assertTrue("Key is reused", key == keys.getEncryptionKey("legacy", crypto, 1));
+        assertEquals("Legacy keys have no envelope", 0, DataKeyManager.getVersion(key.getEnvelope()));
+        assertEquals("Other topics use envelopes", MessageCipher.isGcmAvailable() ? 2 : 1, keys.getEncryptionKey("other", crypto, 1).getVersion());
+
+        // Read the message the way a receiver without key envelope support does
+        byte[] content = MessageCipher.encrypt(key, null, "hello there!".getBytes("UTF-8"));
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(crypto.decrypt(key.getEnvelope()), "AES"));
+        assertEquals("Old receivers can decrypt", "hello there!", new String(cipher.doFinal(content), "UTF-8"));
+        assertEquals("New receivers can decrypt", "hello there!", new String(MessageCipher.decrypt(keys.getDecryptionKey("legacy", crypto, key.getEnvelope()), 0, null, content), "UTF-8"));
+    }
+
+    @Test(expected = BadPaddingException.class)
+    public void testGcmTamperedContent() throws Exception {
+        log.info("STARTING TEST: [GCM_TAMPERED_CONTENT]");
+        Assume.assumeTrue(MessageCipher.isGcmAvailable());
+        InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("keys/encrypted.priv");
+        RSAKeyCrypto crypto = new RSAKeyCrypto(getKeyData("keys/encrypted.priv", inputStream), true);
+
+        DataKeyManager.DataKey key = new DataKeyManager(new Properties()).getEncryptionKey("gcm", crypto, 1);
+        byte[] associatedData = MessageCipher.getAssociatedData(new Visibility().setFormalVisibility("U"));
+        byte[] content = MessageCipher.encrypt(key, associatedData, "hello there!".getBytes("UTF-8"));
+        assertEquals("Content decrypts", "hello there!", new String(MessageCipher.decrypt(key.getKey(), key.getVersion(), associatedData, content), "UTF-8"));
+
+        content[content.length - 1] ^= 1;
+        MessageCipher.decrypt(key.getKey(), key.getVersion(), associatedData, content);
+    }
+
+    @Test(expected = BadPaddingException.class)
+    public void testGcmRelabelledVisibility() throws Exception {
+        log.info("STARTING TEST: [GCM_RELABELLED_VISIBILITY]");
+        Assume.assumeTrue(MessageCipher.isGcmAvailable());
+        InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("keys/encrypted.priv");
+        RSAKeyCrypto crypto = new RSAKeyCrypto(getKeyData("keys/encrypted.priv", inputStream), true);
+
+        DataKeyManager.DataKey key = new DataKeyManager(new Properties()).getEncryptionKey("gcm", crypto, 1);
+        Visibility visibility = new Visibility().setFormalVisibility("TS&USA").setAdvancedMarkings(new AdvancedMarkings()
+                .setPlatformObjectVisibility(new PlatformObjectVisibilities().setPlatformObjectReadVisibility(Sets.newLinkedHashSet(Arrays.asList(3L, 1L, 2L)))));
+        byte[] content = MessageCipher.encrypt(key, MessageCipher.getAssociatedData(visibility), "secret".getBytes("UTF-8"));
+
+        // Set order and equivalent expressions don't change the associated data
+        Visibility received = new Visibility().setFormalVisibility("USA&TS").setAdvancedMarkings(new AdvancedMarkings()
+                .setPlatformObjectVisibility(new PlatformObjectVisibilities().setPlatformObjectReadVisibility(Sets.newLinkedHashSet(Arrays.asList(1L, 2L, 3L)))));
+        assertEquals("Content decrypts", "secret", new String(MessageCipher.decrypt(key.getKey(), key.getVersion(), MessageCipher.getAssociatedData(received), content), "UTF-8"));
+
+        MessageCipher.decrypt(key.getKey(), key.getVersion(), MessageCipher.getAssociatedData(new Visibility().setFormalVisibility("U")), content);
+    }
+
+    @Test
+    public void testUnknownEnvelopeVersion() throws Exception {
+        log.info("STARTING TEST: [UNKNOWN_ENVELOPE_VERSION]");
+        InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("keys/encrypted.priv");
+        RSAKeyCrypto crypto = new RSAKeyCrypto(getKeyData("keys/encrypted.priv", inputStream), true);
+
+        byte[] envelope = new DataKeyManager(new Properties()).getEncryptionKey("future", crypto, 1).getEnvelope().clone();
+        envelope[4] = 3;
+        try {
+            DataKeyManager.getVersion(envelope);
+            fail("Unknown envelope version is rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            MessageCipher.decrypt(new DataKeyManager(new Properties()).getDecryptionKey("future", crypto, envelope), 3, null, new byte[32]);
+            fail("Unknown cipher version is rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testListenerPipeline_OrderedPerKey() throws Exception {
+        log.info("STARTING TEST: [LISTENER_PIPELINE_ORDERED]");
+        setupBroadcaster(false, false);
+
+        Properties props = new Properties();
+        props.setProperty(ListenerPipeline.WORKER_THREADS, "4");
+        props.setProperty(ListenerPipeline.MAX_IN_FLIGHT, "16");
+        final List<String> first = Collections.synchronizedList(Lists.<String>newArrayList());
+        final List<String> second = Collections.synchronizedList(Lists.<String>newArrayList());
+        final CountDownLatch delivered = new CountDownLatch(2000);
+        ListenerPipeline pipeline = new ListenerPipeline(broadcaster, new Receiver() {
+            @Override
+            public void receive(String topic, SecureMessage message) throws IOException {
+                String content = new String(message.getContent(), "UTF-8");
+                (content.startsWith("first") ? first : second).add(content);
+                delivered.countDown();
+            }
+        }, props);
+
+        for (int i = 0; i < 1000; i++) {
+            pipeline.submit("topic", 0, ThriftUtils.serialize(new SecureMessage(new Visibility().setFormalVisibility("U"), ByteBuffer.wrap(("first" + i).getBytes("UTF-8")))));
+            pipeline.submit("topic", 1, ThriftUtils.serialize(new SecureMessage(new Visibility().setFormalVisibility("U"), ByteBuffer.wrap(("second" + i).getBytes("UTF-8")))));
+        }
+        assertTrue("All messages are delivered", delivered.await(30, TimeUnit.SECONDS));
+        pipeline.close();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Messages with the same key are delivered in order", "first" + i, first.get(i));
+            assertEquals("Messages with the same key are delivered in order", "second" + i, second.get(i));
+        }
+    }
+
+    @Test
+    public void testListenerPipeline_CloseDeliversSubmitted() throws Exception {
+        log.info("STARTING TEST: [LISTENER_PIPELINE_CLOSE]");
+        setupBroadcaster(false, false);
+
+        Properties props = new Properties();
+        props.setProperty(ListenerPipeline.WORKER_THREADS, "2");
+        props.setProperty(ListenerPipeline.MAX_IN_FLIGHT, "100");
+        final List<String> received = Collections.synchronizedList(Lists.<String>newArrayList());
+        ListenerPipeline pipeline = new ListenerPipeline(broadcaster, new Receiver() {
+            @Override
+            public void receive(String topic, SecureMessage message) throws IOException {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                received.add(new String(message.getContent(), "UTF-8"));
+            }
+        }, props);
+
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit("topic", i % 2, ThriftUtils.serialize(new SecureMessage(new Visibility().setFormalVisibility("U"), ByteBuffer.wrap(("message" + i).getBytes("UTF-8")))));
+        }
+        pipeline.close();
+
+        assertEquals("Messages submitted before close are delivered", 100, received.size());
+    }
+
     @Test(expected = RuntimeException.class)
     public void test_unregisteredTopic() throws Exception { 
         log.info("STARTING TEST: [UNREGISTERED_TOPIC]");
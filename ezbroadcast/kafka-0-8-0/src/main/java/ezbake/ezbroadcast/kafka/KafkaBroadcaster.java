@@ -20,8 +20,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import ezbake.ezbroadcast.core.EzBroadcaster;
+import ezbake.ezbroadcast.core.ListenerPipeline;
 import ezbake.ezbroadcast.core.Receiver;
-import ezbake.ezbroadcast.core.thrift.SecureMessage;
 import ezbakehelpers.ezconfigurationhelpers.kafka.KafkaConfigurationHelper;
 import kafka.consumer.*;
 import kafka.javaapi.consumer.ConsumerConnector;
@@ -35,8 +35,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
     private static Logger logger = LoggerFactory.getLogger(KafkaBroadcaster.class);
@@ -49,6 +51,19 @@ public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
     private static final String ZOOKEEPERS = "zookeeper.connect";
     private static final String ZOOKEEPER_SESSION_TIMEOUT = "zookeeper.connection.timeout.ms";
     private static final String AUTO_OFFSET_RESET = "auto.offset.reset";
+    private static final String AUTO_COMMIT_ENABLE = "auto.commit.enable";
+    private static final String CONSUMER_TIMEOUT = "consumer.timeout.ms";
+
+    /**
+     * Number of messages received through {@link #receive(String)} after which offsets are committed.
+     */
+    public static final String COMMIT_BATCH_SIZE_PROP = "broadcaster.kafka.commit.batch.size";
+    private static final int DEFAULT_COMMIT_BATCH_SIZE = 100;
+
+    /**
+     * How long a receive consumer waits for a message before checking its deadline.
+     */
+    private static final long POLL_INTERVAL_MS = 100;
 
     private Properties localProps;
 
@@ -57,11 +72,13 @@ public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
     private Set<String> topicsToListenTo;
     private Set<String> broadcastTopics;
 
-    // Cache the last topic that was polled
-    private boolean singleTopicConnector = false;
-    private String topicCache;
-    private ConsumerConnector connector;
+    // Long-lived consumers used by receive, one per topic. Each topic needs its own connector since a connector can
+    // only create message streams once.
+    private Map<String, TopicConsumer> receiveConsumers;
+    private int commitBatchSize;
     private ExecutorService executor;
+    private ConsumerConnector listenConnector;
+    private ListenerPipeline pipeline;
 
     @Override
     protected void prepare(Properties props, String groupId) {
@@ -83,7 +100,9 @@ public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
         ProducerConfig producerConfig = new ProducerConfig(localProps);
         producer = new Producer<>(producerConfig);
 
-        topicCache = "";
+        commitBatchSize = Integer.parseInt(
+                props.getProperty(COMMIT_BATCH_SIZE_PROP, Integer.toString(DEFAULT_COMMIT_BATCH_SIZE)));
+        receiveConsumers = new ConcurrentHashMap<>();
         broadcastTopics = Sets.newHashSet();
         topicsToListenTo = Sets.newHashSet();
     }
@@ -98,78 +117,82 @@ public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
     }
 
     @Override
-    protected Optional<byte[]> receiveImpl(String topic) throws IOException {
+    protected void broadcastImpl(String topic, List<byte[]> payloads) throws IOException {
         Preconditions.checkArgument(topic != null, "topic cannot be null");
-        Preconditions.checkState(topicsToListenTo.contains(topic),
-                "You must subscribe to '" + topic + "' before attempting to listen to it");
-        Optional<byte[]> result = Optional.absent();
-
-        // Initialize a new connector if the topic has changed. Zookeeper becomes unhappy if one connector attempts
-        // to poll multiple topics. The overhead associated with opening a new connector is pretty minimal.
-        if (!topicCache.equals(topic) || !singleTopicConnector) {
-            logger.info("Re-initializing consumer connector for new topic");
-            if (connector != null) {
-                connector.shutdown();
-            }
-            // Initialize the Consumer
-            ConsumerConfig consumerConfig = new ConsumerConfig(localProps);
-            connector = Consumer.createJavaConsumerConnector(consumerConfig);
-            topicCache = topic;
-            singleTopicConnector = true;
+        Preconditions.checkState(broadcastTopics.contains(topic), "'" + topic + "' must be registered before broadcasting");
+
+        List<KeyedMessage<byte[], byte[]>> data = Lists.newArrayListWithCapacity(payloads.size());
+        for (byte[] payload : payloads) {
+            data.add(new KeyedMessage<byte[], byte[]>(topic, payload));
         }
+        producer.send(data);
+    }
 
-        try {
-            // Create stream from the given topic, using only one thread since we are only consuming one message.
+    @Override
+    protected Optional<byte[]> receiveImpl(String topic) throws IOException {
+        List<byte[]> messages = getReceiveConsumer(topic).poll(1, -1);
+        return messages.isEmpty() ? Optional.<byte[]>absent() : Optional.of(messages.get(0));
+    }
 
-            Map<String, List<KafkaStream<byte[], byte[]>>> topicMap = connector.createMessageStreams(ImmutableMap.of(topic, 1));
-            List<KafkaStream<byte[], byte[]>> streams = topicMap.get(topic);
+    @Override
+    protected List<byte[]> receiveImpl(String topic, int maxMessages, long timeoutMillis) throws IOException {
+        TopicConsumer consumer = getReceiveConsumer(topic);
+        List<byte[]> messages = consumer.poll(maxMessages, timeoutMillis);
+        consumer.commit();
+        return messages;
+    }
 
-            if (streams.size() > 0) {
-                KafkaStream<byte[], byte[]> stream = streams.get(0);
-                ConsumerIterator<byte[], byte[]> it = stream.iterator();
-                if (it.hasNext()) {
-                    MessageAndMetadata<byte[], byte[]> message = it.next();
+    private TopicConsumer getReceiveConsumer(String topic) {
+        Preconditions.checkArgument(topic != null, "topic cannot be null");
+        Preconditions.checkState(topicsToListenTo.contains(topic),
+                "You must subscribe to '" + topic + "' before attempting to listen to it");
 
-                    byte[] bytes = message.message();
-                    result = Optional.of(bytes);
+        TopicConsumer consumer = receiveConsumers.get(topic);
+        if (consumer == null) {
+            synchronized (receiveConsumers) {
+                consumer = receiveConsumers.get(topic);
+                if (consumer == null) {
+                    logger.info("Initializing consumer connector for topic {}", topic);
+                    Properties consumerProps = new Properties();
+                    consumerProps.putAll(localProps);
+                    consumerProps.put(AUTO_COMMIT_ENABLE, "false");
+                    consumerProps.put(CONSUMER_TIMEOUT, Long.toString(POLL_INTERVAL_MS));
+                    consumer = new TopicConsumer(topic, new ConsumerConfig(consumerProps), commitBatchSize);
+                    receiveConsumers.put(topic, consumer);
                 }
             }
-        } catch (ConsumerTimeoutException e) {
-            // There was no message on the queue, just return the absent object
-            logger.info(String.format("Could not retrieve message from topic %s in given timeout.", topic));
         }
-
-        return result;
+        return consumer;
     }
 
     @Override
     public void startListening(final Receiver receiver) {
         Preconditions.checkState(!topicsToListenTo.isEmpty(), "Not subscribed to any topics. Please subscribe to topics before attempting to listen");
-        List<Runnable> runnables = Lists.newArrayList();
-        // Initialize the Consumer
+        // Initialize the Consumer. Message streams can only be created once per connector, so all topics are
+        // requested together.
         ConsumerConfig consumerConfig = new ConsumerConfig(localProps);
-        ConsumerConnector consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
+        listenConnector = Consumer.createJavaConsumerConnector(consumerConfig);
+        Map<String, Integer> topicCountMap = new HashMap<>();
+        for (String topic : topicsToListenTo) {
+            topicCountMap.put(topic, 1);
+        }
+        Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = listenConnector.createMessageStreams(topicCountMap);
 
+        // Each topic's stream is read by its own thread, while decryption and delivery happen in the pipeline.
+        // Messages are ordered by partition, which is all Kafka guarantees.
+        pipeline = createListenerPipeline(receiver);
+        List<Runnable> runnables = Lists.newArrayList();
         for (final String topic : topicsToListenTo) {
-            Map<String, Integer> topicCountMap = new HashMap<>();
-            topicCountMap.put(topic, new Integer(1));
-            Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = consumerConnector.createMessageStreams(topicCountMap);
-            final KafkaStream<byte[], byte[]> stream =  consumerMap.get(topic).get(0);
+            final KafkaStream<byte[], byte[]> stream = consumerMap.get(topic).get(0);
             runnables.add(new Runnable() {
                 @Override
                 public void run() {
-                    for(MessageAndMetadata<byte[], byte[]> msgAndMetadata : stream) {
-                        try {
-                            Optional<SecureMessage> payloadToReturn = extractMessage(Optional.of(msgAndMetadata.message()));
-                            if (isProduction && payloadToReturn.isPresent()) {
-                                payloadToReturn = decrypt(topic, payloadToReturn.get());
-                            }
-                            if (payloadToReturn.isPresent()) {
-                                receiver.receive(topic, payloadToReturn.get());
-                            }
-                        } catch (IOException e) {
-                            logger.error("Could not decrypt message", e);
+                    try {
+                        for (MessageAndMetadata<byte[], byte[]> msgAndMetadata : stream) {
+                            pipeline.submit(topic, msgAndMetadata.partition(), msgAndMetadata.message());
                         }
+                    } catch (InterruptedException e) {
+                        logger.debug("Stopped listening to topic {}", topic);
                     }
                 }
             });
@@ -196,6 +219,10 @@ public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
     public void unsubscribe(String topic) {
         Preconditions.checkArgument(topic != null, "topic cannot be null");
         topicsToListenTo.remove(topic);
+        TopicConsumer consumer = receiveConsumers.remove(topic);
+        if (consumer != null) {
+            consumer.shutdown();
+        }
     }
 
     @Override
@@ -205,14 +232,89 @@ public class KafkaBroadcaster extends EzBroadcaster implements Serializable {
     }
 
     public void close() throws IOException {
+        // Deliver every fetched message before the connector commits its offsets on shutdown
+        stopListening(executor, pipeline);
         super.close();
-        if (executor != null) {
-            executor.shutdownNow();
+        if (listenConnector != null) {
+            listenConnector.shutdown();
         }
         if (producer != null) {
             producer.close();
         }
-        if (connector != null) {
+        if (receiveConsumers != null) {
+            for (TopicConsumer consumer : receiveConsumers.values()) {
+                consumer.shutdown();
+            }
+            receiveConsumers.clear();
+        }
+    }
+
+    /**
+     * A consumer connector and stream for a single topic that stays open between receives. Offsets are committed
+     * explicitly, after each batch receive or after every commitBatchSize single receives, rather than on a timer.
+     */
+    private static class TopicConsumer {
+        private final String topic;
+        private final ConsumerConnector connector;
+        private final ConsumerIterator<byte[], byte[]> iterator;
+        private final int commitBatchSize;
+        private int uncommitted;
+
+        TopicConsumer(String topic, ConsumerConfig config, int commitBatchSize) {
+            this.topic = topic;
+            this.commitBatchSize = commitBatchSize;
+            connector = Consumer.createJavaConsumerConnector(config);
+            iterator = connector.createMessageStreams(ImmutableMap.of(topic, 1)).get(topic).get(0).iterator();
+        }
+
+        /**
+         * Take up to maxMessages messages from the stream.
+         *
+         * @param maxMessages the maximum number of messages to return
+         * @param timeoutMillis how long to wait for messages, or a negative number to wait until there is at least one
+         * @return the messages received, in order
+         */
+        synchronized List<byte[]> poll(int maxMessages, long timeoutMillis) {
+            List<byte[]> messages = Lists.newArrayListWithCapacity(Math.min(maxMessages, 1024));
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+            while (messages.size() < maxMessages) {
+                try {
+                    if (iterator.hasNext()) {
+                        messages.add(iterator.next().message());
+                        uncommitted++;
+                    }
+                } catch (ConsumerTimeoutException e) {
+                    // No message within the poll interval, the iterator can be used again after this. Return what
+                    // has arrived, otherwise keep waiting for the first message until the deadline
+                    if (!messages.isEmpty()) {
+                        break;
+                    }
+                }
+                if (timeoutMillis >= 0 && System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+
+            if (uncommitted >= commitBatchSize) {
+                commitLocked();
+            }
+            return messages;
+        }
+
+        synchronized void commit() {
+            commitLocked();
+        }
+
+        private void commitLocked() {
+            if (uncommitted > 0) {
+                connector.commitOffsets();
+                logger.debug("Committed {} messages on topic {}", uncommitted, topic);
+                uncommitted = 0;
+            }
+        }
+
+        synchronized void shutdown() {
+            commitLocked();
             connector.shutdown();
         }
     }
@@ -15,17 +15,22 @@
 package com.fourtwosix.redismq.consumer;
 
 import com.fourtwosix.redismq.utils.RedisMQUtils;
+import com.fourtwosix.redismq.utils.RedisScript;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Consumer class for use with Redis instance. Each topic corresponds to keys in Redis. The following
@@ -37,13 +42,51 @@ import java.util.List;
  *                                       to retrieve. This allows the consumer to replay all messages from a topic
  *                                       (if the user unsubscribes from the topic, their index returns to nil).
  *
- * With that key, it is easy to determine the next index to poll. Simply check the key against the current message
+ *      o <topic>:<groupId>:SIGNAL - A list that producers push to whenever they send to the topic. Consumers with
+ *                                   nothing to read block on it with BLPOP instead of polling. It never holds more
+ *                                   than one element, since one wake-up is enough to find every new message.
+ *      o <topic>:GROUPS - The set of group IDs consuming the topic, so producers know which groups to signal.
+ *      o <topic>:GROUPS:SEEN - A hash from group ID to the time a consumer in the group last polled the topic, which
+ *                              {@link com.fourtwosix.redismq.retention.RedisTrimmer} uses to tell which groups are
+ *                              still active.
+ *
+ * With the index key, it is easy to determine the next index to poll. Simply check the key against the current message
  * index for the given topic, and if that index is higher than the group ID index for the topic (or the group ID index
- * is nil) then increment the group ID index and get the value from the corresponding message key.
+ * is nil) then increment the group ID index and get the value from the corresponding message key. This is done in a
+ * single Lua script so that claiming a message is atomic and takes one round trip. The script reads the message key
+ * by building its name from the index, which only works against a standalone Redis server, not Redis Cluster.
  */
 public class RedisConsumer implements Closeable {
     private static Logger log = LoggerFactory.getLogger(RedisConsumer.class);
+
+    /**
+     * Claims the group's next message if there is one, returning its index and payload. The payload is missing if
+     * the message key no longer exists. If more messages are waiting after the claim, the group's signal is raised
+     * again so that another consumer in the group can take them. A group that has fallen behind messages removed by
+     * retention skips straight to the oldest retained message. Every call records when the group was last active,
+     * so that retention keeps the messages it still needs.
+     */
+    private static final RedisScript CLAIM = new RedisScript(
+            "redis.call('HSET', KEYS[5], ARGV[2], ARGV[3])\n" +
+            "local current = tonumber(redis.call('GET', KEYS[1]) or '0')\n" +
+            "local consumed = tonumber(redis.call('GET', KEYS[2]) or '0')\n" +
+            "local first = tonumber(redis.call('GET', KEYS[4]) or '1')\n" +
+            "if consumed < first - 1 then\n" +
+            "  consumed = first - 1\n" +
+            "  redis.call('SET', KEYS[2], string.format('%d', consumed))\n" +
+            "end\n" +
+            "if current <= consumed then return nil end\n" +
+            "consumed = redis.call('INCR', KEYS[2])\n" +
+            "if current > consumed then\n" +
+            "  redis.call('LPUSH', KEYS[3], '1')\n" +
+            "  redis.call('LTRIM', KEYS[3], 0, 0)\n" +
+            "end\n" +
+            "local payload = redis.call('GET', ARGV[1] .. string.format('%d', consumed))\n" +
+            "if payload then return {consumed, payload} end\n" +
+            "return {consumed}\n");
+
     private Jedis jedis;
+    private Set<String> registeredTopics = Sets.newHashSet();
     private String groupId;
     private int timeout;
 
@@ -79,56 +122,82 @@ public class RedisConsumer implements Closeable {
     }
 
     /**
-     * This method polls the given topic for a message. Optional.absent() is returned when no new message is found.
+     * This method polls the given topic for a message, waiting up to the consumer's timeout. Optional.absent() is
+     * returned when no new message is found.
      *
      * @param topic the topic to poll for a message
      * @return the retrieved message
      */
     public Optional<byte[]> poll(String topic) throws IOException {
+        return poll(topic, timeout);
+    }
+
+    /**
+     * This method polls the given topic for a message. Optional.absent() is returned when no new message is found.
+     * While there are no new messages the consumer blocks on the group's signal list rather than polling Redis, so
+     * the timeout is rounded up to whole seconds, the granularity of BLPOP. A timeout of zero only takes a message
+     * that is already waiting.
+     *
+     * @param topic the topic to poll for a message
+     * @param timeoutMillis how long to wait for a message, in milliseconds
+     * @return the retrieved message
+     */
+    public Optional<byte[]> poll(String topic, long timeoutMillis) throws IOException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(topic));
-        Optional<byte[]> result = Optional.absent();
-        String currentIndexKey = RedisMQUtils.getNextIndexForTopicKey(topic);
-
-        long endMillis = System.currentTimeMillis() + timeout;
-
-        // Continue to poll the queue until the timeout period ends
-        while (System.currentTimeMillis() < endMillis) {
-            // If the current index does not exist, then the topic does not exist
-            if (jedis.exists(currentIndexKey)) {
-                long currentIndex = Long.parseLong(RedisMQUtils.jedisGetString(jedis, currentIndexKey));
-                String consumerIndexKey = RedisMQUtils.getNextIndexForGroupIdKey(topic, groupId);
-
-                // Watch the consumer index to make sure that we don't increment twice when only looking for one
-                // message
-                jedis.watch(consumerIndexKey);
-                long consumerIndex = 0;
-                if (jedis.exists(consumerIndexKey)) {
-                    consumerIndex = Long.parseLong(RedisMQUtils.jedisGetString(jedis, consumerIndexKey));
-                }
+        registerGroup(topic);
+
+        List<byte[]> keys = Lists.newArrayList(
+                RedisMQUtils.getNextIndexForTopicKey(topic).getBytes(),
+                RedisMQUtils.getNextIndexForGroupIdKey(topic, groupId).getBytes(),
+                RedisMQUtils.getSignalKey(topic, groupId).getBytes(),
+                RedisMQUtils.getFirstIndexKey(topic).getBytes(),
+                RedisMQUtils.getGroupsSeenKey(topic).getBytes());
+        byte[] messageKeyPrefix = RedisMQUtils.getMessageKeyPrefix(topic).getBytes();
+        byte[] group = groupId.getBytes();
+        String signalKey = RedisMQUtils.getSignalKey(topic, groupId);
+        long endMillis = System.currentTimeMillis() + timeoutMillis;
+
+        while (true) {
+            List<?> claimed;
+            try {
+                List<byte[]> args = Lists.newArrayList(
+                        messageKeyPrefix, group, Long.toString(System.currentTimeMillis()).getBytes());
+                claimed = (List<?>)CLAIM.eval(jedis, keys, args);
+            } catch (JedisConnectionException e) {
+                throw new IOException("Could not poll topic " + topic, e);
+            }
 
-                // Check to make sure the current message index is higher than the group index, signifying that there
-                // are new messages on the queue
-                if (currentIndex > consumerIndex) {
-                    Transaction t = jedis.multi();
-                    t.incr(consumerIndexKey);
-                    List<Object> execResult = t.exec();
-
-                    // If the transaction succeeded it means that the key was incremented and we can consume a message
-                    if (execResult != null && execResult.size() > 0) {
-                        consumerIndex = (Long)execResult.get(0);
-                        String key = RedisMQUtils.getMessageKey(topic, Long.toString(consumerIndex));
-                        byte[] keyBytes = key.getBytes();
-                        if (jedis.exists(keyBytes)) {
-                            byte[] payload = RedisMQUtils.jedisGetBytes(jedis, keyBytes);
-                            result = Optional.of(payload);
-                            break;
-                        }
-                    }
+            if (claimed != null) {
+                if (claimed.size() > 1) {
+                    return Optional.of((byte[])claimed.get(1));
                 }
+                // The claimed message no longer exists, move on to the next one
+                log.debug("Message {} on topic {} no longer exists", claimed.get(0), topic);
+                continue;
+            }
+
+            long remaining = endMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return Optional.absent();
+            }
+
+            // Wait until a producer signals that there are new messages, then try to claim one again
+            int seconds = (int)TimeUnit.MILLISECONDS.toSeconds(remaining + TimeUnit.SECONDS.toMillis(1) - 1);
+            try {
+                jedis.blpop(seconds, signalKey);
+            } catch (JedisConnectionException e) {
+                throw new IOException("Could not wait for messages on topic " + topic, e);
             }
         }
+    }
 
-        return result;
+    /**
+     * Record that this consumer's group reads the topic, so that producers signal the group when they send to it.
+     */
+    private void registerGroup(String topic) {
+        if (registeredTopics.add(topic)) {
+            jedis.sadd(RedisMQUtils.getGroupsKey(topic), groupId);
+        }
     }
 
     /**
@@ -140,7 +209,7 @@ public class RedisConsumer implements Closeable {
     public void unsubscribeFromTopic(String topic) {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(topic));
         String topicKey = RedisMQUtils.getNextIndexForGroupIdKey(topic, groupId);
-        jedis.del(topicKey);
+        jedis.del(topicKey, RedisMQUtils.getSignalKey(topic, groupId));
     }
 
     @Override
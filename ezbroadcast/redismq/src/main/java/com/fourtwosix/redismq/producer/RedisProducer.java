@@ -16,18 +16,28 @@ package com.fourtwosix.redismq.producer;
 
 import com.fourtwosix.redismq.message.RedisMessage;
 import com.fourtwosix.redismq.utils.RedisMQUtils;
+import com.fourtwosix.redismq.utils.RedisScript;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Response;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Producer class for use with Redis instance. Each topic corresponds to several keys in Redis. The following
@@ -38,40 +48,116 @@ import java.util.List;
  *      o <topic>:NEXT_INDEX - This key represents the current message ID for this topic. For instance, a value of
  *                             4 would denote that <topic>:MESSAGES:4 exists. By keeping track of this, we can simply
  *                             increment this key and generate a new key for storing the next message in the queue.
+ *      o <topic>:FIRST_INDEX - The index of the oldest message that has not been removed by retention.
+ *      o <topic>:RETAINED - A list with the size and send time of each retained message, oldest first. It is only
+ *                           kept for topics with retention enabled (see {@link #setRetentionEnabled}). Messages sent
+ *                           without retention have no entry, so the list covers the newest messages only.
+ *      o <topic>:RETAINED:BYTES - The total size of the messages in the retained list.
  *
- * With those two facts in mind, a message in RedisMQ is sent simply by obtaining the next available message key,
- * and setting that key to the value of the given message.
+ * With those two facts in mind, a message in RedisMQ is sent simply by incrementing the topic's index and setting the
+ * new message key to the value of the given message. Both happen in one Lua script on the server, which also pushes to
+ * the signal list of every group consuming the topic (see {@link com.fourtwosix.redismq.consumer.RedisConsumer}) to
+ * wake any consumers waiting for messages.
+ *
+ * Connections are borrowed from a pool for each send, so a producer can be shared between threads. The send script
+ * writes message and signal keys it derives itself, so a standalone Redis server is required (see
+ * {@link com.fourtwosix.redismq.utils.RedisScript}).
  */
 public class RedisProducer implements Closeable {
     private static Logger log = LoggerFactory.getLogger(RedisProducer.class);
-    private Jedis jedis;
+
+    /**
+     * Largest number of messages written by one run of the send script, so a large batch does not block the server
+     * for long. Larger batches are split into several runs, which are pipelined.
+     */
+    private static final int MAX_MESSAGES_PER_SCRIPT = 1000;
+
+    /**
+     * Appends the payloads in ARGV[6..] to a topic. The topic index is advanced and the payloads written in one step,
+     * so concurrent producers never contend. If ARGV[5] is 1 the size and send time of each payload are recorded for
+     * retention (see {@link com.fourtwosix.redismq.retention.RedisTrimmer}). Otherwise any recorded sizes are dropped,
+     * so that the retained list always describes the newest messages. Then the signal list of every group consuming
+     * the topic is raised. Returns the new topic index.
+     *
+     * The first index starts at 1 even on a topic that already had messages before retention was added, so that
+     * consumers still read those messages. They have no retention entry, which the trimmer allows for.
+     */
+    private static final RedisScript SEND = new RedisScript(
+            "local count = #ARGV - 5\n" +
+            "local retain = ARGV[5] == '1'\n" +
+            "local last = redis.call('INCRBY', KEYS[1], count)\n" +
+            "redis.call('SETNX', KEYS[3], '1')\n" +
+            "local bytes = 0\n" +
+            "for i = 1, count do\n" +
+            "  local payload = ARGV[i + 5]\n" +
+            "  redis.call('SET', ARGV[1] .. string.format('%d', last - count + i), payload)\n" +
+            "  if retain then\n" +
+            "    redis.call('RPUSH', KEYS[5], #payload .. ':' .. ARGV[4])\n" +
+            "    bytes = bytes + #payload\n" +
+            "  end\n" +
+            "end\n" +
+            "if retain then\n" +
+            "  redis.call('INCRBY', KEYS[4], bytes)\n" +
+            "else\n" +
+            "  redis.call('DEL', KEYS[4], KEYS[5])\n" +
+            "end\n" +
+            "for _, group in ipairs(redis.call('SMEMBERS', KEYS[2])) do\n" +
+            "  local signal = ARGV[2] .. group .. ARGV[3]\n" +
+            "  redis.call('LPUSH', signal, '1')\n" +
+            "  redis.call('LTRIM', signal, 0, 0)\n" +
+            "end\n" +
+            "return last\n");
+
+    private final JedisPool pool;
+    private final boolean ownsPool;
+    private final Set<String> retainedTopics =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public RedisProducer() {
         this(RedisMQUtils.getDefaultHostname(), RedisMQUtils.getDefaultPort());
     }
 
     public RedisProducer(String hostname, int port) {
+        this(createPool(hostname, port), true);
+    }
+
+    /**
+     * Create a producer that borrows connections from a pool. The pool is not closed with the producer.
+     *
+     * @param pool the connection pool
+     */
+    public RedisProducer(JedisPool pool) {
+        this(pool, false);
+    }
+
+    private RedisProducer(JedisPool pool, boolean ownsPool) {
+        this.pool = Preconditions.checkNotNull(pool, "pool cannot be null");
+        this.ownsPool = ownsPool;
+    }
+
+    private static JedisPool createPool(String hostname, int port) {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(hostname), "hostname cannot be null or empty!");
-        jedis = new Jedis(hostname, port);
-
-        short tries = 0;
-        while(!jedis.isConnected() && tries < 3) {
-            log.info("----- Retrying redis producer connection in 3s -----");
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException e) {
-                // It's a sleep I don't care
-            }
-            jedis.connect();
-            tries++;
-        }
+        JedisPool pool = new JedisPool(new JedisPoolConfig(), hostname, port);
+        log.info("----- Created producer connection pool for {}:{} -----", hostname, port);
+        return pool;
+    }
 
-        if(!jedis.isConnected()) {
-            throw new RuntimeException("Unable to connect to Redis after 4 tries. If you're sure it's " +
-                    "running something bad is probably happening.");
+    /**
+     * Set whether the size and send time of the messages sent on a topic are recorded, which the
+     * {@link com.fourtwosix.redismq.retention.RedisTrimmer} needs to apply age and size limits. Recording is off by
+     * default, since the records grow with every message until they are trimmed. Every producer on a topic should use
+     * the same setting, because sending without recording drops the records of earlier messages.
+     *
+     * @param topic the topic
+     * @param enabled whether to record the messages sent on the topic
+     */
+    public void setRetentionEnabled(String topic, boolean enabled) {
+        Preconditions.checkNotNull(topic);
+        if (enabled) {
+            retainedTopics.add(topic);
+        } else {
+            retainedTopics.remove(topic);
         }
-
-        log.info("----- Succesfully connected producer to {}:{} -----", hostname, port,  jedis.isConnected());
     }
 
     /**
@@ -81,37 +167,95 @@ public class RedisProducer implements Closeable {
      */
     public void send(RedisMessage message) throws IOException {
         Preconditions.checkNotNull(message);
-        List<Object> result = null;
-        int tries = 0;
-        String topic = message.getTopic();
-        String nextIndexKey = RedisMQUtils.getNextIndexForTopicKey(topic);
-        long nextIndex = 1;
-
-        // Only try sending three times. The result object will not be null if the exec() command
-        // succeeds.
-        while ((result == null || result.size() == 0) && tries < 3) {
-            if (jedis.exists(nextIndexKey)) {
-                nextIndex = Long.parseLong(RedisMQUtils.jedisGetString(jedis, nextIndexKey)) + 1;
+        Jedis jedis = pool.getResource();
+        try {
+            SEND.eval(jedis, keys(message.getTopic()), args(message.getTopic(),
+                    Collections.singletonList(message.getPayload())));
+            pool.returnResource(jedis);
+        } catch (JedisConnectionException e) {
+            pool.returnBrokenResource(jedis);
+            throw new IOException("Could not send message on topic " + message.getTopic(), e);
+        } catch (RuntimeException e) {
+            pool.returnResource(jedis);
+            throw e;
+        }
+    }
+
+    /**
+     * This method pushes a batch of RedisMessages onto their topics, in order. Each topic's messages are appended by
+     * atomic script runs of up to 1000 messages, and all of the runs are pipelined, so the
+     * whole batch takes a single round trip.
+     *
+     * @param messages messages to push onto RedisMQ
+     */
+    public void send(List<RedisMessage> messages) throws IOException {
+        Preconditions.checkNotNull(messages);
+        Map<String, List<byte[]>> payloadsByTopic = new LinkedHashMap<>();
+        for (RedisMessage message : messages) {
+            List<byte[]> payloads = payloadsByTopic.get(message.getTopic());
+            if (payloads == null) {
+                payloads = new ArrayList<>();
+                payloadsByTopic.put(message.getTopic(), payloads);
             }
-            String messageKey = RedisMQUtils.getMessageKey(topic, Long.toString(nextIndex));
-
-            // If the nextIndexKey or messageKey change then the transaction should fail
-            jedis.watch(nextIndexKey, messageKey);
-            Transaction t = jedis.multi();
-            t.incr(nextIndexKey);
-            t.set(messageKey.getBytes(), message.getPayload());
-            result = t.exec();
-            tries++;
+            payloads.add(message.getPayload());
+        }
+        if (payloadsByTopic.isEmpty()) {
+            return;
         }
 
-        if (result == null || result.size() == 0) {
-            throw new RuntimeException("Attempted to send 3 times. Could not obtain lock.");
+        Jedis jedis = pool.getResource();
+        List<Object> replies;
+        try {
+            for (Map.Entry<String, List<byte[]>> entry : payloadsByTopic.entrySet()) {
+                List<byte[]> keys = keys(entry.getKey());
+                for (List<byte[]> chunk : Lists.partition(entry.getValue(), MAX_MESSAGES_PER_SCRIPT)) {
+                    SEND.pipeline(jedis, keys, args(entry.getKey(), chunk));
+                }
+            }
+            replies = jedis.getClient().getAll();
+            pool.returnResource(jedis);
+        } catch (JedisConnectionException e) {
+            pool.returnBrokenResource(jedis);
+            throw new IOException("Could not send batch of " + messages.size() + " messages", e);
+        } catch (RuntimeException e) {
+            // Pipelined replies may still be unread, so the connection can't be reused
+            pool.returnBrokenResource(jedis);
+            throw e;
+        }
+
+        for (Object reply : replies) {
+            if (reply instanceof JedisDataException) {
+                throw new IOException("Could not send batch of " + messages.size() + " messages",
+                        (JedisDataException)reply);
+            }
         }
     }
 
+    private static List<byte[]> keys(String topic) {
+        return Lists.newArrayList(
+                RedisMQUtils.getNextIndexForTopicKey(topic).getBytes(),
+                RedisMQUtils.getGroupsKey(topic).getBytes(),
+                RedisMQUtils.getFirstIndexKey(topic).getBytes(),
+                RedisMQUtils.getRetainedBytesKey(topic).getBytes(),
+                RedisMQUtils.getRetainedKey(topic).getBytes());
+    }
+
+    private List<byte[]> args(String topic, List<byte[]> payloads) {
+        List<byte[]> args = Lists.newArrayListWithCapacity(payloads.size() + 5);
+        args.add(RedisMQUtils.getMessageKeyPrefix(topic).getBytes());
+        args.add(RedisMQUtils.getGroupKeyPrefix(topic).getBytes());
+        args.add(RedisMQUtils.getSignalKeySuffix().getBytes());
+        args.add(Long.toString(System.currentTimeMillis()).getBytes());
+        args.add((retainedTopics.contains(topic) ? "1" : "0").getBytes());
+        args.addAll(payloads);
+        return args;
+    }
+
     @Override
     public void close() throws IOException {
-        String rc = jedis.quit();
-        log.info("Closed producer with return code of " + rc);
+        if (ownsPool) {
+            pool.destroy();
+            log.info("Closed producer connection pool");
+        }
     }
 }
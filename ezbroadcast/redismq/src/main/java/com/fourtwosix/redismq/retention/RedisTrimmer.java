@@ -0,0 +1,299 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.fourtwosix.redismq.retention;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fourtwosix.redismq.utils.RedisMQUtils;
+import com.fourtwosix.redismq.utils.RedisScript;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes old messages from RedisMQ topics according to each topic's {@link RetentionPolicy}.
+ *
+ * Messages are removed oldest first, and never beyond the oldest message that an active consumer group has not read
+ * yet. A group is active if one of its consumers has polled the topic within the configured inactivity timeout, so a
+ * group that stops consuming for good does not keep messages forever. Groups that come back after they were inactive
+ * continue from the oldest retained message.
+ *
+ * For each topic the trimmer publishes the retained message count and size as gauges, and the number of removed
+ * messages as a counter, named {@code redismq.<topic>.retained.messages}, {@code redismq.<topic>.retained.bytes} and
+ * {@code redismq.<topic>.trimmed.messages}. The gauges are updated each time the topic is trimmed.
+ *
+ * Like the other RedisMQ scripts, the trim script derives group and message key names itself and needs a standalone
+ * Redis server.
+ */
+public class RedisTrimmer implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(RedisTrimmer.class);
+
+    /**
+     * Largest number of messages removed by one run of the trim script, so trimming a long backlog does not block
+     * the server for long.
+     */
+    private static final int MAX_MESSAGES_PER_SCRIPT = 1000;
+
+    /**
+     * Removes the oldest messages on a topic while they exceed the limits in ARGV[4..6] and every active group has
+     * read them. Returns the number of messages removed and the size and count of the messages retained.
+     *
+     * The retained list only covers the newest messages, from {@code last - LLEN + 1} on. Older messages were sent
+     * before retention was added, so their size is not counted in the retained bytes and their send time is unknown.
+     * They are treated as older than any age limit, and are removed without touching the list.
+     */
+    private static final RedisScript TRIM = new RedisScript(
+            "local last = tonumber(redis.call('GET', KEYS[1]) or '0')\n" +
+            "local first = tonumber(redis.call('GET', KEYS[4]) or '0')\n" +
+            "local bytes = tonumber(redis.call('GET', KEYS[5]) or '0')\n" +
+            "if first == 0 then return {0, bytes, 0} end\n" +
+            "local safe = last\n" +
+            "local activeSince = tonumber(ARGV[7])\n" +
+            "for _, group in ipairs(redis.call('SMEMBERS', KEYS[2])) do\n" +
+            "  local seen = redis.call('HGET', KEYS[3], group)\n" +
+            "  if not seen or tonumber(seen) >= activeSince then\n" +
+            "    local consumed = tonumber(redis.call('GET', ARGV[2] .. group .. ARGV[3]) or '0')\n" +
+            "    if consumed < safe then safe = consumed end\n" +
+            "  end\n" +
+            "end\n" +
+            "local maxMessages = tonumber(ARGV[4])\n" +
+            "local cutoff = tonumber(ARGV[5])\n" +
+            "local maxBytes = tonumber(ARGV[6])\n" +
+            "local limit = tonumber(ARGV[8])\n" +
+            "local trimmed = 0\n" +
+            "local tracked = last - redis.call('LLEN', KEYS[6]) + 1\n" +
+            "while first <= safe and trimmed < limit do\n" +
+            "  local size = 0\n" +
+            "  local sent = 0\n" +
+            "  if first >= tracked then\n" +
+            "    local retained = redis.call('LINDEX', KEYS[6], 0)\n" +
+            "    if not retained then break end\n" +
+            "    local separator = string.find(retained, ':', 1, true)\n" +
+            "    size = tonumber(string.sub(retained, 1, separator - 1))\n" +
+            "    sent = tonumber(string.sub(retained, separator + 1))\n" +
+            "  end\n" +
+            "  if not ((maxMessages > 0 and last - first + 1 > maxMessages) or (cutoff > 0 and sent < cutoff)\n" +
+            "      or (maxBytes > 0 and bytes > maxBytes)) then break end\n" +
+            "  redis.call('DEL', ARGV[1] .. string.format('%d', first))\n" +
+            "  if first >= tracked then redis.call('LPOP', KEYS[6]) end\n" +
+            "  bytes = bytes - size\n" +
+            "  first = first + 1\n" +
+            "  trimmed = trimmed + 1\n" +
+            "end\n" +
+            "if trimmed > 0 then\n" +
+            "  redis.call('SET', KEYS[4], string.format('%d', first))\n" +
+            "  redis.call('SET', KEYS[5], string.format('%d', bytes))\n" +
+            "end\n" +
+            "return {trimmed, bytes, last - first + 1}\n");
+
+    private final JedisPool pool;
+    private final MetricRegistry metrics;
+    private final long inactiveGroupMillis;
+    private final ConcurrentMap<String, TopicState> topics = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param pool the pool to borrow connections from
+     * @param metrics the registry to publish retention metrics to
+     * @param inactiveGroupMillis how long after a consumer group last polled a topic it stops holding messages back
+     */
+    public RedisTrimmer(JedisPool pool, MetricRegistry metrics, long inactiveGroupMillis) {
+        this.pool = Preconditions.checkNotNull(pool, "pool cannot be null");
+        this.metrics = Preconditions.checkNotNull(metrics, "metrics cannot be null");
+        this.inactiveGroupMillis = inactiveGroupMillis;
+    }
+
+    /**
+     * Start trimming messages on a topic, or change the topic's retention policy. A topic whose policy has no limits
+     * is not trimmed at all.
+     *
+     * @param topic the topic to trim
+     * @param policy the limits on the messages kept for the topic
+     */
+    public void addTopic(String topic, RetentionPolicy policy) {
+        if (!policy.isLimited()) {
+            removeTopic(topic);
+            return;
+        }
+        TopicState state = topics.get(topic);
+        if (state == null) {
+            TopicState newState = new TopicState(topic, policy);
+            state = topics.putIfAbsent(topic, newState);
+            if (state == null) {
+                newState.register();
+                return;
+            }
+        }
+        state.policy = policy;
+    }
+
+    /**
+     * Stop trimming messages on a topic.
+     *
+     * @param topic the topic to stop trimming
+     */
+    public void removeTopic(String topic) {
+        TopicState state = topics.remove(topic);
+        if (state != null) {
+            state.unregister();
+        }
+    }
+
+    /**
+     * Trim every topic periodically on a background thread.
+     *
+     * @param intervalMillis the time between trims
+     */
+    public synchronized void start(long intervalMillis) {
+        Preconditions.checkState(executor == null, "Trimmer has already been started");
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("redismq-trimmer-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                trimAll();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Trim every topic once.
+     */
+    public void trimAll() {
+        for (String topic : topics.keySet()) {
+            try {
+                trim(topic);
+            } catch (RuntimeException e) {
+                log.error("Could not trim topic {}", topic, e);
+            }
+        }
+    }
+
+    /**
+     * Trim a topic once, removing as many messages as its policy allows.
+     *
+     * @param topic the topic to trim
+     * @return the number of messages removed
+     */
+    public long trim(String topic) {
+        TopicState state = topics.get(topic);
+        Preconditions.checkArgument(state != null, "Topic " + topic + " is not being trimmed");
+        RetentionPolicy policy = state.policy;
+
+        long now = System.currentTimeMillis();
+        List<byte[]> keys = Lists.newArrayList(
+                RedisMQUtils.getNextIndexForTopicKey(topic).getBytes(),
+                RedisMQUtils.getGroupsKey(topic).getBytes(),
+                RedisMQUtils.getGroupsSeenKey(topic).getBytes(),
+                RedisMQUtils.getFirstIndexKey(topic).getBytes(),
+                RedisMQUtils.getRetainedBytesKey(topic).getBytes(),
+                RedisMQUtils.getRetainedKey(topic).getBytes());
+        List<byte[]> args = Lists.newArrayList(
+                RedisMQUtils.getMessageKeyPrefix(topic).getBytes(),
+                RedisMQUtils.getGroupKeyPrefix(topic).getBytes(),
+                RedisMQUtils.getNextIndexForGroupIdKeySuffix().getBytes(),
+                Long.toString(policy.getMaxMessages()).getBytes(),
+                Long.toString(policy.getMaxAgeMillis() > 0 ? now - policy.getMaxAgeMillis() : 0).getBytes(),
+                Long.toString(policy.getMaxBytes()).getBytes(),
+                Long.toString(now - inactiveGroupMillis).getBytes(),
+                Integer.toString(MAX_MESSAGES_PER_SCRIPT).getBytes());
+
+        long total = 0;
+        Jedis jedis = pool.getResource();
+        try {
+            long trimmed;
+            do {
+                List<?> result = (List<?>)TRIM.eval(jedis, keys, args);
+                trimmed = (Long)result.get(0);
+                state.retainedBytes = (Long)result.get(1);
+                state.retainedMessages = (Long)result.get(2);
+                total += trimmed;
+            } while (trimmed == MAX_MESSAGES_PER_SCRIPT);
+            pool.returnResource(jedis);
+        } catch (JedisConnectionException e) {
+            pool.returnBrokenResource(jedis);
+            throw e;
+        } catch (RuntimeException e) {
+            pool.returnResource(jedis);
+            throw e;
+        }
+
+        if (total > 0) {
+            state.trimmed.inc(total);
+            log.debug("Trimmed {} messages from topic {}", total, topic);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (String topic : topics.keySet()) {
+            removeTopic(topic);
+        }
+    }
+
+    private class TopicState {
+        private final String topic;
+        private final Counter trimmed = new Counter();
+        private volatile RetentionPolicy policy;
+        private volatile long retainedBytes;
+        private volatile long retainedMessages;
+
+        TopicState(String topic, RetentionPolicy policy) {
+            this.topic = topic;
+            this.policy = policy;
+        }
+
+        void register() {
+            metrics.register(MetricRegistry.name("redismq", topic, "retained", "bytes"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return retainedBytes;
+                }
+            });
+            metrics.register(MetricRegistry.name("redismq", topic, "retained", "messages"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return retainedMessages;
+                }
+            });
+            metrics.register(MetricRegistry.name("redismq", topic, "trimmed", "messages"), trimmed);
+        }
+
+        void unregister() {
+            metrics.remove(MetricRegistry.name("redismq", topic, "retained", "bytes"));
+            metrics.remove(MetricRegistry.name("redismq", topic, "retained", "messages"));
+            metrics.remove(MetricRegistry.name("redismq", topic, "trimmed", "messages"));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.fourtwosix.redismq.retention;
+
+/**
+ * Limits on the messages kept for a topic. A message is removed once any limit is exceeded, but only after every
+ * active consumer group has read it. A limit of zero means no limit.
+ */
+public class RetentionPolicy {
+    private final long maxMessages;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+
+    public RetentionPolicy(long maxMessages, long maxAgeMillis, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The maximum number of messages kept for the topic.
+     */
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * How long in milliseconds after it was sent a message is kept.
+     */
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * The maximum total size in bytes of the message payloads kept for the topic.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Whether the policy has any limit at all.
+     */
+    public boolean isLimited() {
+        return maxMessages > 0 || maxAgeMillis > 0 || maxBytes > 0;
+    }
+}
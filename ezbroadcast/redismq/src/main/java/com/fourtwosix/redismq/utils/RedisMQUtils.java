@@ -29,6 +29,12 @@ public class RedisMQUtils {
     private static final char SEPARATOR = ':';
     private static final String NEXT_INDEX = "nextIndex";
     private static final String MESSAGES = "messages";
+    private static final String GROUPS = "groups";
+    private static final String SIGNAL = "signal";
+    private static final String SEEN = "seen";
+    private static final String FIRST_INDEX = "firstIndex";
+    private static final String BYTES = "bytes";
+    private static final String RETAINED = "retained";
     private static final String DEFAULT_HOSTNAME = "localhost";
     private static final int DEFAULT_PORT = 6379;
     private static final int MAX_TRIES = 3;
@@ -45,6 +51,76 @@ public class RedisMQUtils {
         return getKey(topic, MESSAGES, index);
     }
 
+    /**
+     * Get the prefix that the message index is appended to to form a message key.
+     */
+    public static String getMessageKeyPrefix(String topic) {
+        return getKey(topic, MESSAGES, "");
+    }
+
+    /**
+     * Get the key of the set of group IDs that consume a topic.
+     */
+    public static String getGroupsKey(String topic) {
+        return getKey(topic, GROUPS);
+    }
+
+    /**
+     * Get the key of the hash from group ID to the time the group last polled a topic.
+     */
+    public static String getGroupsSeenKey(String topic) {
+        return getKey(topic, GROUPS, SEEN);
+    }
+
+    /**
+     * Get the key holding the index of the oldest message retained on a topic.
+     */
+    public static String getFirstIndexKey(String topic) {
+        return getKey(topic, FIRST_INDEX);
+    }
+
+    /**
+     * Get the key holding the total size of the messages retained on a topic.
+     */
+    public static String getRetainedBytesKey(String topic) {
+        return getKey(topic, RETAINED, BYTES);
+    }
+
+    /**
+     * Get the key of the list holding the size and send time of each message retained on a topic, oldest first.
+     */
+    public static String getRetainedKey(String topic) {
+        return getKey(topic, RETAINED);
+    }
+
+    /**
+     * Get the suffix that is appended to a group ID to form the group's index key.
+     */
+    public static String getNextIndexForGroupIdKeySuffix() {
+        return SEPARATOR + NEXT_INDEX;
+    }
+
+    /**
+     * Get the key of the list that wakes consumers in a group when messages are sent on a topic.
+     */
+    public static String getSignalKey(String topic, String groupId) {
+        return getKey(topic, groupId, SIGNAL);
+    }
+
+    /**
+     * Get the part of a group's signal and index keys that comes before the group ID.
+     */
+    public static String getGroupKeyPrefix(String topic) {
+        return topic + SEPARATOR;
+    }
+
+    /**
+     * Get the part of a signal key that comes after the group ID.
+     */
+    public static String getSignalKeySuffix() {
+        return SEPARATOR + SIGNAL;
+    }
+
     public static String getDefaultHostname() {
         return DEFAULT_HOSTNAME;
     }
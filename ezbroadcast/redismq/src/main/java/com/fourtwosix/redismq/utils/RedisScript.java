@@ -0,0 +1,81 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.fourtwosix.redismq.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.List;
+
+/**
+ * A Lua script run on the Redis server. Scripts are run by their SHA-1 digest so the script body is only sent the
+ * first time a server sees it, or again after the server's script cache has been flushed.
+ *
+ * The RedisMQ scripts build some key names inside Lua, such as message keys from a topic prefix and an index, rather
+ * than receiving every key in KEYS. This departs from the Redis scripting contract, so RedisMQ requires a standalone
+ * Redis server (optionally with replicas). It does not work with Redis Cluster, which routes scripts by their KEYS.
+ */
+public class RedisScript {
+    private final byte[] script;
+    private final byte[] sha;
+
+    public RedisScript(String script) {
+        this.script = script.getBytes(Charsets.UTF_8);
+        this.sha = Hashing.sha1().hashBytes(this.script).toString().getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Run the script.
+     *
+     * @param jedis the connection to run the script on
+     * @param keys the fixed keys the script accesses, available to it as KEYS
+     * @param args other arguments, available to the script as ARGV
+     * @return the script's reply. Integers are returned as Long, bulk strings as byte[] and tables as List
+     */
+    public Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    /**
+     * Queue a run of the script on a connection without waiting for the reply, so that several runs can be sent in
+     * one round trip. The replies are read, in order, with {@link redis.clients.jedis.Client#getAll()}. The script
+     * body is sent with each run since a missing script could not be retried without reordering the runs after it.
+     *
+     * @param jedis the connection to run the script on
+     * @param keys the fixed keys the script accesses, available to it as KEYS
+     * @param args other arguments, available to the script as ARGV
+     */
+    public void pipeline(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        byte[][] params = new byte[keys.size() + args.size()][];
+        int i = 0;
+        for (byte[] key : keys) {
+            params[i++] = key;
+        }
+        for (byte[] arg : args) {
+            params[i++] = arg;
+        }
+        jedis.getClient().eval(script, Protocol.toByteArray(keys.size()), params);
+    }
+}
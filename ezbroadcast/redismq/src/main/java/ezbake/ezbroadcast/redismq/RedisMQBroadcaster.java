@@ -14,18 +14,23 @@
 
 package ezbake.ezbroadcast.redismq;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fourtwosix.redismq.consumer.RedisConsumer;
 import com.fourtwosix.redismq.message.RedisMessage;
 import com.fourtwosix.redismq.producer.RedisProducer;
+import com.fourtwosix.redismq.retention.RedisTrimmer;
+import com.fourtwosix.redismq.retention.RetentionPolicy;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import ezbake.ezbroadcast.core.EzBroadcaster;
+import ezbake.ezbroadcast.core.ListenerPipeline;
 import ezbake.ezbroadcast.core.Receiver;
-import ezbake.ezbroadcast.core.thrift.SecureMessage;
 import ezbakehelpers.ezconfigurationhelpers.redis.RedisConfigurationHelper;
 import org.slf4j.Logger;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -34,19 +39,62 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
     private static Logger logger = org.slf4j.LoggerFactory.getLogger(RedisProducer.class);
     public static final String REDISMQ_TIMEOUT_MS_PROP = "broadcaster.redismq.timeout.ms";
 
+    /**
+     * Maximum number of connections the producer opens, which bounds the number of concurrent broadcasts.
+     */
+    public static final String REDISMQ_POOL_SIZE_PROP = "broadcaster.redismq.pool.size";
+    private static final int DEFAULT_POOL_SIZE = 8;
+
+    /**
+     * Maximum number of messages kept for each broadcast topic. Can be set for a single topic by appending
+     * {@code .<topic>}. Zero, the default, keeps any number of messages.
+     */
+    public static final String REDISMQ_RETENTION_MESSAGES_PROP = "broadcaster.redismq.retention.messages";
+
+    /**
+     * How long in milliseconds messages are kept after they are broadcast. Can be set for a single topic by appending
+     * {@code .<topic>}. Zero, the default, keeps messages regardless of age.
+     */
+    public static final String REDISMQ_RETENTION_MS_PROP = "broadcaster.redismq.retention.ms";
+
+    /**
+     * Maximum total size in bytes of the messages kept for each broadcast topic. Can be set for a single topic by
+     * appending {@code .<topic>}. Zero, the default, keeps messages regardless of size.
+     */
+    public static final String REDISMQ_RETENTION_BYTES_PROP = "broadcaster.redismq.retention.bytes";
+
+    /**
+     * How long in milliseconds after a consumer group last polled a topic it stops holding back the removal of
+     * messages it has not read.
+     */
+    public static final String REDISMQ_RETENTION_GROUP_INACTIVE_MS_PROP = "broadcaster.redismq.retention.group.inactive.ms";
+
+    /**
+     * Time in milliseconds between removals of old messages.
+     */
+    public static final String REDISMQ_RETENTION_INTERVAL_MS_PROP = "broadcaster.redismq.retention.interval.ms";
+
+    private static final long DEFAULT_GROUP_INACTIVE_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long DEFAULT_RETENTION_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private JedisPool pool;
     private RedisProducer producer;
     private RedisConsumer consumer;
+    private MetricRegistry metrics;
+    private RedisTrimmer trimmer;
 
     private Set<String> broadcastTopics;
     private Set<String> topicsToListenTo;
     private Properties props;
     private String groupId;
     private ExecutorService executor;
+    private ListenerPipeline pipeline;
 
     @Override
     protected void prepare(Properties props, String groupId) {
@@ -59,8 +107,19 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
         this.props = props;
         this.groupId = groupId;
 
-        // Initialize the Producer
-        producer = new RedisProducer(hostname, port);
+        // Initialize the Producer, which borrows a pooled connection for each send so it can be shared by threads
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(Integer.parseInt(
+                props.getProperty(REDISMQ_POOL_SIZE_PROP, Integer.toString(DEFAULT_POOL_SIZE))));
+        pool = new JedisPool(poolConfig, hostname, port);
+        producer = new RedisProducer(pool);
+
+        // Old messages on the topics this broadcaster sends to are removed in the background
+        metrics = new MetricRegistry();
+        trimmer = new RedisTrimmer(pool, metrics, Long.parseLong(props.getProperty(
+                REDISMQ_RETENTION_GROUP_INACTIVE_MS_PROP, Long.toString(DEFAULT_GROUP_INACTIVE_MS))));
+        trimmer.start(Long.parseLong(props.getProperty(
+                REDISMQ_RETENTION_INTERVAL_MS_PROP, Long.toString(DEFAULT_RETENTION_INTERVAL_MS))));
 
         // Initialize the Consumer
         consumer = new RedisConsumer(Integer.parseInt(timeout), groupId, hostname, port);
@@ -78,6 +137,18 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
         producer.send(data);
     }
 
+    @Override
+    protected void broadcastImpl(String topic, List<byte[]> payloads) throws IOException {
+        Preconditions.checkArgument(topic != null, "topic cannot be null");
+        Preconditions.checkState(broadcastTopics.contains(topic), "'" + topic + "' must be registered before broadcasting");
+        logger.debug("Preparing to send {} messages on '{}'", payloads.size(), topic);
+        List<RedisMessage> data = Lists.newArrayListWithCapacity(payloads.size());
+        for (byte[] payload : payloads) {
+            data.add(new RedisMessage(topic, payload));
+        }
+        producer.send(data);
+    }
+
     @Override
     protected Optional<byte[]> receiveImpl(String topic) throws IOException {
         Preconditions.checkArgument(topic != null, "topic cannot be null");
@@ -87,6 +158,24 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
         return result;
     }
 
+    @Override
+    protected List<byte[]> receiveImpl(String topic, int maxMessages, long timeoutMillis) throws IOException {
+        Preconditions.checkArgument(topic != null, "topic cannot be null");
+        Preconditions.checkState(topicsToListenTo.contains(topic), "You must subscribe to '" + topic + "' before attempting to listen to it");
+        List<byte[]> result = Lists.newArrayList();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (result.size() < maxMessages) {
+            // Wait for the first message until the deadline, then only take messages that are already waiting
+            long wait = result.isEmpty() ? Math.max(deadline - System.currentTimeMillis(), 0) : 0;
+            Optional<byte[]> message = consumer.poll(topic, wait);
+            if (!message.isPresent()) {
+                break;
+            }
+            result.add(message.get());
+        }
+        return result;
+    }
+
     @Override
     public void startListening(final Receiver receiver) {
         Preconditions.checkState(!topicsToListenTo.isEmpty(), "Not subscribed to any topics. Please subscribe to topics before attempting to listen");
@@ -95,6 +184,8 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
         String hostname = redisConfig.getRedisHost();
         int port = redisConfig.getRedisPort();
 
+        // Each topic is polled by its own thread, while decryption and delivery happen in the pipeline
+        pipeline = createListenerPipeline(receiver);
         List<Runnable> runnables = Lists.newArrayList();
 
         for (final String topic : topicsToListenTo) {
@@ -103,17 +194,17 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
             runnables.add(new Runnable() {
                 @Override
                 public void run() {
-                    while (true) {
+                    while (!Thread.currentThread().isInterrupted()) {
                         try {
-                            Optional<SecureMessage> payloadToReturn = extractMessage(rconsumer.poll(topic));
-                            if (isProduction && payloadToReturn.isPresent()) {
-                                payloadToReturn = decrypt(topic, payloadToReturn.get());
-                            }
-                            if (payloadToReturn.isPresent()) {
-                                receiver.receive(topic, payloadToReturn.get());
+                            Optional<byte[]> payload = rconsumer.poll(topic);
+                            if (payload.isPresent()) {
+                                pipeline.submit(topic, topic, payload.get());
                             }
                         } catch (IOException e) {
-                            logger.error("Could not decrypt message");
+                            logger.error("Could not poll message", e);
+                        } catch (InterruptedException e) {
+                            logger.debug("Stopped listening to topic {}", topic);
+                            return;
                         }
                     }
                 }
@@ -138,6 +229,10 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
         Preconditions.checkArgument(topic != null, "topic cannot be null");
         logger.info("Registered broadcast topic '{}'", topic);
         broadcastTopics.add(topic);
+        // Sizes and send times are only recorded, and the topic only trimmed, when it has a retention limit
+        RetentionPolicy policy = getRetentionPolicy(topic);
+        producer.setRetentionEnabled(topic, policy.isLimited());
+        trimmer.addTopic(topic, policy);
     }
 
     @Override
@@ -151,15 +246,39 @@ public class RedisMQBroadcaster extends EzBroadcaster implements Serializable {
     @Override
     public void unregister(String topic) {
         Preconditions.checkArgument(topic != null, "topic cannot be null");
-        broadcastTopics.remove(topic); 
+        broadcastTopics.remove(topic);
+        producer.setRetentionEnabled(topic, false);
+        trimmer.removeTopic(topic);
+    }
+
+    /**
+     * Get the metrics published by this broadcaster, which include the number and size of the messages retained on
+     * each registered broadcast topic.
+     *
+     * @return the broadcaster's metrics
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    private RetentionPolicy getRetentionPolicy(String topic) {
+        return new RetentionPolicy(
+                getRetentionLimit(REDISMQ_RETENTION_MESSAGES_PROP, topic),
+                getRetentionLimit(REDISMQ_RETENTION_MS_PROP, topic),
+                getRetentionLimit(REDISMQ_RETENTION_BYTES_PROP, topic));
+    }
+
+    private long getRetentionLimit(String prop, String topic) {
+        return Long.parseLong(props.getProperty(prop + "." + topic, props.getProperty(prop, "0")));
     }
 
     public void close() throws IOException {
+        // Fetched messages have already been claimed, so deliver them before disconnecting
+        stopListening(executor, pipeline);
         super.close();
+        trimmer.close();
         producer.close();
+        pool.destroy();
         consumer.close();
-        if (executor != null) {
-            executor.shutdownNow();
-        }
     }
 }
@@ -0,0 +1,145 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.fourtwosix.redismq.consumer;
+
+import com.fourtwosix.redismq.message.RedisMessage;
+import com.fourtwosix.redismq.producer.RedisProducer;
+import com.fourtwosix.redismq.utils.RedisMQUtils;
+import com.google.common.base.Optional;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RedisConsumerTest {
+    private static RedisServer server;
+    private static Jedis redis;
+    private static RedisProducer producer;
+    private static RedisConsumer consumer;
+    private static RedisConsumer sameGroupConsumer;
+    private static RedisConsumer otherGroupConsumer;
+
+    @Rule
+    public TestName name = new TestName();
+
+    private String topic;
+
+    @BeforeClass
+    public static void startRedis() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        server = new RedisServer(port);
+        server.start();
+        redis = new Jedis("localhost", port);
+        producer = new RedisProducer("localhost", port);
+        consumer = new RedisConsumer(1, "group", "localhost", port);
+        sameGroupConsumer = new RedisConsumer(1, "group", "localhost", port);
+        otherGroupConsumer = new RedisConsumer(1, "other", "localhost", port);
+    }
+
+    @AfterClass
+    public static void stopRedis() throws Exception {
+        consumer.close();
+        sameGroupConsumer.close();
+        otherGroupConsumer.close();
+        producer.close();
+        redis.quit();
+        server.stop();
+    }
+
+    @Before
+    public void setUp() {
+        // Each test uses its own topic, so the consumers register their groups on it again
+        topic = name.getMethodName();
+    }
+
+    @Test
+    public void testEveryGroupReadsEveryMessage() throws IOException {
+        send("1", "2");
+        assertEquals("1", poll(consumer));
+        assertEquals("1", poll(otherGroupConsumer));
+        assertEquals("2", poll(otherGroupConsumer));
+        assertEquals("2", poll(consumer));
+        assertFalse(consumer.poll(topic, 0).isPresent());
+        assertFalse(otherGroupConsumer.poll(topic, 0).isPresent());
+    }
+
+    @Test
+    public void testGroupSharesMessages() throws IOException {
+        send("1", "2", "3");
+        assertEquals("1", poll(consumer));
+        assertEquals("2", poll(sameGroupConsumer));
+        assertEquals("3", poll(consumer));
+        assertFalse(sameGroupConsumer.poll(topic, 0).isPresent());
+    }
+
+    @Test
+    public void testMissingMessageIsSkipped() throws IOException {
+        send("1", "2", "3");
+        redis.del(RedisMQUtils.getMessageKey(topic, "2"));
+        assertEquals("1", poll(consumer));
+        assertEquals("3", poll(consumer));
+        assertEquals("3", redis.get(RedisMQUtils.getNextIndexForGroupIdKey(topic, "group")));
+    }
+
+    @Test
+    public void testGroupBehindRetentionSkipsToFirstIndex() throws IOException {
+        send("1", "2", "3");
+        redis.set(RedisMQUtils.getFirstIndexKey(topic), "3");
+        assertEquals("3", poll(consumer));
+        assertFalse(consumer.poll(topic, 0).isPresent());
+    }
+
+    @Test
+    public void testClaimSignalsWaitingMessages() throws IOException {
+        String signal = RedisMQUtils.getSignalKey(topic, "group");
+        assertFalse(consumer.poll(topic, 0).isPresent());
+        send("1", "2");
+        assertEquals(1, (long)redis.llen(signal));
+
+        // Another consumer in the group is woken while messages are left after a claim
+        redis.del(signal);
+        assertEquals("1", poll(consumer));
+        assertEquals(1, (long)redis.llen(signal));
+        redis.del(signal);
+        assertEquals("2", poll(consumer));
+        assertFalse(redis.exists(signal));
+        assertTrue(redis.hexists(RedisMQUtils.getGroupsSeenKey(topic), "group"));
+    }
+
+    private void send(String... payloads) throws IOException {
+        for (String payload : payloads) {
+            producer.send(new RedisMessage(topic, payload.getBytes()));
+        }
+    }
+
+    private String poll(RedisConsumer from) throws IOException {
+        Optional<byte[]> message = from.poll(topic, 0);
+        assertTrue(message.isPresent());
+        return new String(message.get());
+    }
+}
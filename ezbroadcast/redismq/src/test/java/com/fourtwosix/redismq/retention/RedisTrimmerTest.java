@@ -0,0 +1,208 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.fourtwosix.redismq.retention;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fourtwosix.redismq.consumer.RedisConsumer;
+import com.fourtwosix.redismq.message.RedisMessage;
+import com.fourtwosix.redismq.producer.RedisProducer;
+import com.fourtwosix.redismq.utils.RedisMQUtils;
+import com.google.common.base.Optional;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class RedisTrimmerTest {
+    private static final String GROUP = "group";
+    private static final long INACTIVE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static RedisServer server;
+    private static int port;
+    private static JedisPool pool;
+    private static Jedis redis;
+    private static RedisConsumer consumer;
+
+    @Rule
+    public TestName name = new TestName();
+
+    private String topic;
+    private RedisProducer producer;
+    private MetricRegistry metrics;
+    private RedisTrimmer trimmer;
+
+    @BeforeClass
+    public static void startRedis() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        server = new RedisServer(port);
+        server.start();
+        pool = new JedisPool(new JedisPoolConfig(), "localhost", port);
+        redis = new Jedis("localhost", port);
+        consumer = new RedisConsumer(1, GROUP, "localhost", port);
+    }
+
+    @AfterClass
+    public static void stopRedis() throws Exception {
+        consumer.close();
+        redis.quit();
+        pool.destroy();
+        server.stop();
+    }
+
+    @Before
+    public void setUp() {
+        // Each test uses its own topic, so the consumer registers its group on it again
+        topic = name.getMethodName();
+        producer = new RedisProducer(pool);
+        producer.setRetentionEnabled(topic, true);
+        metrics = new MetricRegistry();
+        trimmer = new RedisTrimmer(pool, metrics, INACTIVE_MILLIS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        trimmer.close();
+        producer.close();
+    }
+
+    @Test
+    public void testUnlimitedTopicIsNotTrimmed() {
+        JedisPool unusedPool = mock(JedisPool.class);
+        RedisTrimmer unlimited = new RedisTrimmer(unusedPool, metrics, INACTIVE_MILLIS);
+        unlimited.addTopic(topic, new RetentionPolicy(0, 0, 0));
+        unlimited.trimAll();
+        assertTrue(metrics.getMetrics().isEmpty());
+
+        // Removing the limits from a trimmed topic stops trimming it
+        unlimited.addTopic(topic, new RetentionPolicy(1, 0, 0));
+        unlimited.addTopic(topic, new RetentionPolicy(0, 0, 0));
+        unlimited.trimAll();
+        assertTrue(metrics.getMetrics().isEmpty());
+        verify(unusedPool, never()).getResource();
+        unlimited.close();
+    }
+
+    @Test
+    public void testSendRecordsOnlyWithRetention() throws IOException {
+        producer.setRetentionEnabled(topic, false);
+        send("one", "two");
+        assertFalse(redis.exists(RedisMQUtils.getRetainedKey(topic)));
+        assertFalse(redis.exists(RedisMQUtils.getRetainedBytesKey(topic)));
+
+        producer.setRetentionEnabled(topic, true);
+        send("three", "four");
+        assertEquals(2, (long)redis.llen(RedisMQUtils.getRetainedKey(topic)));
+        assertEquals("9", redis.get(RedisMQUtils.getRetainedBytesKey(topic)));
+
+        // Records would no longer match the newest messages once one is sent without them, so they are dropped
+        producer.setRetentionEnabled(topic, false);
+        send("five");
+        assertFalse(redis.exists(RedisMQUtils.getRetainedKey(topic)));
+        assertFalse(redis.exists(RedisMQUtils.getRetainedBytesKey(topic)));
+    }
+
+    @Test
+    public void testMaxMessagesWaitsForActiveGroup() throws IOException {
+        assertFalse(consumer.poll(topic, 0).isPresent());
+        send("1", "2", "3", "4", "5");
+        trimmer.addTopic(topic, new RetentionPolicy(2, 0, 0));
+        assertEquals(0, trimmer.trim(topic));
+
+        assertEquals("1", poll());
+        assertEquals("2", poll());
+        assertEquals(2, trimmer.trim(topic));
+        assertEquals("3", redis.get(RedisMQUtils.getFirstIndexKey(topic)));
+        assertFalse(redis.exists(RedisMQUtils.getMessageKey(topic, "2")));
+        assertEquals("3", redis.get(RedisMQUtils.getRetainedBytesKey(topic)));
+        assertEquals(3L, metrics.getGauges().get("redismq." + topic + ".retained.messages").getValue());
+        assertEquals(2, metrics.getCounters().get("redismq." + topic + ".trimmed.messages").getCount());
+
+        assertEquals("3", poll());
+        assertEquals(1, trimmer.trim(topic));
+        assertEquals("4", poll());
+        assertEquals("5", poll());
+    }
+
+    @Test
+    public void testInactiveGroupDoesNotHoldMessages() throws IOException {
+        assertFalse(consumer.poll(topic, 0).isPresent());
+        send("1", "2", "3");
+        redis.hset(RedisMQUtils.getGroupsSeenKey(topic), GROUP, "0");
+        trimmer.addTopic(topic, new RetentionPolicy(1, 0, 0));
+        assertEquals(2, trimmer.trim(topic));
+
+        // The group comes back and continues from the oldest retained message
+        assertEquals("3", poll());
+        assertFalse(consumer.poll(topic, 0).isPresent());
+    }
+
+    @Test
+    public void testMaxBytes() throws IOException {
+        send("0123456789", "0123456789", "0123456789");
+        trimmer.addTopic(topic, new RetentionPolicy(0, 0, 15));
+        assertEquals(2, trimmer.trim(topic));
+        assertEquals("10", redis.get(RedisMQUtils.getRetainedBytesKey(topic)));
+        assertEquals(1, (long)redis.llen(RedisMQUtils.getRetainedKey(topic)));
+        assertEquals(10L, metrics.getGauges().get("redismq." + topic + ".retained.bytes").getValue());
+    }
+
+    @Test
+    public void testMaxAgeRemovesUnrecordedMessages() throws IOException {
+        producer.setRetentionEnabled(topic, false);
+        send("old", "old");
+        producer.setRetentionEnabled(topic, true);
+        send("new");
+
+        // Messages sent without retention have no send time, so they count as expired
+        trimmer.addTopic(topic, new RetentionPolicy(0, TimeUnit.HOURS.toMillis(1), 0));
+        assertEquals(2, trimmer.trim(topic));
+        assertEquals("3", redis.get(RedisMQUtils.getFirstIndexKey(topic)));
+        assertEquals(1, (long)redis.llen(RedisMQUtils.getRetainedKey(topic)));
+        assertEquals("3", redis.get(RedisMQUtils.getRetainedBytesKey(topic)));
+        assertEquals(0, trimmer.trim(topic));
+    }
+
+    private void send(String... payloads) throws IOException {
+        for (String payload : payloads) {
+            producer.send(new RedisMessage(topic, payload.getBytes()));
+        }
+    }
+
+    private String poll() throws IOException {
+        Optional<byte[]> message = consumer.poll(topic, 0);
+        assertTrue(message.isPresent());
+        return new String(message.get());
+    }
+}
@@ -27,6 +27,10 @@ public class EzBakeSecurityClientConfigurationHelper {
     public static final String USE_MOCK_KEY = "ezbake.security.client.use.mock";
     public static final String MOCK_USER_KEY = "ezbake.security.client.mock.user.dn";
     public static final String MOCK_TARGET_ID_KEY = "ezbake.security.client.mock.target.id";
+    public static final String VERIFY_STRICT_KEY = "ezbake.security.client.token.verify.strict";
+    public static final String VERIFIED_TOKEN_CACHE_SIZE_KEY = "ezbake.security.client.token.verify.cache.size";
+
+    public static final int DEFAULT_VERIFIED_TOKEN_CACHE_SIZE = 1000;
 
     private EzProperties properties;
 
@@ -61,4 +65,21 @@ public class EzBakeSecurityClientConfigurationHelper {
     public String getMockTarget() {
         return properties.getProperty(MOCK_TARGET_ID_KEY, null);
     }
+
+    /**
+     * Get whether received tokens must have their signature verified on every call, bypassing the verified token
+     * cache
+     * @return true if every received token should be fully verified
+     */
+    public boolean verifyStrict() {
+        return properties.getBoolean(VERIFY_STRICT_KEY, false);
+    }
+
+    /**
+     * Get the maximum number of received tokens that will be remembered as having passed signature verification
+     * @return the verified token cache size
+     */
+    public int getVerifiedTokenCacheSize() {
+        return properties.getInteger(VERIFIED_TOKEN_CACHE_SIZE_KEY, DEFAULT_VERIFIED_TOKEN_CACHE_SIZE);
+    }
 }
@@ -16,23 +16,16 @@ package ezbake.security.client;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
-import com.google.inject.Guice;
 import com.google.inject.Inject;
 
 import ezbake.base.thrift.*;
 import ezbake.common.properties.EzProperties;
 import ezbake.crypto.PKeyCrypto;
 import ezbake.crypto.utils.EzSSL;
-import ezbake.security.client.provider.TokenProvider;
-import ezbake.security.client.validation.EzSecurityPrincipalValidator;
-import ezbake.security.client.validation.EzSecurityTokenValidator;
-import ezbake.security.client.validation.ProxyTokenValidator;
-import ezbake.security.client.validation.TokenValidator;
+import ezbake.security.client.validation.TokenValidators;
 import ezbake.security.common.core.EzSecurityClient;
 import ezbake.security.common.core.EzSecurityTokenUtils;
 import ezbake.security.common.core.SecurityID;
@@ -59,6 +52,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * User: jhastings
@@ -77,26 +71,17 @@ public class EzbakeSecurityClient implements EzSecurityClient {
             .maximumSize(1000).build();
 
     /**
-     * This is to detect if we used the pool or not.  Since the supplier API does not have an accessor to test
-     * if something has referenced it yet.  This is safe to do, because the only time we actually check it would be
-     * in close, which would already cause indeterminate behavior if it was called at the same time another active
-     * thread would be calling into a function that works on the pool anyways.  As the pool becomes in a bad state after
-     * close is called.
+     * Thrift client pool and token provider, shared with other security clients using the same configuration unless
+     * a client pool was passed in
      */
-    private boolean poolCreated = false;
-    /**
-     * This here will create the pool once on first use.
-     */
-    private Supplier<ThriftClientPool> pool;
+    private final SecurityServiceConnection connection;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     private EzProperties properties;
     private final EzBakeApplicationConfigurationHelper applicationConfiguration;
     private final EzBakeSecurityClientConfigurationHelper securityConfigurationHelper;
-    private TokenProvider tokenProvider;
 
-    private TokenValidator<EzSecurityToken> tokenValidator;
-    private TokenValidator<ProxyPrincipal> proxyTokenValidator;
-    private TokenValidator<EzSecurityPrincipal> principalValidator;
+    private final TokenValidators validators;
 
 
     public EzbakeSecurityClient(Properties properties) {
@@ -105,35 +90,13 @@ public class EzbakeSecurityClient implements EzSecurityClient {
 
     @Inject
     public EzbakeSecurityClient(final Properties properties, final ThriftClientPool clientPool) {
-
-        try {
-            pool = Suppliers.memoize(new Supplier<ThriftClientPool>() {
-                @Override
-                public ThriftClientPool get() {
-                    poolCreated = true;
-                    if (clientPool != null) {
-                        return clientPool;
-                    } else {
-                        return new ThriftClientPool(properties);
-                    }
-
-                }
-            });
-        }
-        catch(Exception e) {
-            log.debug("Could Not Find Connection to the zookeeper");
-        }
+        this.connection = SecurityServiceConnection.acquire(properties, clientPool);
 
         this.properties = new EzProperties(properties, true);
         this.applicationConfiguration = new EzBakeApplicationConfigurationHelper(properties);
         this.securityConfigurationHelper = new EzBakeSecurityClientConfigurationHelper(properties);
 
-        this.tokenValidator = new EzSecurityTokenValidator(properties);
-        this.proxyTokenValidator = new ProxyTokenValidator(properties);
-        this.principalValidator = new EzSecurityPrincipalValidator(properties);
-
-        tokenProvider = Guice.createInjector(new TokenProvider.Module(properties, pool))
-                .getInstance(TokenProvider.class);
+        this.validators = TokenValidators.forConfiguration(properties);
     }
     
     @Override
@@ -142,26 +105,30 @@ public class EzbakeSecurityClient implements EzSecurityClient {
     }
 
     public ThriftClientPool getThriftClientPool() {
-        return pool.get();
+        return connection.getPool();
     }
 
     public String getRegisteredSecurityId(String applicationServiceName) {
-        return pool.get().getSecurityId(applicationServiceName);
+        return connection.getPool().getSecurityId(applicationServiceName);
     }
 
     @Override
-    public synchronized EzSecurity.Client getClient() throws TException {
-        return this.pool.get().getClient(ezsecurityConstants.SERVICE_NAME, EzSecurity.Client.class);
+    public EzSecurity.Client getClient() throws TException {
+        return connection.getPool().getClient(ezsecurityConstants.SERVICE_NAME, EzSecurity.Client.class);
     }
 
     @Override
-    public synchronized void returnClient(EzSecurity.Client client) {
-        this.pool.get().returnToPool(client);
+    public void returnClient(EzSecurity.Client client) {
+        connection.getPool().returnToPool(client);
     }
 
-    public synchronized void closePool() {
-        if (poolCreated) {
-            this.pool.get().close();
+    /**
+     * Release this client's use of the thrift client pool. The pool is closed once no other security client with
+     * the same configuration is using it
+     */
+    public void closePool() {
+        if (closed.compareAndSet(false, true)) {
+            connection.release();
         }
     }
 
@@ -212,9 +179,9 @@ public class EzbakeSecurityClient implements EzSecurityClient {
     @Override
     public void validateReceivedToken(EzSecurityToken token) throws EzSecurityTokenException {
         try {
-            tokenValidator.validateToken(token);
+            validators.getTokenValidator().validateToken(token);
         } catch(TokenExpiredException e) {
-            EzSecurityToken newToken = tokenProvider.refreshSecurityToken(token);
+            EzSecurityToken newToken = connection.getTokenProvider().refreshSecurityToken(token);
 
             // copy to overwrite values on the passed in token
             for (EzSecurityToken._Fields field : EzSecurityToken._Fields.values()) {
@@ -235,7 +202,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
 
     public void verifyProxyUserToken(String token, String signature) throws EzSecurityTokenException {
         try {
-            proxyTokenValidator.validateToken(new ProxyPrincipal(token, signature));
+            validators.getProxyTokenValidator().validateToken(new ProxyPrincipal(token, signature));
         } catch (TokenExpiredException e) {
             throw new EzSecurityTokenException(e.getMessage());
         }
@@ -243,7 +210,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
 
     public boolean verifyEzSecurityPrincipal(final EzSecurityPrincipal token) throws EzSecurityTokenException {
         try {
-            principalValidator.validateToken(token);
+            validators.getPrincipalValidator().validateToken(token);
         } catch (TokenExpiredException e) {
             throw new EzSecurityTokenException(e.getMessage());
         }
@@ -659,7 +626,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
         }
 
         //userRequest.get
-        token = tokenProvider.getSecurityToken(userRequest);
+        token = connection.getTokenProvider().getSecurityToken(userRequest);
 
         // Only put it in the cache after verification
         tokenCache.put(cacheKey, token);
@@ -811,7 +778,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
             return new EzSecurityTokenWrapper(info);
         }
 
-        info = tokenProvider.getSecurityToken(request);
+        info = connection.getTokenProvider().getSecurityToken(request);
         tokenCache.put(cacheKey, info);
 
         return new EzSecurityTokenWrapper(info);
@@ -887,7 +854,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
             return new EzSecurityTokenWrapper(derivedToken);
         }
 
-        derivedToken = tokenProvider.getSecurityToken(tokenRequest);
+        derivedToken = connection.getTokenProvider().getSecurityToken(tokenRequest);
         tokenCache.put(cacheKey, derivedToken);
 
         return new EzSecurityTokenWrapper(derivedToken);
@@ -922,7 +889,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
         if (!refresh) {
             EzSecurityToken token = tokenCache.getIfPresent(key);
             if (token != null) {
-                if (tokenProvider.isValidToken(token)) {
+                if (connection.getTokenProvider().isValidToken(token)) {
                     log.debug("Returning token from cache. Expires: {}", token.getValidity().getNotAfter());
                     return token;
                 } else {
@@ -949,7 +916,7 @@ public class EzbakeSecurityClient implements EzSecurityClient {
                 securityId = applicationConfiguration.getSecurityID();
             } else if (!SecurityID.isSecurityId(securityId)) {
                 // Look up the security id in service discovery
-                String registeredId = pool.get().getSecurityId(targetApp);
+                String registeredId = connection.getPool().getSecurityId(targetApp);
                 if (registeredId != null) {
                     // only override the passed in id if one was returned
                     securityId = registeredId;
@@ -0,0 +1,128 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.client;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import ezbake.security.client.provider.TokenProvider;
+import ezbake.thrift.ThriftClientPool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The thrift client pool and token provider used by EzbakeSecurityClient. Both are built lazily on first use.
+ *
+ * Security clients that are created without their own ThriftClientPool share one connection per distinct
+ * configuration, so constructing a security client per filter or servlet does not build a new Guice injector, token
+ * provider, or client pool each time. Shared connections are reference counted, and the pool is closed when the last
+ * security client using it is closed.
+ */
+class SecurityServiceConnection {
+    private static final Map<Map<String, String>, SecurityServiceConnection> shared = new HashMap<>();
+
+    private final Map<String, String> key;
+    private final AtomicBoolean poolCreated = new AtomicBoolean(false);
+    private final Supplier<ThriftClientPool> pool;
+    private final Supplier<TokenProvider> tokenProvider;
+    private int references;
+
+    private SecurityServiceConnection(Map<String, String> key, final Properties properties,
+                                      final ThriftClientPool clientPool) {
+        this.key = key;
+        this.pool = Suppliers.memoize(new Supplier<ThriftClientPool>() {
+            @Override
+            public ThriftClientPool get() {
+                poolCreated.set(true);
+                if (clientPool != null) {
+                    return clientPool;
+                } else {
+                    return new ThriftClientPool(properties);
+                }
+            }
+        });
+        this.tokenProvider = Suppliers.memoize(new Supplier<TokenProvider>() {
+            @Override
+            public TokenProvider get() {
+                return Guice.createInjector(new TokenProvider.Module(properties, pool))
+                        .getInstance(TokenProvider.class);
+            }
+        });
+    }
+
+    /**
+     * Get a connection for the given configuration. If clientPool is null, the connection is shared with other
+     * security clients that have the same configuration
+     *
+     * @param properties the security client configuration
+     * @param clientPool an optional client pool, which will not be shared
+     * @return the connection, which must be released when no longer in use
+     */
+    static SecurityServiceConnection acquire(Properties properties, ThriftClientPool clientPool) {
+        if (clientPool != null) {
+            SecurityServiceConnection connection = new SecurityServiceConnection(null, properties, clientPool);
+            connection.references = 1;
+            return connection;
+        }
+
+        Map<String, String> key = configurationKey(properties);
+        synchronized (shared) {
+            SecurityServiceConnection connection = shared.get(key);
+            if (connection == null) {
+                connection = new SecurityServiceConnection(key, properties, null);
+                shared.put(key, connection);
+            }
+            connection.references++;
+            return connection;
+        }
+    }
+
+    static Map<String, String> configurationKey(Properties properties) {
+        ImmutableMap.Builder<String, String> key = ImmutableMap.builder();
+        for (String name : properties.stringPropertyNames()) {
+            key.put(name, properties.getProperty(name));
+        }
+        return key.build();
+    }
+
+    ThriftClientPool getPool() {
+        return pool.get();
+    }
+
+    TokenProvider getTokenProvider() {
+        return tokenProvider.get();
+    }
+
+    /**
+     * Release this connection, closing the pool if no other security client is using it
+     */
+    void release() {
+        synchronized (shared) {
+            if (--references > 0) {
+                return;
+            }
+            if (key != null) {
+                shared.remove(key);
+            }
+        }
+        if (poolCreated.get()) {
+            pool.get().close();
+        }
+    }
+}
@@ -14,8 +14,10 @@
 
 package ezbake.security.client.validation;
 
+import com.google.common.base.Supplier;
 import ezbake.base.thrift.EzSecurityPrincipal;
 import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.crypto.PKeyCrypto;
 import ezbake.security.common.core.EzSecurityTokenUtils;
 import ezbake.security.common.core.TokenExpiredException;
 
@@ -34,6 +36,10 @@ public class EzSecurityPrincipalValidator extends SignatureValidator implements
         super(configuration);
     }
 
+    public EzSecurityPrincipalValidator(final Properties configuration, Supplier<PKeyCrypto> crypto) {
+        super(configuration, crypto);
+    }
+
     @Override
     public void validateToken(EzSecurityPrincipal token) throws EzSecurityTokenException, TokenExpiredException {
         if (System.currentTimeMillis() >= token.getValidity().getNotAfter()) {
@@ -14,8 +14,10 @@
 
 package ezbake.security.client.validation;
 
+import com.google.common.base.Supplier;
 import ezbake.base.thrift.EzSecurityToken;
 import ezbake.base.thrift.EzSecurityTokenException;
+import ezbake.crypto.PKeyCrypto;
 import ezbake.security.common.core.EzSecurityTokenUtils;
 import ezbake.security.common.core.TokenExpiredException;
 
@@ -27,9 +29,20 @@ import java.util.Properties;
  */
 public class EzSecurityTokenValidator extends SignatureValidator implements TokenValidator<EzSecurityToken> {
 
+    private final VerifiedTokenCache verifiedTokens;
+
     @Inject
     public EzSecurityTokenValidator(final Properties configuration) {
-        super(configuration);
+        this(configuration, cryptoSupplier(configuration));
+    }
+
+    public EzSecurityTokenValidator(final Properties configuration, Supplier<PKeyCrypto> crypto) {
+        super(configuration, crypto);
+        if (securityConfigurationHelper.verifyStrict()) {
+            verifiedTokens = null;
+        } else {
+            verifiedTokens = new VerifiedTokenCache(securityConfigurationHelper.getVerifiedTokenCacheSize());
+        }
     }
 
     @Override
@@ -37,11 +50,17 @@ public class EzSecurityTokenValidator extends SignatureValidator implements Toke
         if(securityConfigurationHelper.useMock()) {
             return;
         }
+        if (verifiedTokens != null && verifiedTokens.isVerified(token)) {
+            return;
+        }
         EzSecurityTokenUtils.verifyReceivedToken(crypto.get(), token, applicationConfigurationHelper.getSecurityID());
+        if (verifiedTokens != null) {
+            verifiedTokens.put(token);
+        }
     }
 
     /**
-     * Validates a security token using a new token validator. This differs from the instance validateToken in that it
+     * Validates a security token using the token validator shared by this configuration. This differs from the instance validateToken in that it
      * only throws an EzSecurityTokenException, catching the expired exception and rethrowing
      *
      * @param token a token to verify
@@ -51,7 +70,7 @@ public class EzSecurityTokenValidator extends SignatureValidator implements Toke
     public static void validateToken(EzSecurityToken token, Properties configuration)
             throws EzSecurityTokenException {
         try {
-            new EzSecurityTokenValidator(configuration).validateToken(token);
+            TokenValidators.forConfiguration(configuration).getTokenValidator().validateToken(token);
         } catch (TokenExpiredException e) {
             throw new EzSecurityTokenException(e.getMessage());
         }
@@ -14,9 +14,11 @@
 
 package ezbake.security.client.validation;
 
+import com.google.common.base.Supplier;
 import ezbake.base.thrift.EzSecurityTokenException;
 import ezbake.base.thrift.ProxyPrincipal;
 import ezbake.base.thrift.ProxyUserToken;
+import ezbake.crypto.PKeyCrypto;
 import ezbake.security.common.core.EzSecurityTokenUtils;
 import ezbake.security.common.core.TokenExpiredException;
 import org.slf4j.Logger;
@@ -38,6 +40,10 @@ public class ProxyTokenValidator extends SignatureValidator implements TokenVali
         super(configuration);
     }
 
+    public ProxyTokenValidator(final Properties configuration, Supplier<PKeyCrypto> crypto) {
+        super(configuration, crypto);
+    }
+
     @Override
     public void validateToken(ProxyPrincipal token) throws EzSecurityTokenException, TokenExpiredException {
         if (securityConfigurationHelper.useMock()) {
@@ -32,16 +32,34 @@ public abstract class SignatureValidator extends BaseValidator {
     protected Supplier<PKeyCrypto> crypto;
 
     public SignatureValidator(final Properties configuration) {
+        this(configuration, cryptoSupplier(configuration));
+    }
+
+    /**
+     * @param configuration the application configuration
+     * @param crypto supplier of the EzSecurity public key, which may be shared between validators
+     */
+    public SignatureValidator(final Properties configuration, Supplier<PKeyCrypto> crypto) {
         super(configuration);
-         this.crypto = Suppliers.memoize(new Supplier<PKeyCrypto>() {
-             @Override
-             public PKeyCrypto get() {
-                 try {
-                     return EzSSL.getCrypto(configuration);
-                 } catch (IOException e) {
-                     throw new RuntimeException("Unable to verify tokens without the proper RSA key configuration", e);
-                 }
-             }
-         });
+        this.crypto = crypto;
+    }
+
+    /**
+     * Get a supplier that will load the EzSecurity public key from the configuration once, on first use
+     *
+     * @param configuration the application configuration
+     * @return memoizing supplier for the key
+     */
+    public static Supplier<PKeyCrypto> cryptoSupplier(final Properties configuration) {
+        return Suppliers.memoize(new Supplier<PKeyCrypto>() {
+            @Override
+            public PKeyCrypto get() {
+                try {
+                    return EzSSL.getCrypto(configuration);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to verify tokens without the proper RSA key configuration", e);
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,98 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.client.validation;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import ezbake.base.thrift.EzSecurityPrincipal;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.ProxyPrincipal;
+import ezbake.crypto.PKeyCrypto;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Validators shared by every security client with the same configuration. The validators are built on first use, and
+ * they share a single copy of the EzSecurity public key
+ */
+public class TokenValidators {
+    private static final LoadingCache<Map<String, String>, TokenValidators> shared = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .build(new CacheLoader<Map<String, String>, TokenValidators>() {
+                @Override
+                public TokenValidators load(Map<String, String> key) {
+                    Properties configuration = new Properties();
+                    configuration.putAll(key);
+                    return new TokenValidators(configuration);
+                }
+            });
+
+    private final Supplier<TokenValidator<EzSecurityToken>> tokenValidator;
+    private final Supplier<TokenValidator<ProxyPrincipal>> proxyTokenValidator;
+    private final Supplier<TokenValidator<EzSecurityPrincipal>> principalValidator;
+
+    private TokenValidators(final Properties configuration) {
+        final Supplier<PKeyCrypto> crypto = SignatureValidator.cryptoSupplier(configuration);
+        tokenValidator = Suppliers.memoize(new Supplier<TokenValidator<EzSecurityToken>>() {
+            @Override
+            public TokenValidator<EzSecurityToken> get() {
+                return new EzSecurityTokenValidator(configuration, crypto);
+            }
+        });
+        proxyTokenValidator = Suppliers.memoize(new Supplier<TokenValidator<ProxyPrincipal>>() {
+            @Override
+            public TokenValidator<ProxyPrincipal> get() {
+                return new ProxyTokenValidator(configuration, crypto);
+            }
+        });
+        principalValidator = Suppliers.memoize(new Supplier<TokenValidator<EzSecurityPrincipal>>() {
+            @Override
+            public TokenValidator<EzSecurityPrincipal> get() {
+                return new EzSecurityPrincipalValidator(configuration, crypto);
+            }
+        });
+    }
+
+    /**
+     * Get the validators for a configuration
+     *
+     * @param configuration the application configuration
+     * @return validators shared with anyone else using the same configuration
+     */
+    public static TokenValidators forConfiguration(Properties configuration) {
+        ImmutableMap.Builder<String, String> key = ImmutableMap.builder();
+        for (String name : configuration.stringPropertyNames()) {
+            key.put(name, configuration.getProperty(name));
+        }
+        return shared.getUnchecked(key.build());
+    }
+
+    public TokenValidator<EzSecurityToken> getTokenValidator() {
+        return tokenValidator.get();
+    }
+
+    public TokenValidator<ProxyPrincipal> getProxyTokenValidator() {
+        return proxyTokenValidator.get();
+    }
+
+    public TokenValidator<EzSecurityPrincipal> getPrincipalValidator() {
+        return principalValidator.get();
+    }
+}
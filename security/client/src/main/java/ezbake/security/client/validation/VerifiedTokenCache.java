@@ -0,0 +1,108 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.client.validation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.crypto.utils.CryptoUtil;
+import ezbake.security.common.core.EzSecurityTokenUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers received EzSecurityTokens that have already passed signature verification, so that a caller presenting
+ * the same token on every request only pays for the RSA verify once.
+ *
+ * Entries are keyed on the token signature plus a digest of the token's canonical (signed) bytes, so a token that
+ * has been modified after signing will never hit. Entries are only honored until the token's notAfter.
+ */
+public class VerifiedTokenCache {
+    private static final Logger logger = LoggerFactory.getLogger(VerifiedTokenCache.class);
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final Cache<String, Long> verified;
+
+    public VerifiedTokenCache(int maximumSize) {
+        verified = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Check whether the token has previously been verified and has not yet expired
+     *
+     * @param token the received token
+     * @return true if the token was previously verified
+     */
+    public boolean isVerified(EzSecurityToken token) {
+        String key = cacheKey(token);
+        if (key == null) {
+            return false;
+        }
+
+        Long notAfter = verified.getIfPresent(key);
+        if (notAfter == null) {
+            return false;
+        }
+        if (notAfter <= System.currentTimeMillis()) {
+            verified.invalidate(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record that the token has passed verification. It will be considered verified until its notAfter
+     *
+     * @param token the verified token
+     */
+    public void put(EzSecurityToken token) {
+        String key = cacheKey(token);
+        if (key != null) {
+            verified.put(key, token.getValidity().getNotAfter());
+        }
+    }
+
+    public void invalidateAll() {
+        verified.invalidateAll();
+    }
+
+    public long size() {
+        return verified.size();
+    }
+
+    private static String cacheKey(EzSecurityToken token) {
+        if (token.getValidity() == null || token.getValidity().getSignature() == null) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            byte[] content = digest.digest(EzSecurityTokenUtils.serializeToken(token));
+            return token.getValidity().getSignature() + ":" + CryptoUtil.encode(content);
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("{} not supported, unable to cache verified tokens", DIGEST_ALGORITHM);
+        } catch (IOException e) {
+            logger.warn("Unable to serialize token for the verified token cache", e);
+        } catch (RuntimeException e) {
+            // Incomplete tokens will fail full verification with a proper error
+            logger.debug("Unable to compute verified token cache key", e);
+        }
+        return null;
+    }
+}
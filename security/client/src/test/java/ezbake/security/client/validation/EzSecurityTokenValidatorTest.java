@@ -26,9 +26,11 @@ import ezbake.configuration.constants.EzBakePropertyConstants;
 import ezbake.crypto.PKeyCrypto;
 import ezbake.crypto.PKeyCryptoException;
 import ezbake.crypto.RSAKeyCrypto;
+import ezbake.security.client.EzBakeSecurityClientConfigurationHelper;
 import ezbake.security.common.core.EzSecurityTokenUtils;
 import ezbake.security.common.core.TokenExpiredException;
 import ezbake.security.test.MockEzSecurityToken;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -101,4 +103,60 @@ public class EzSecurityTokenValidatorTest {
         // would throw if this test failed
         validator.validateToken(token);
     }
+
+    @Test
+    public void testValidateCachedToken() throws IOException, PKeyCryptoException, EzSecurityTokenException, TokenExpiredException {
+        EzSecurityToken token = MockEzSecurityToken.getMockUserToken("TEST", "low", Sets.newHashSet("A"),
+                Maps.<String, List<String>>newHashMap(), false);
+        token.getValidity().setIssuedFor(configuration.getProperty(EzBakePropertyConstants.EZBAKE_SECURITY_ID));
+        signEzSecurityToken(token);
+
+        EzSecurityTokenValidator validator = new EzSecurityTokenValidator(configuration);
+        validator.validateToken(token);
+        // second call is served from the verified token cache
+        validator.validateToken(token);
+    }
+
+    @Test(expected=EzSecurityTokenException.class)
+    public void testValidateCachedTokenTampered() throws IOException, PKeyCryptoException, EzSecurityTokenException, TokenExpiredException {
+        EzSecurityToken token = MockEzSecurityToken.getMockUserToken("TEST", "low", Sets.newHashSet("A"),
+                Maps.<String, List<String>>newHashMap(), false);
+        token.getValidity().setIssuedFor(configuration.getProperty(EzBakePropertyConstants.EZBAKE_SECURITY_ID));
+        signEzSecurityToken(token);
+
+        EzSecurityTokenValidator validator = new EzSecurityTokenValidator(configuration);
+        validator.validateToken(token);
+
+        // modifying the token after it was cached must not reuse the cached verification
+        token.getAuthorizations().getFormalAuthorizations().add("B");
+        validator.validateToken(token);
+    }
+
+    @Test(expected=EzSecurityTokenException.class)
+    public void testValidateStrictTampered() throws IOException, PKeyCryptoException, EzSecurityTokenException, TokenExpiredException {
+        configuration.setProperty(EzBakeSecurityClientConfigurationHelper.VERIFY_STRICT_KEY, "true");
+        EzSecurityToken token = MockEzSecurityToken.getMockUserToken("TEST", "low", Sets.newHashSet("A"),
+                Maps.<String, List<String>>newHashMap(), false);
+        token.getValidity().setIssuedFor(configuration.getProperty(EzBakePropertyConstants.EZBAKE_SECURITY_ID));
+        signEzSecurityToken(token);
+
+        EzSecurityTokenValidator validator = new EzSecurityTokenValidator(configuration);
+        validator.validateToken(token);
+
+        token.getAuthorizations().getFormalAuthorizations().add("B");
+        validator.validateToken(token);
+    }
+
+    @Test
+    public void testSharedValidators() {
+        Properties copy = new Properties();
+        copy.putAll(configuration);
+
+        Assert.assertSame(TokenValidators.forConfiguration(configuration).getTokenValidator(),
+                TokenValidators.forConfiguration(copy).getTokenValidator());
+
+        copy.setProperty(EzBakeSecurityClientConfigurationHelper.VERIFY_STRICT_KEY, "true");
+        Assert.assertNotSame(TokenValidators.forConfiguration(configuration).getTokenValidator(),
+                TokenValidators.forConfiguration(copy).getTokenValidator());
+    }
 }
@@ -0,0 +1,189 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.common.core;
+
+import ezbake.base.thrift.CommunityMembership;
+import ezbake.base.thrift.EzSecurityToken;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes the canonical byte form of an EzSecurityToken, the bytes that EzSecurity signs and that clients verify.
+ *
+ * The output is identical to what EzSecurityTokenUtils has always produced, but the token passed in is never modified,
+ * so tokens may be shared between threads while being encoded. Each thread reuses one growable buffer, and strings are
+ * copied straight into it when they are plain ASCII.
+ */
+public final class EzSecurityTokenEncoder {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // Don't let one unusually large token pin a large buffer to the thread forever
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<EzSecurityTokenEncoder> encoders = new ThreadLocal<EzSecurityTokenEncoder>() {
+        @Override
+        protected EzSecurityTokenEncoder initialValue() {
+            return new EzSecurityTokenEncoder();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+
+    private EzSecurityTokenEncoder() { }
+
+    /**
+     * Encode the canonical form of the token
+     *
+     * @param token the token to encode, which will not be modified
+     * @return the canonical bytes
+     */
+    public static byte[] encode(EzSecurityToken token) {
+        return encoders.get().encodeToken(token);
+    }
+
+    private byte[] encodeToken(EzSecurityToken token) {
+        count = 0;
+        try {
+            // Validity caveats - who, what, when
+            write(token.getValidity().getIssuedTo());
+            if (token.getValidity().getIssuedFor() != null && !token.getValidity().getIssuedFor().isEmpty()) {
+                write(token.getValidity().getIssuedFor());
+            }
+            write(String.valueOf(token.getValidity().getNotAfter()));
+            write(String.valueOf(token.getValidity().getNotBefore()));
+            write(String.valueOf(token.getValidity().getIssuedTime()));
+
+            // Token Type
+            write(token.getType().toString());
+
+            // Principal - just the identifying information
+            write(token.getTokenPrincipal().getPrincipal());
+            write(token.getTokenPrincipal().getIssuer());
+            if (token.getTokenPrincipal().getRequestChain() != null) {
+                for (String chain : token.getTokenPrincipal().getRequestChain()) {
+                    write(chain);
+                }
+            }
+
+            // Authorizations
+            if (token.getAuthorizationLevel() != null && !token.getAuthorizationLevel().isEmpty()) {
+                write(token.getAuthorizationLevel());
+            }
+            if (token.getAuthorizations() != null) {
+                writeSorted(token.getAuthorizations().getFormalAuthorizations());
+                writeSorted(token.getAuthorizations().getExternalCommunityAuthorizations());
+                Set<Long> platformObjects = token.getAuthorizations().getPlatformObjectAuthorizations();
+                if (platformObjects != null) {
+                    long[] sorted = new long[platformObjects.size()];
+                    int i = 0;
+                    for (Long auth : platformObjects) {
+                        sorted[i++] = auth;
+                    }
+                    Arrays.sort(sorted);
+                    for (long auth : sorted) {
+                        write(Long.toString(auth));
+                    }
+                }
+            }
+
+            Map<String, List<String>> projectGroups = token.getExternalProjectGroups();
+            if (projectGroups != null) {
+                for (String project : sortedKeys(projectGroups)) {
+                    write(project);
+                    writeSorted(projectGroups.get(project));
+                }
+            }
+
+            if (token.getExternalCommunities() != null) {
+                for (CommunityMembership community : token.getExternalCommunities().values()) {
+                    write(community.getName());
+                    write(community.getType());
+                    write(community.getOrganization());
+                    writeSorted(community.getGroups());
+                    writeSorted(community.getTopics());
+                    writeSorted(community.getRegions());
+                    Map<String, Boolean> flags = community.getFlags();
+                    if (flags != null) {
+                        for (String flag : sortedKeys(flags)) {
+                            write(flag);
+                            write(String.valueOf(flags.get(flag)));
+                        }
+                    }
+                }
+            }
+
+            write(String.valueOf(token.isValidForExternalRequest()));
+            write(token.getCitizenship());
+            write(token.getOrganization());
+
+            return Arrays.copyOf(buffer, count);
+        } finally {
+            if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
+
+    private void writeSorted(Collection<String> values) {
+        if (values == null) {
+            return;
+        }
+        String[] sorted = values.toArray(new String[values.size()]);
+        Arrays.sort(sorted);
+        for (String value : sorted) {
+            write(value);
+        }
+    }
+
+    private static String[] sortedKeys(Map<String, ?> map) {
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private void write(String value) {
+        if (value == null) {
+            return;
+        }
+
+        int start = count;
+        int length = value.length();
+        ensureCapacity(count + length);
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Fall back to the JDK encoder for anything that isn't ASCII
+                byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                count = start;
+                ensureCapacity(count + encoded.length);
+                System.arraycopy(encoded, 0, buffer, count, encoded.length);
+                count += encoded.length;
+                return;
+            }
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, capacity));
+        }
+    }
+}
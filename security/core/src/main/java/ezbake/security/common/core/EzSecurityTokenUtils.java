@@ -14,8 +14,6 @@
 
 package ezbake.security.common.core;
 
-import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Sets;
 import com.google.gson.Gson;
 import ezbake.base.thrift.*;
@@ -38,9 +36,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -264,103 +260,15 @@ public class EzSecurityTokenUtils {
     }
 
 
+    /**
+     * Get the canonical bytes of the token, which are what gets signed. The token is not modified
+     *
+     * @param token the token to serialize
+     * @return the canonical bytes
+     * @throws IOException kept for compatibility, never thrown
+     */
     public static byte[] serializeToken(final EzSecurityToken token) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(baos);
-
-        // Validity caveats - who, what, when
-        putStringToOutputStream(dataOutputStream, token.getValidity().getIssuedTo(), EzSecurityConstant.CHARSET);
-        if (token.getValidity().getIssuedFor() != null && !token.getValidity().getIssuedFor().isEmpty()) {
-            putStringToOutputStream(dataOutputStream, token.getValidity().getIssuedFor(), EzSecurityConstant.CHARSET);
-        }
-        putStringToOutputStream(dataOutputStream, String.valueOf(token.getValidity().getNotAfter()), EzSecurityConstant.CHARSET);
-        putStringToOutputStream(dataOutputStream, String.valueOf(token.getValidity().getNotBefore()), EzSecurityConstant.CHARSET);
-        putStringToOutputStream(dataOutputStream, String.valueOf(token.getValidity().getIssuedTime()), EzSecurityConstant.CHARSET);
-
-        // Token Type
-        putStringToOutputStream(dataOutputStream, token.getType().toString(), EzSecurityConstant.CHARSET);
-
-        // Principal - just the identifying information. The principal has it's own signature that should verify the rest
-        putStringToOutputStream(dataOutputStream, token.getTokenPrincipal().getPrincipal(), EzSecurityConstant.CHARSET);
-        if (token.getTokenPrincipal().getIssuer() != null) {
-            dataOutputStream.write(token.getTokenPrincipal().getIssuer().getBytes(StandardCharsets.UTF_8));
-        }
-        if (token.getTokenPrincipal().getRequestChain() != null) {
-            for (String chain : token.getTokenPrincipal().getRequestChain()) {
-                putStringToOutputStream(dataOutputStream, chain, EzSecurityConstant.CHARSET);
-            }
-        }
-
-        // Authorizations
-        if (token.getAuthorizationLevel() != null && !token.getAuthorizationLevel().isEmpty()) {
-            putStringToOutputStream(dataOutputStream, token.getAuthorizationLevel(), EzSecurityConstant.CHARSET);
-        }
-        if (token.getAuthorizations() != null) {
-            if (token.getAuthorizations().getFormalAuthorizations() != null) {
-                Set<String> auths = ImmutableSortedSet.copyOf(token.getAuthorizations().getFormalAuthorizations());
-                for (String auth : auths) {
-                    putStringToOutputStream(dataOutputStream, auth, EzSecurityConstant.CHARSET);
-                }
-            }
-            if (token.getAuthorizations().getExternalCommunityAuthorizations() != null) {
-                Set<String> auths = ImmutableSortedSet.copyOf(token.getAuthorizations().getExternalCommunityAuthorizations());
-                for (String auth : auths) {
-                    putStringToOutputStream(dataOutputStream, auth, EzSecurityConstant.CHARSET);
-                }
-            }
-            if (token.getAuthorizations().getPlatformObjectAuthorizations() != null) {
-                Set<Long> auths = ImmutableSortedSet.copyOf(token.getAuthorizations().getPlatformObjectAuthorizations());
-                for (Long auth : auths) {
-                    putStringToOutputStream(dataOutputStream, Long.toString(auth), EzSecurityConstant.CHARSET);
-                }
-            }
-        }
-
-        if (token.getExternalProjectGroups() != null) {
-            token.setExternalProjectGroups(ImmutableSortedMap.copyOf(token.getExternalProjectGroups()));
-            for (Map.Entry<String, List<String>> project : token.getExternalProjectGroups().entrySet()) {
-                putStringToOutputStream(dataOutputStream, project.getKey(), EzSecurityConstant.CHARSET);
-                Collections.sort(project.getValue());
-                for (String group : project.getValue()) {
-                    putStringToOutputStream(dataOutputStream, group, EzSecurityConstant.CHARSET);
-                }
-            }
-        }
-
-        if (token.getExternalCommunities() != null) {
-            for (Map.Entry<String, CommunityMembership> entry : token.getExternalCommunities().entrySet()) {
-                CommunityMembership community = entry.getValue();
-                putStringToOutputStream(dataOutputStream, community.getName(), EzSecurityConstant.CHARSET);
-                putStringToOutputStream(dataOutputStream, community.getType(), EzSecurityConstant.CHARSET);
-                putStringToOutputStream(dataOutputStream, community.getOrganization(), EzSecurityConstant.CHARSET);
-                Collections.sort(community.getGroups());
-                for (String groups : community.getGroups()) {
-                    putStringToOutputStream(dataOutputStream, groups, EzSecurityConstant.CHARSET);
-                }
-                Collections.sort(community.getTopics());
-                for (String topics : community.getTopics()) {
-                    putStringToOutputStream(dataOutputStream, topics, EzSecurityConstant.CHARSET);
-                }
-                Collections.sort(community.getRegions());
-                for (String regions : community.getRegions()) {
-                    putStringToOutputStream(dataOutputStream, regions, EzSecurityConstant.CHARSET);
-                }
-                if (entry.getValue().getFlags() != null) {
-                    Map<String, Boolean> flags = ImmutableSortedMap.copyOf(entry.getValue().getFlags());
-                    for (Map.Entry<String, Boolean> fentry : flags.entrySet()) {
-                        dataOutputStream.write(fentry.getKey().getBytes(StandardCharsets.UTF_8));
-                        dataOutputStream.write(Boolean.toString(fentry.getValue()).getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-            }
-        }
-
-        putStringToOutputStream(dataOutputStream, String.valueOf(token.isValidForExternalRequest()), EzSecurityConstant.CHARSET);
-        putStringToOutputStream(dataOutputStream, token.getCitizenship(), EzSecurityConstant.CHARSET);
-        putStringToOutputStream(dataOutputStream, token.getOrganization(), EzSecurityConstant.CHARSET);
-
-        dataOutputStream.flush();
-        return baos.toByteArray();
+        return EzSecurityTokenEncoder.encode(token);
     }
 
     public static String principalSignature(final EzSecurityPrincipal principal, final PKeyCrypto signer)
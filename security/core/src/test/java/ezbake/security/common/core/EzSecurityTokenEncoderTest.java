@@ -0,0 +1,175 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.common.core;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import ezbake.base.thrift.CommunityMembership;
+import ezbake.base.thrift.EzSecurityPrincipal;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.TokenType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class EzSecurityTokenEncoderTest {
+
+    private static EzSecurityToken token() {
+        EzSecurityToken token = EzSecurityTokenUtils.freshToken("client", TokenType.USER,
+                System.currentTimeMillis() + 1000);
+        token.setTokenPrincipal(new EzSecurityPrincipal("CN=Jöhn Doe, OU=People",
+                EzSecurityTokenUtils.generateValidityCaveats("EzSecurity", "client", 10)));
+        token.getTokenPrincipal().setIssuer("EzSecurity");
+        token.getTokenPrincipal().setRequestChain(Lists.newArrayList("client", "server"));
+        token.setAuthorizationLevel("high");
+        token.getAuthorizations().setFormalAuthorizations(Sets.newHashSet("C", "A", "B"));
+        token.getAuthorizations().setExternalCommunityAuthorizations(Sets.newHashSet("EC2", "EC1"));
+        token.getAuthorizations().setPlatformObjectAuthorizations(Sets.newHashSet(30L, 2L, 100L));
+
+        Map<String, List<String>> groups = Maps.newHashMap();
+        groups.put("projectB", Lists.newArrayList("z", "a"));
+        groups.put("projectA", Lists.newArrayList("y", "b"));
+        token.setExternalProjectGroups(groups);
+
+        CommunityMembership community = new CommunityMembership();
+        community.setName("community");
+        community.setType("type");
+        community.setOrganization("org");
+        community.setGroups(Lists.newArrayList("g2", "g1"));
+        community.setTopics(Lists.newArrayList("t2", "t1"));
+        community.setRegions(Lists.newArrayList("r2", "r1"));
+        Map<String, Boolean> flags = Maps.newHashMap();
+        flags.put("flagB", true);
+        flags.put("flagA", false);
+        community.setFlags(flags);
+        token.setExternalCommunities(Collections.singletonMap("community", community));
+
+        token.setCitizenship("USA");
+        token.setOrganization("ORG");
+        return token;
+    }
+
+    @Test
+    public void testMatchesLegacySerialization() throws IOException {
+        byte[] encoded = EzSecurityTokenEncoder.encode(token());
+        Assert.assertArrayEquals(legacySerializeToken(token()), encoded);
+    }
+
+    @Test
+    public void testDoesNotMutateToken() {
+        EzSecurityToken token = token();
+        EzSecurityToken copy = token.deepCopy();
+        EzSecurityTokenEncoder.encode(token);
+
+        Assert.assertEquals(copy, token);
+        Assert.assertEquals(Lists.newArrayList("z", "a"), token.getExternalProjectGroups().get("projectB"));
+        Assert.assertEquals(Lists.newArrayList("g2", "g1"),
+                token.getExternalCommunities().get("community").getGroups());
+    }
+
+    /**
+     * The original DataOutputStream based serialization, which the encoder must stay byte compatible with
+     */
+    private static byte[] legacySerializeToken(final EzSecurityToken token) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+
+        put(out, token.getValidity().getIssuedTo());
+        if (token.getValidity().getIssuedFor() != null && !token.getValidity().getIssuedFor().isEmpty()) {
+            put(out, token.getValidity().getIssuedFor());
+        }
+        put(out, String.valueOf(token.getValidity().getNotAfter()));
+        put(out, String.valueOf(token.getValidity().getNotBefore()));
+        put(out, String.valueOf(token.getValidity().getIssuedTime()));
+        put(out, token.getType().toString());
+        put(out, token.getTokenPrincipal().getPrincipal());
+        if (token.getTokenPrincipal().getIssuer() != null) {
+            out.write(token.getTokenPrincipal().getIssuer().getBytes(StandardCharsets.UTF_8));
+        }
+        if (token.getTokenPrincipal().getRequestChain() != null) {
+            for (String chain : token.getTokenPrincipal().getRequestChain()) {
+                put(out, chain);
+            }
+        }
+        if (token.getAuthorizationLevel() != null && !token.getAuthorizationLevel().isEmpty()) {
+            put(out, token.getAuthorizationLevel());
+        }
+        if (token.getAuthorizations() != null) {
+            for (String auth : ImmutableSortedSet.copyOf(token.getAuthorizations().getFormalAuthorizations())) {
+                put(out, auth);
+            }
+            for (String auth : ImmutableSortedSet.copyOf(token.getAuthorizations().getExternalCommunityAuthorizations())) {
+                put(out, auth);
+            }
+            for (Long auth : ImmutableSortedSet.copyOf(token.getAuthorizations().getPlatformObjectAuthorizations())) {
+                put(out, Long.toString(auth));
+            }
+        }
+        if (token.getExternalProjectGroups() != null) {
+            for (Map.Entry<String, List<String>> project :
+                    ImmutableSortedMap.copyOf(token.getExternalProjectGroups()).entrySet()) {
+                put(out, project.getKey());
+                List<String> groups = Lists.newArrayList(project.getValue());
+                Collections.sort(groups);
+                for (String group : groups) {
+                    put(out, group);
+                }
+            }
+        }
+        if (token.getExternalCommunities() != null) {
+            for (CommunityMembership community : token.getExternalCommunities().values()) {
+                put(out, community.getName());
+                put(out, community.getType());
+                put(out, community.getOrganization());
+                for (List<String> values : Lists.newArrayList(community.getGroups(), community.getTopics(),
+                        community.getRegions())) {
+                    List<String> sorted = Lists.newArrayList(values);
+                    Collections.sort(sorted);
+                    for (String value : sorted) {
+                        put(out, value);
+                    }
+                }
+                if (community.getFlags() != null) {
+                    for (Map.Entry<String, Boolean> flag : ImmutableSortedMap.copyOf(community.getFlags()).entrySet()) {
+                        out.write(flag.getKey().getBytes(StandardCharsets.UTF_8));
+                        out.write(Boolean.toString(flag.getValue()).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        put(out, String.valueOf(token.isValidForExternalRequest()));
+        put(out, token.getCitizenship());
+        put(out, token.getOrganization());
+
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static void put(DataOutputStream out, String value) throws IOException {
+        if (value != null) {
+            out.write(value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
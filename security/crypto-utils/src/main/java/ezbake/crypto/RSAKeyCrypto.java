@@ -41,6 +41,8 @@ import java.io.StringWriter;
 import java.security.*;
 import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.spec.*;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * User: jhastings
@@ -51,11 +53,17 @@ public class RSAKeyCrypto implements PKeyCrypto {
     private static Logger log = LoggerFactory.getLogger(RSAKeyCrypto.class);
     private static final String keyAlgorithm = "RSA";
     private static final String algorithmEncryptionString = "withRSA";
+    private static final String cipherTransformation = "RSA/ECB/PKCS1Padding";
 
     private PrivateKey privateKey;
     private PublicKey publicKey;
     private String algorithm = "SHA256"+algorithmEncryptionString;
 
+    private final ThreadLocal<Signature> verifiers = new ThreadLocal<>();
+    private final ThreadLocal<Signature> signers = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> encryptCiphers = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decryptCiphers = new ThreadLocal<>();
+
     static {
         Security.addProvider(new BouncyCastleProvider());
         if (log.isTraceEnabled()) {
@@ -201,10 +209,48 @@ public class RSAKeyCrypto implements PKeyCrypto {
     }
 
     public boolean verify(byte[] data, byte[] signature) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        Signature rsa = Signature.getInstance(this.algorithm);
-        rsa.initVerify(publicKey);
-        rsa.update(data);
-        return rsa.verify(signature);
+        Signature rsa = verifier();
+        try {
+            rsa.update(data);
+            return rsa.verify(signature);
+        } catch (SignatureException | RuntimeException e) {
+            verifiers.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * Verify many signatures at once, reusing one initialized Signature for the whole batch. A signature that is
+     * malformed is reported as not verifying rather than failing the batch
+     *
+     * @param data the signed data
+     * @param signatures the signatures, in the same order as data
+     * @return whether each signature verified, in the same order as data
+     */
+    public boolean[] verify(List<byte[]> data, List<byte[]> signatures) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (data.size() != signatures.size()) {
+            throw new IllegalArgumentException("Number of signatures (" + signatures.size() +
+                    ") must match the number of data items (" + data.size() + ")");
+        }
+
+        boolean[] verifies = new boolean[data.size()];
+        Signature rsa = verifier();
+        Iterator<byte[]> sigs = signatures.iterator();
+        int i = 0;
+        for (byte[] item : data) {
+            byte[] signature = sigs.next();
+            try {
+                rsa.update(item);
+                verifies[i] = rsa.verify(signature);
+            } catch (SignatureException e) {
+                log.debug("Signature {} failed to verify: {}", i, e.getMessage());
+                // state is undefined after a failure, start over with a fresh instance
+                verifiers.remove();
+                rsa = verifier();
+            }
+            i++;
+        }
+        return verifies;
     }
 
     public byte[] sign(byte[] data) throws PKeyCryptoException {
@@ -214,10 +260,14 @@ public class RSAKeyCrypto implements PKeyCrypto {
         byte[] signed;
 
         try {
-            Signature rsa = Signature.getInstance(this.algorithm);
-            rsa.initSign(privateKey);
-            rsa.update(data);
-            signed = rsa.sign();
+            Signature rsa = signer();
+            try {
+                rsa.update(data);
+                signed = rsa.sign();
+            } catch (SignatureException | RuntimeException e) {
+                signers.remove();
+                throw e;
+            }
         } catch (NoSuchAlgorithmException e) {
             throw new PKeyCryptoException("Unable to sign with algorithm: " + this.algorithm, e);
         } catch (InvalidKeyException e) {
@@ -236,14 +286,13 @@ public class RSAKeyCrypto implements PKeyCrypto {
         Cipher cipher = null;
         try
         {
-            cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-
-            log.debug("Using Algorithm " + cipher.getAlgorithm());
-            log.debug("Block Size: " + cipher.getBlockSize());
-
-            cipher.init(Cipher.ENCRYPT_MODE, this.publicKey);
-            encrypted = cipher.doFinal(data);
-
+            cipher = cipher(encryptCiphers, Cipher.ENCRYPT_MODE, this.publicKey);
+            try {
+                encrypted = cipher.doFinal(data);
+            } catch (BadPaddingException | IllegalBlockSizeException | RuntimeException e) {
+                encryptCiphers.remove();
+                throw e;
+            }
         }
         catch(NoSuchPaddingException e) {
             throw new PKeyCryptoException("Unable to encrypt with padding" +e ,e);
@@ -270,9 +319,13 @@ public class RSAKeyCrypto implements PKeyCrypto {
         Cipher cipher = null;
 
         try {
-            cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-            cipher.init(Cipher.DECRYPT_MODE, this.privateKey);
-            data = cipher.doFinal(cipherData);
+            cipher = cipher(decryptCiphers, Cipher.DECRYPT_MODE, this.privateKey);
+            try {
+                data = cipher.doFinal(cipherData);
+            } catch (BadPaddingException | IllegalBlockSizeException | RuntimeException e) {
+                decryptCiphers.remove();
+                throw e;
+            }
         }
         catch(NoSuchPaddingException e) {
             throw new PKeyCryptoException("Unable to decrypt with Padding. " + e, e);
@@ -295,6 +348,44 @@ public class RSAKeyCrypto implements PKeyCrypto {
 
         return data;
     }
+
+    /**
+     * Signature and Cipher instances are not thread safe, and looking them up through the provider registration is
+     * expensive, so each thread keeps its own instance already initialized with this key. Signature and Cipher reset
+     * themselves to the initialized state after each successful operation, so they can be reused as is
+     */
+    private Signature verifier() throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature rsa = verifiers.get();
+        if (rsa == null) {
+            rsa = Signature.getInstance(this.algorithm);
+            rsa.initVerify(publicKey);
+            verifiers.set(rsa);
+        }
+        return rsa;
+    }
+
+    private Signature signer() throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature rsa = signers.get();
+        if (rsa == null) {
+            rsa = Signature.getInstance(this.algorithm);
+            rsa.initSign(privateKey);
+            signers.set(rsa);
+        }
+        return rsa;
+    }
+
+    private static Cipher cipher(ThreadLocal<Cipher> ciphers, int mode, Key key)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(cipherTransformation);
+            log.debug("Using Algorithm " + cipher.getAlgorithm());
+            log.debug("Block Size: " + cipher.getBlockSize());
+            cipher.init(mode, key);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
     
     public String getCSR(String dn) {
        return generatePKCS10(dn);
@@ -14,6 +14,7 @@
 
 package ezbake.crypto;
 
+import com.google.common.collect.Lists;
 import org.apache.commons.io.FileUtils;
 import org.junit.*;
 import org.slf4j.Logger;
@@ -25,6 +26,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.List;
 
 
 import static org.junit.Assert.assertTrue;
@@ -55,6 +57,31 @@ public class RSAKeyCryptoTest {
         assertTrue(crypto.verify(data, cipherData));
     }
 
+    @Test
+    public void testReuseAcrossOperations() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException,
+            PKeyCryptoException, InvalidKeySpecException {
+        RSAKeyCrypto crypto = new RSAKeyCrypto(privateKey, true);
+        for (int i = 0; i < 5; ++i) {
+            byte[] data = ("Some Data " + i).getBytes();
+            byte[] signature = crypto.sign(data);
+            assertTrue(crypto.verify(data, signature));
+            Assert.assertFalse(crypto.verify("Other Data".getBytes(), signature));
+            Assert.assertArrayEquals(data, crypto.decrypt(crypto.encrypt(data)));
+        }
+    }
+
+    @Test
+    public void testBatchVerify() throws NoSuchAlgorithmException, InvalidKeyException, PKeyCryptoException,
+            InvalidKeySpecException {
+        RSAKeyCrypto crypto = new RSAKeyCrypto(privateKey, true);
+        List<byte[]> data = Lists.newArrayList("one".getBytes(), "two".getBytes(), "three".getBytes());
+        List<byte[]> signatures = Lists.newArrayList(crypto.sign(data.get(0)), crypto.sign("wrong".getBytes()),
+                "not a signature".getBytes());
+
+        boolean[] verifies = crypto.verify(data, signatures);
+        Assert.assertArrayEquals(new boolean[]{true, false, false}, verifies);
+    }
+
     @Test
     public void testGenerateCSR() {
         RSAKeyCrypto crypto = new RSAKeyCrypto();
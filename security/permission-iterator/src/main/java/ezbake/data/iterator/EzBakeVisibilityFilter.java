@@ -14,19 +14,34 @@
 
 package ezbake.data.iterator;
 
-import static ezbake.security.serialize.VisibilitySerialization.deserializeVisibilityWrappedValue;
+import static ezbake.security.serialize.VisibilitySerialization.DICTIONARY_COLUMN_FAMILY;
+import static ezbake.security.serialize.VisibilitySerialization.REFERENCE_LENGTH;
+import static ezbake.security.serialize.VisibilitySerialization.VISIBILITY_OFFSET;
+import static ezbake.security.serialize.VisibilitySerialization.deserializeRawData;
+import static ezbake.security.serialize.VisibilitySerialization.deserializeVisibility;
+import static ezbake.security.serialize.VisibilitySerialization.getVisibilityDictionaryQualifier;
+import static ezbake.security.serialize.VisibilitySerialization.isDictionaryEntryFor;
+import static ezbake.security.serialize.VisibilitySerialization.isVisibilityDictionaryColumn;
+import static ezbake.security.serialize.VisibilitySerialization.isVisibilityReference;
+import static ezbake.security.serialize.VisibilitySerialization.readVisibilityLength;
+import static ezbake.security.serialize.VisibilitySerialization.readVisibilityReference;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.Filter;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.hadoop.io.Text;
 import org.apache.thrift.TException;
 
 import com.google.common.base.Joiner;
@@ -34,25 +49,133 @@ import com.google.common.base.Joiner;
 import ezbake.base.thrift.Authorizations;
 import ezbake.base.thrift.Permission;
 import ezbake.base.thrift.Visibility;
+import ezbake.security.permissions.CompiledAuthorizations;
 import ezbake.security.permissions.PermissionUtils;
 import ezbake.thrift.ThriftUtils;
 
 public class EzBakeVisibilityFilter extends Filter {
     private static final String USER_AUTHORIZATION_BASE64 = "userAuthorizationBase64";
     private static final String REQUIRED_PERMISSIONS = "requiredPermissions";
+    private static final String VISIBILITY_CACHE_SIZE = "visibilityCacheSize";
+    private static final int DEFAULT_VISIBILITY_CACHE_SIZE = 1000;
+    private static final String RETURN_RAW_DATA = "returnRawData";
 
-    private Authorizations userAuthorization = null;
+    private CompiledAuthorizations userAuthorization = null;
     private final EnumSet<Permission> requiredPermissions = EnumSet.noneOf(Permission.class);
+    private int visibilityCacheSize = DEFAULT_VISIBILITY_CACHE_SIZE;
+    private VisibilityDecisionCache decisions = null;
+    private boolean returnRawData = false;
+    private VisibilityDecisionCache referenceDecisions = null;
+    private SortedKeyValueIterator<Key, Value> dictionarySource = null;
+    private IteratorEnvironment env = null;
+    private boolean dictionaryFetched = true;
 
     @Override
     public boolean accept(Key k, Value v) {
-        Visibility visibility = null;
+        if (isVisibilityDictionaryColumn(k.getColumnFamilyData())) {
+            return false; // Dictionary entries aren't data
+        }
+
+        // Only the visibility is needed to decide, so leave the raw data where it is
+        final byte[] bytes = v.get();
         try {
-            visibility = deserializeVisibilityWrappedValue(v).getVisibilityMarkings();
+            if (isVisibilityReference(bytes, 0, bytes.length)) {
+                return acceptReference(k, bytes);
+            }
+
+            final int visibilityLength = readVisibilityLength(bytes, 0, bytes.length);
+            Boolean accepted = decisions == null ? null : decisions.get(bytes, VISIBILITY_OFFSET, visibilityLength);
+            if (accepted == null) {
+                accepted = isAccepted(deserializeVisibility(bytes, 0, bytes.length));
+                if (decisions != null) {
+                    decisions.put(bytes, VISIBILITY_OFFSET, visibilityLength, accepted);
+                }
+            }
+
+            return accepted;
         } catch (final IOException | TException e) {
             throw new RuntimeException(e.getMessage());
         }
+    }
+
+    @Override
+    public Value getTopValue() {
+        final Value value = super.getTopValue();
+        if (!returnRawData) {
+            return value;
+        }
+
+        // Strip the envelope server side so clients get only the payload they would have unwrapped themselves
+        final byte[] bytes = value.get();
+        try {
+            return new Value(deserializeRawData(bytes, 0, bytes.length), false);
+        } catch (final IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private boolean acceptReference(Key k, byte[] bytes) throws IOException, TException {
+        // Entries are only trusted if they hash to the reference, so a decision holds for every row using it
+        final Boolean cached = referenceDecisions.get(bytes, VISIBILITY_OFFSET, REFERENCE_LENGTH);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Visibility visibility = resolveReference(k.getRow(), readVisibilityReference(bytes, 0, bytes.length));
+        if (visibility == null) {
+            return false; // Can't tell what the visibility is, so don't show it. Not cached, another row may have it
+        }
+
+        final boolean accepted = isAccepted(visibility);
+        referenceDecisions.put(bytes, VISIBILITY_OFFSET, REFERENCE_LENGTH, accepted);
+        return accepted;
+    }
+
+    private Visibility resolveReference(Text row, byte[] reference) throws IOException, TException {
+        if (!dictionaryFetched) {
+            // Accumulo drops unfetched families below this iterator, so the entry can't be found even if it exists
+            throw new IllegalStateException("Scan fetches column families but not the visibility dictionary, so "
+                    + "version 2 values can't be resolved. Fetch VisibilitySerialization.DICTIONARY_COLUMN_FAMILY too");
+        }
+
+        if (dictionarySource == null) {
+            dictionarySource = getSource().deepCopy(env);
+        }
+
+        // The entry lives in the value's own row, which is always in this tablet
+        dictionarySource.seek(
+                Range.exact(row, DICTIONARY_COLUMN_FAMILY, getVisibilityDictionaryQualifier(reference)),
+                Collections.<ByteSequence>emptySet(), false);
+        if (!dictionarySource.hasTop()) {
+            return null;
+        }
 
+        // Only trust entries that hash to the reference
+        final byte[] serializedVisibility = dictionarySource.getTopValue().get();
+        if (!isDictionaryEntryFor(reference, serializedVisibility)) {
+            return null;
+        }
+
+        return ThriftUtils.deserialize(Visibility.class, serializedVisibility);
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        // An inclusive set is the families the scan fetched, and only those reach this iterator
+        dictionaryFetched = !inclusive || containsDictionaryColumn(columnFamilies);
+        super.seek(range, columnFamilies, inclusive);
+    }
+
+    private static boolean containsDictionaryColumn(Collection<ByteSequence> columnFamilies) {
+        for (final ByteSequence columnFamily : columnFamilies) {
+            if (isVisibilityDictionaryColumn(columnFamily)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAccepted(Visibility visibility) {
         return PermissionUtils.getPermissions(userAuthorization, visibility, false, requiredPermissions).containsAll(
                 requiredPermissions);
     }
@@ -61,12 +184,13 @@ public class EzBakeVisibilityFilter extends Filter {
     public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
             throws IOException {
         super.init(source, options, env);
+        this.env = env;
 
         if (options.containsKey(USER_AUTHORIZATION_BASE64)) {
             try {
-                userAuthorization =
+                userAuthorization = CompiledAuthorizations.of(
                         ThriftUtils.deserializeFromBase64(Authorizations.class,
-                                options.get(USER_AUTHORIZATION_BASE64));
+                                options.get(USER_AUTHORIZATION_BASE64)));
             } catch (final TException e) {
                 throw new IOException(e);
             }
@@ -81,6 +205,36 @@ public class EzBakeVisibilityFilter extends Filter {
         } else {
             throw new IllegalArgumentException("Missing required key: " + REQUIRED_PERMISSIONS);
         }
+
+        if (options.containsKey(VISIBILITY_CACHE_SIZE)) {
+            visibilityCacheSize = Integer.parseInt(options.get(VISIBILITY_CACHE_SIZE));
+        }
+        decisions = createDecisionCache(visibilityCacheSize);
+        referenceDecisions = createReferenceDecisionCache(visibilityCacheSize);
+
+        returnRawData = Boolean.parseBoolean(options.get(RETURN_RAW_DATA));
+    }
+
+    private static VisibilityDecisionCache createDecisionCache(int size) {
+        return size > 0 ? new VisibilityDecisionCache(size) : null;
+    }
+
+    private static VisibilityDecisionCache createReferenceDecisionCache(int size) {
+        // Always cache references, since resolving one means a seek into the dictionary
+        return new VisibilityDecisionCache(size > 0 ? size : DEFAULT_VISIBILITY_CACHE_SIZE);
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        final EzBakeVisibilityFilter copy = (EzBakeVisibilityFilter) super.deepCopy(env);
+        copy.userAuthorization = userAuthorization;
+        copy.requiredPermissions.addAll(requiredPermissions);
+        copy.visibilityCacheSize = visibilityCacheSize;
+        copy.decisions = createDecisionCache(visibilityCacheSize);
+        copy.referenceDecisions = createReferenceDecisionCache(visibilityCacheSize);
+        copy.env = env;
+        copy.returnRawData = returnRawData;
+        return copy;
     }
 
     @Override
@@ -93,6 +247,11 @@ public class EzBakeVisibilityFilter extends Filter {
 
         io.addNamedOption(USER_AUTHORIZATION_BASE64, "Base64 Encoded User Authorization");
         io.addNamedOption(REQUIRED_PERMISSIONS, "Comma delimited string of required permissions");
+        io.addNamedOption(VISIBILITY_CACHE_SIZE,
+                "Number of distinct visibilities to remember decisions for during a scan, 0 to disable (default "
+                        + DEFAULT_VISIBILITY_CACHE_SIZE + ")");
+        io.addNamedOption(RETURN_RAW_DATA,
+                "true to return only the raw data of accepted values instead of the serialized visibility wrapper");
         return io;
     }
 
@@ -101,4 +260,14 @@ public class EzBakeVisibilityFilter extends Filter {
         iteratorSetting.addOption(USER_AUTHORIZATION_BASE64, ThriftUtils.serializeToBase64(userAuths));
         iteratorSetting.addOption(REQUIRED_PERMISSIONS, Joiner.on(',').join(requiredPermissions));
     }
+
+    public static void setOptions(IteratorSetting iteratorSetting, Authorizations userAuths,
+            Set<Permission> requiredPermissions, boolean returnRawData) throws TException {
+        setOptions(iteratorSetting, userAuths, requiredPermissions);
+        iteratorSetting.addOption(RETURN_RAW_DATA, Boolean.toString(returnRawData));
+    }
+
+    public static void setVisibilityCacheSize(IteratorSetting iteratorSetting, int visibilityCacheSize) {
+        iteratorSetting.addOption(VISIBILITY_CACHE_SIZE, Integer.toString(visibilityCacheSize));
+    }
 }
@@ -0,0 +1,122 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.data.iterator;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used map from serialized visibility bytes to an accept/reject decision. Lookups hash and
+ * compare a region of the caller's array in place, so a hit allocates nothing. Not thread safe; each iterator instance
+ * owns one for the duration of its scan.
+ */
+class VisibilityDecisionCache {
+    private final Map<Bytes, Boolean> decisions;
+    private final Bytes probe = new Bytes();
+
+    VisibilityDecisionCache(final int maxSize) {
+        decisions = new LinkedHashMap<Bytes, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Bytes, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Look up the decision for some serialized visibility bytes.
+     *
+     * @param bytes array containing the serialized visibility
+     * @param offset offset of the serialized visibility
+     * @param length length of the serialized visibility
+     * @return the cached decision, or null if there is none
+     */
+    Boolean get(byte[] bytes, int offset, int length) {
+        probe.set(bytes, offset, length);
+        final Boolean decision = decisions.get(probe);
+        probe.set(null, 0, 0);
+        return decision;
+    }
+
+    /**
+     * Cache the decision for some serialized visibility bytes. The bytes are copied.
+     *
+     * @param bytes array containing the serialized visibility
+     * @param offset offset of the serialized visibility
+     * @param length length of the serialized visibility
+     * @param decision whether values with this visibility are accepted
+     */
+    void put(byte[] bytes, int offset, int length, boolean decision) {
+        final Bytes key = new Bytes();
+        key.set(Arrays.copyOfRange(bytes, offset, offset + length), 0, length);
+        decisions.put(key, decision);
+    }
+
+    int size() {
+        return decisions.size();
+    }
+
+    /**
+     * A region of a byte array, compared by content.
+     */
+    private static final class Bytes {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+        private int hash;
+
+        void set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+
+            int result = 1;
+            for (int i = offset; i < offset + length; i++) {
+                result = 31 * result + bytes[i];
+            }
+            hash = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Bytes)) {
+                return false;
+            }
+
+            final Bytes that = (Bytes) o;
+            if (hash != that.hash || length != that.length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != that.bytes[that.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
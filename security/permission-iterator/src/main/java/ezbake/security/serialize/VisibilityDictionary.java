@@ -0,0 +1,38 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.serialize;
+
+import java.io.IOException;
+
+import org.apache.thrift.TException;
+
+import ezbake.base.thrift.Visibility;
+
+/**
+ * Resolves the visibility references stored in version 2 serialized values to the visibility markings they stand for.
+ * See {@link ezbake.security.serialize.VisibilitySerialization#serializeVisibilityReferenceWithData(byte[], byte[])}.
+ */
+public interface VisibilityDictionary {
+    /**
+     * Look up the visibility markings for a reference.
+     *
+     * @param reference the reference, as returned by {@link
+     * ezbake.security.serialize.VisibilitySerialization#getVisibilityReference(ezbake.base.thrift.Visibility)}
+     * @return the visibility markings, or null if the dictionary has no entry for the reference
+     * @throws java.io.IOException if the dictionary could not be read
+     * @throws TException if the dictionary entry could not be deserialized
+     */
+    Visibility getVisibility(byte[] reference) throws IOException, TException;
+}
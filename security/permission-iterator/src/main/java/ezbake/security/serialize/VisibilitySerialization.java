@@ -14,14 +14,28 @@
 
 package ezbake.security.serialize;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
+import org.apache.accumulo.core.client.ScannerBase;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
 import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+
+import com.google.common.io.BaseEncoding;
 
 import ezbake.base.thrift.Visibility;
 import ezbake.security.serialize.thrift.VisibilityWrapper;
@@ -29,8 +43,61 @@ import ezbake.thrift.ThriftUtils;
 
 /**
  * BVSerialization contains a number of static functions that help with serializing data with it's visibility markings
+ * <p/>
+ * Two formats are supported. Version 1 embeds the serialized visibility in every value and remains the default.
+ * Version 2 stores only a fixed-size reference (the SHA-256 of the serialized visibility), and each distinct visibility
+ * is stored once per row, in a dictionary entry written with {@link #putVisibilityDictionaryEntry(Mutation,
+ * Visibility)}. The dictionary is kept per row because server side iterators only see their own tablet, and a row is
+ * never split between tablets. Readers detect the format from the first four bytes, which are a non-negative length in
+ * version 1 and {@link #VERSION_2_MARKER} in version 2.
+ * <p/>
+ * Because the dictionary is per row, version 2 does not deduplicate visibilities across rows. It only saves space in
+ * rows that hold many values with the same visibility, such as wide rows with a column per field. For rows with a
+ * single value, or whose values all have different visibilities, version 2 is larger than version 1: each value
+ * carries a 36 byte header and the row also stores a dictionary entry with the full visibility.
+ * <p/>
+ * Scans that fetch column families must also fetch the {@link #DICTIONARY_COLUMN_FAMILY} (see {@link
+ * #fetchVisibilityDictionary(ScannerBase)}), since Accumulo drops the other families before server side iterators
+ * see them. EzBakeVisibilityFilter fails the scan rather than silently dropping version 2 values when it is missing.
  */
 public class VisibilitySerialization {
+    /**
+     * Offset of the serialized visibility (version 1) or visibility reference (version 2) within a serialized value.
+     */
+    public static final int VISIBILITY_OFFSET = 4;
+
+    /**
+     * First four bytes of a version 2 value. Negative, so it can never be mistaken for a version 1 length.
+     */
+    public static final int VERSION_2_MARKER = 0xEB5A0002;
+
+    /**
+     * Length in bytes of a version 2 visibility reference.
+     */
+    public static final int REFERENCE_LENGTH = 32;
+
+    /**
+     * Column family of visibility dictionary entries. Starts with a zero byte so the entries sort before the data
+     * columns of their row.
+     */
+    public static final Text DICTIONARY_COLUMN_FAMILY = new Text("\0ezbake.visibility");
+
+    private static final byte[] DICTIONARY_COLUMN_FAMILY_BYTES =
+            "\0ezbake.visibility".getBytes(StandardCharsets.UTF_8);
+    private static final String REFERENCE_ALGORITHM = "SHA-256";
+
+    /**
+     * Largest visibility serialization buffer to keep around between calls on each thread.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<VisibilityBuffer> buffers = new ThreadLocal<VisibilityBuffer>() {
+        @Override
+        protected VisibilityBuffer initialValue() {
+            return new VisibilityBuffer();
+        }
+    };
+
     /**
      * This helper will serialize a visibility object and some binary data into a single binary array that can be used
      * to write the object to a database, specifically Accumulo.
@@ -58,28 +125,267 @@ public class VisibilitySerialization {
      */
     public static byte[] serializeVisibilityWithData(Visibility visibility, byte[] rawData) throws IOException,
             TException {
-        // Ensure sizes are written out as a big endian int
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream)) {
-            final byte[] visibilityBytes = ThriftUtils.serialize(visibility);
+        final VisibilityBuffer visibilityBytes = serializeVisibility(visibility);
+        try {
+            // Allocate exactly once, sizes are written out as big endian ints
+            final byte[] serialized = new byte[VISIBILITY_OFFSET + visibilityBytes.size() + 4 + rawData.length];
+            writeInt(serialized, 0, visibilityBytes.size());
+            System.arraycopy(visibilityBytes.array(), 0, serialized, VISIBILITY_OFFSET, visibilityBytes.size());
+            writeInt(serialized, VISIBILITY_OFFSET + visibilityBytes.size(), rawData.length);
+            System.arraycopy(rawData, 0, serialized, VISIBILITY_OFFSET + visibilityBytes.size() + 4, rawData.length);
 
-            // write visibility size
-            outputStream.writeInt(visibilityBytes.length);
+            return serialized;
+        } finally {
+            visibilityBytes.release();
+        }
+    }
 
-            // write visibility bytes
-            outputStream.write(visibilityBytes);
+    /**
+     * This helper will serialize a visibility object and some binary data into a caller-supplied buffer, starting at
+     * its current position. Nothing is written if the buffer does not have room for the whole value.
+     *
+     * @param visibility visibility markings to be serialized with the data
+     * @param rawData the raw binary data
+     * @param out the buffer to write to, its position is advanced past the value
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if the buffer does not have enough room remaining
+     * @throws TException
+     */
+    public static int serializeVisibilityWithData(Visibility visibility, byte[] rawData, ByteBuffer out)
+            throws TException {
+        final VisibilityBuffer visibilityBytes = serializeVisibility(visibility);
+        try {
+            final int size = VISIBILITY_OFFSET + visibilityBytes.size() + 4 + rawData.length;
+            if (out.remaining() < size) {
+                throw new BufferOverflowException();
+            }
 
-            // write rawData size
-            outputStream.writeInt(rawData.length);
+            // Write the lengths big endian whatever the buffer's byte order is
+            final ByteOrder order = out.order();
+            out.order(ByteOrder.BIG_ENDIAN);
+            out.putInt(visibilityBytes.size());
+            out.put(visibilityBytes.array(), 0, visibilityBytes.size());
+            out.putInt(rawData.length);
+            out.put(rawData);
+            out.order(order);
 
-            // write rawData bytes
-            outputStream.write(rawData);
-            outputStream.flush();
+            return size;
+        } finally {
+            visibilityBytes.release();
+        }
+    }
 
-            return byteArrayOutputStream.toByteArray();
+    /**
+     * Get the number of bytes a visibility object and some binary data will take once serialized, for sizing buffers
+     * passed to {@link #serializeVisibilityWithData(Visibility, byte[], java.nio.ByteBuffer)}.
+     *
+     * @param visibility visibility markings to be serialized with the data
+     * @param rawDataLength the length of the raw binary data
+     * @return the serialized size in bytes
+     * @throws TException
+     */
+    public static int getSerializedSize(Visibility visibility, int rawDataLength) throws TException {
+        final VisibilityBuffer visibilityBytes = serializeVisibility(visibility);
+        try {
+            return VISIBILITY_OFFSET + visibilityBytes.size() + 4 + rawDataLength;
+        } finally {
+            visibilityBytes.release();
         }
     }
 
+    /**
+     * Get a view of a serialized value that exposes its visibility and raw data without copying them.
+     *
+     * @param object a value that has been serialized with BVSerialization
+     * @return a view over the value's array
+     * @throws java.io.IOException if the value is truncated
+     */
+    public static VisibilityWrappedView view(Value object) throws IOException {
+        final byte[] bytes = object.get();
+        return new VisibilityWrappedView(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Get a view of a region of a byte array that exposes its visibility and raw data without copying them.
+     *
+     * @param object an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @return a view over the array
+     * @throws java.io.IOException if the value is truncated
+     */
+    public static VisibilityWrappedView view(byte[] object, int offset, int length) throws IOException {
+        return new VisibilityWrappedView(object, offset, length);
+    }
+
+    /**
+     * Get a view of the remaining bytes of a buffer. Array-backed buffers are not copied.
+     *
+     * @param object a buffer containing a value that has been serialized with BVSerialization, its position is not
+     * changed
+     * @return a view over the buffer's contents
+     * @throws java.io.IOException if the value is truncated
+     */
+    public static VisibilityWrappedView view(ByteBuffer object) throws IOException {
+        if (object.hasArray()) {
+            return new VisibilityWrappedView(
+                    object.array(), object.arrayOffset() + object.position(), object.remaining());
+        }
+
+        final byte[] bytes = new byte[object.remaining()];
+        object.duplicate().get(bytes);
+        return new VisibilityWrappedView(bytes, 0, bytes.length);
+    }
+
+    /**
+     * This helper serializes a visibility reference and some binary data into the version 2 format, which stores the
+     * reference in place of the full visibility. The visibility itself must be stored in the dictionary of the same
+     * row with {@link #putVisibilityDictionaryEntry(Mutation, Visibility)}.
+     *
+     * @param reference the reference returned by {@link #getVisibilityReference(Visibility)}
+     * @param rawData the raw binary data
+     * @return the serialized data
+     */
+    public static byte[] serializeVisibilityReferenceWithData(byte[] reference, byte[] rawData) {
+        if (reference.length != REFERENCE_LENGTH) {
+            throw new IllegalArgumentException("Visibility reference must be " + REFERENCE_LENGTH + " bytes");
+        }
+
+        final byte[] serialized = new byte[VISIBILITY_OFFSET + REFERENCE_LENGTH + 4 + rawData.length];
+        writeInt(serialized, 0, VERSION_2_MARKER);
+        System.arraycopy(reference, 0, serialized, VISIBILITY_OFFSET, REFERENCE_LENGTH);
+        writeInt(serialized, VISIBILITY_OFFSET + REFERENCE_LENGTH, rawData.length);
+        System.arraycopy(rawData, 0, serialized, VISIBILITY_OFFSET + REFERENCE_LENGTH + 4, rawData.length);
+
+        return serialized;
+    }
+
+    /**
+     * This helper serializes a visibility reference and some binary data into the version 2 format, wrapped in an
+     * Accumulo Value.
+     *
+     * @param reference the reference returned by {@link #getVisibilityReference(Visibility)}
+     * @param rawData the raw binary data
+     * @return the serialized data
+     */
+    public static Value serializeVisibilityReferenceWithDataToValue(byte[] reference, byte[] rawData) {
+        return new Value(serializeVisibilityReferenceWithData(reference, rawData), false);
+    }
+
+    /**
+     * Compute the version 2 reference for a visibility: the SHA-256 of its serialized form.
+     *
+     * @param visibility visibility markings
+     * @return the reference
+     * @throws TException
+     */
+    public static byte[] getVisibilityReference(Visibility visibility) throws TException {
+        return getVisibilityReference(ThriftUtils.serialize(visibility));
+    }
+
+    /**
+     * Add the dictionary entry for a visibility to a mutation, so that version 2 values in the mutation's row that
+     * refer to it can be resolved. Every row holding version 2 values needs the entries for the visibilities its
+     * values use; writing the same entry more than once is harmless. Entries are written without an Accumulo column
+     * visibility so that every scan can resolve them. Scans that don't use EzBakeVisibilityFilter should skip them
+     * with {@link #isVisibilityDictionaryColumn(ByteSequence)}. Scans that do use it and fetch column families must
+     * fetch the dictionary too, see {@link #fetchVisibilityDictionary(ScannerBase)}.
+     *
+     * @param mutation the mutation for the row holding the values
+     * @param visibility visibility markings
+     * @return the reference to store in the values, see {@link #serializeVisibilityReferenceWithData(byte[], byte[])}
+     * @throws TException
+     */
+    public static byte[] putVisibilityDictionaryEntry(Mutation mutation, Visibility visibility) throws TException {
+        final byte[] serialized = ThriftUtils.serialize(visibility);
+        final byte[] reference = getVisibilityReference(serialized);
+        mutation.put(
+                DICTIONARY_COLUMN_FAMILY, getVisibilityDictionaryQualifier(reference), new Value(serialized, false));
+        return reference;
+    }
+
+    /**
+     * Fetch the visibility dictionary in a scan that fetches specific column families, so that EzBakeVisibilityFilter
+     * can resolve version 2 values. Scans that don't fetch column families see the dictionary already.
+     *
+     * @param scanner the scanner
+     */
+    public static void fetchVisibilityDictionary(ScannerBase scanner) {
+        scanner.fetchColumnFamily(DICTIONARY_COLUMN_FAMILY);
+    }
+
+    /**
+     * Get the column qualifier of the dictionary entry for a visibility reference.
+     *
+     * @param reference the reference
+     * @return the qualifier of the entry within the {@link #DICTIONARY_COLUMN_FAMILY}
+     */
+    public static Text getVisibilityDictionaryQualifier(byte[] reference) {
+        return new Text(BaseEncoding.base16().lowerCase().encode(reference));
+    }
+
+    /**
+     * Check whether a column family holds visibility dictionary entries rather than data.
+     *
+     * @param columnFamily the column family
+     * @return true if the column family is the {@link #DICTIONARY_COLUMN_FAMILY}
+     */
+    public static boolean isVisibilityDictionaryColumn(ByteSequence columnFamily) {
+        if (columnFamily.length() != DICTIONARY_COLUMN_FAMILY_BYTES.length) {
+            return false;
+        }
+
+        for (int i = 0; i < DICTIONARY_COLUMN_FAMILY_BYTES.length; i++) {
+            if (columnFamily.byteAt(i) != DICTIONARY_COLUMN_FAMILY_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that a dictionary entry really is the visibility a reference stands for.
+     *
+     * @param reference the reference
+     * @param serializedVisibility the serialized visibility stored in the dictionary
+     * @return true if the entry matches the reference
+     */
+    public static boolean isDictionaryEntryFor(byte[] reference, byte[] serializedVisibility) {
+        return MessageDigest.isEqual(reference, getVisibilityReference(serializedVisibility));
+    }
+
+    /**
+     * Check whether a serialized value uses the version 2 format.
+     *
+     * @param object an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @return true if the value holds a visibility reference instead of a visibility
+     */
+    public static boolean isVisibilityReference(byte[] object, int offset, int length) {
+        return length >= VISIBILITY_OFFSET + REFERENCE_LENGTH && (object[offset] & 0xff) == (VERSION_2_MARKER >>> 24)
+                && (object[offset + 1] & 0xff) == (VERSION_2_MARKER >>> 16 & 0xff)
+                && (object[offset + 2] & 0xff) == (VERSION_2_MARKER >>> 8 & 0xff)
+                && (object[offset + 3] & 0xff) == (VERSION_2_MARKER & 0xff);
+    }
+
+    /**
+     * Read the visibility reference from a version 2 value.
+     *
+     * @param object an array containing a version 2 value
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @return a copy of the reference
+     * @throws java.io.IOException if the value is not a version 2 value
+     */
+    public static byte[] readVisibilityReference(byte[] object, int offset, int length) throws IOException {
+        if (!isVisibilityReference(object, offset, length)) {
+            throw new IOException("Serialized value does not contain a visibility reference");
+        }
+
+        return Arrays.copyOfRange(object, offset + VISIBILITY_OFFSET, offset + VISIBILITY_OFFSET + REFERENCE_LENGTH);
+    }
+
     /**
      * This helper takes a Value, Accumulo's native data type for values, and deserializes it into a wrapped
      * visibility object. It will throw a IOException if it cannot deserialize the value.
@@ -102,23 +408,204 @@ public class VisibilitySerialization {
      * @throws java.io.IOException, TException
      */
     public static VisibilityWrapper deserializeVisibilityWrappedBytes(byte[] object) throws IOException, TException {
-        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(object);
-                DataInputStream inputStream = new DataInputStream(byteArrayInputStream)) {
-            // read visibility size, read rawData
-            final int visibilityLength = inputStream.readInt();
-            final byte[] serializedVisibility = new byte[visibilityLength];
-            inputStream.readFully(serializedVisibility, 0, visibilityLength);
-
-            // read rawData size, read rawData
-            final int rawLength = inputStream.readInt();
-            final byte[] returnedRawData = new byte[rawLength];
-            inputStream.readFully(returnedRawData, 0, rawLength);
-
-            final VisibilityWrapper vw = new VisibilityWrapper();
-            vw.setVisibilityMarkings(ThriftUtils.deserialize(Visibility.class, serializedVisibility));
-            vw.setValue(returnedRawData);
-
-            return vw;
+        return deserializeVisibilityWrappedBytes(object, null);
+    }
+
+    /**
+     * This helper takes a byte array in either format and deserializes it into a wrapped visibility object, resolving
+     * version 2 visibility references through a dictionary. It will throw a IOException if it cannot deserialize the
+     * value.
+     *
+     * @param object a value that has been serialized with BVSerialization
+     * @param dictionary the dictionary to resolve visibility references with, may be null for version 1 values
+     * @return a wrapper object with visibility and a binary value
+     * @throws java.io.IOException, TException
+     */
+    public static VisibilityWrapper deserializeVisibilityWrappedBytes(byte[] object, VisibilityDictionary dictionary)
+            throws IOException, TException {
+        final VisibilityWrappedView view = view(object, 0, object.length);
+        final VisibilityWrapper vw = new VisibilityWrapper();
+        vw.setVisibilityMarkings(view.getVisibility(dictionary));
+        vw.setValue(view.getRawData());
+
+        return vw;
+    }
+
+    /**
+     * This helper reads only the visibility markings from a Value that has been serialized with BVSerialization. The
+     * raw data is neither read nor copied.
+     *
+     * @param object a value that has been serialized with BVSerialization
+     * @return the visibility markings
+     * @throws java.io.IOException if the value is not long enough to hold its visibility
+     * @throws TException
+     */
+    public static Visibility deserializeVisibility(Value object) throws IOException, TException {
+        final byte[] bytes = object.get();
+        return deserializeVisibility(bytes, 0, bytes.length);
+    }
+
+    /**
+     * This helper reads only the visibility markings from a region of a byte array that has been serialized with
+     * BVSerialization, deserializing them directly from the array. The raw data is neither read nor copied.
+     *
+     * @param object an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @return the visibility markings
+     * @throws java.io.IOException if the value is not long enough to hold its visibility
+     * @throws TException
+     */
+    public static Visibility deserializeVisibility(byte[] object, int offset, int length) throws IOException,
+            TException {
+        return deserializeVisibility(object, offset, length, null);
+    }
+
+    /**
+     * This helper reads only the visibility markings from a region of a byte array in either format, resolving version
+     * 2 visibility references through a dictionary. The raw data is neither read nor copied.
+     *
+     * @param object an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @param dictionary the dictionary to resolve visibility references with, may be null for version 1 values
+     * @return the visibility markings
+     * @throws java.io.IOException if the value is truncated, or is a reference that can't be resolved
+     * @throws TException
+     */
+    public static Visibility deserializeVisibility(byte[] object, int offset, int length,
+            VisibilityDictionary dictionary) throws IOException, TException {
+        if (isVisibilityReference(object, offset, length)) {
+            if (dictionary == null) {
+                throw new IOException("Value refers to a dictionary visibility but no dictionary was given");
+            }
+
+            final byte[] reference = readVisibilityReference(object, offset, length);
+            final Visibility visibility = dictionary.getVisibility(reference);
+            if (visibility == null) {
+                throw new IOException("No dictionary entry for visibility "
+                        + BaseEncoding.base16().lowerCase().encode(reference));
+            }
+            return visibility;
+        }
+
+        final int visibilityLength = readVisibilityLength(object, offset, length);
+        return ThriftUtils.deserialize(Visibility.class, object, offset + VISIBILITY_OFFSET, visibilityLength);
+    }
+
+    /**
+     * This helper reads only the raw data from a region of a byte array that has been serialized with BVSerialization.
+     * The visibility markings are skipped without being deserialized.
+     *
+     * @param object an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @return a copy of the raw data
+     * @throws java.io.IOException if the value is not long enough to hold its visibility and raw data
+     */
+    public static byte[] deserializeRawData(byte[] object, int offset, int length) throws IOException {
+        return view(object, offset, length).getRawData();
+    }
+
+    /**
+     * Read the big endian visibility length at the start of a serialized value and check that it fits.
+     *
+     * @param object an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @return the length of the serialized visibility, which starts at {@code offset + VISIBILITY_OFFSET}
+     * @throws java.io.IOException if the value is not long enough to hold its visibility
+     */
+    public static int readVisibilityLength(byte[] object, int offset, int length) throws IOException {
+        final int visibilityLength = readInt(object, offset, length);
+        if (visibilityLength < 0 || visibilityLength > length - VISIBILITY_OFFSET) {
+            throw new EOFException("Serialized visibility length " + visibilityLength + " does not fit in value");
+        }
+
+        return visibilityLength;
+    }
+
+    /**
+     * Read a big endian int.
+     *
+     * @param object the array to read from
+     * @param offset the offset of the int
+     * @param remaining the number of bytes available from the offset
+     * @return the int
+     * @throws java.io.IOException if fewer than four bytes are available
+     */
+    static int readInt(byte[] object, int offset, int remaining) throws IOException {
+        if (remaining < 4) {
+            throw new EOFException("Serialized value is too short to contain a length");
+        }
+
+        return (object[offset] & 0xff) << 24 | (object[offset + 1] & 0xff) << 16 | (object[offset + 2] & 0xff) << 8
+                | object[offset + 3] & 0xff;
+    }
+
+    /**
+     * Write a big endian int.
+     *
+     * @param object the array to write to
+     * @param offset the offset to write at
+     * @param value the int
+     */
+    private static void writeInt(byte[] object, int offset, int value) {
+        object[offset] = (byte) (value >>> 24);
+        object[offset + 1] = (byte) (value >>> 16);
+        object[offset + 2] = (byte) (value >>> 8);
+        object[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Compute the reference for a serialized visibility.
+     *
+     * @param serializedVisibility the serialized visibility
+     * @return the SHA-256 of the serialized visibility
+     */
+    private static byte[] getVisibilityReference(byte[] serializedVisibility) {
+        try {
+            return MessageDigest.getInstance(REFERENCE_ALGORITHM).digest(serializedVisibility);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(REFERENCE_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Serialize a visibility into this thread's reusable buffer. Call {@link VisibilityBuffer#release()} once the
+     * bytes have been copied out.
+     *
+     * @param visibility visibility markings
+     * @return the buffer holding the serialized visibility
+     * @throws TException
+     */
+    private static VisibilityBuffer serializeVisibility(Visibility visibility) throws TException {
+        final VisibilityBuffer buffer = buffers.get();
+        buffer.reset();
+        visibility.write(buffer.protocol);
+        return buffer;
+    }
+
+    /**
+     * Growable buffer that exposes its array, so serialized visibilities can be copied straight into their final
+     * place.
+     */
+    private static final class VisibilityBuffer extends ByteArrayOutputStream {
+        private final TProtocol protocol = new TBinaryProtocol(new TIOStreamTransport(this));
+
+        VisibilityBuffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void release() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[256];
+            }
+            reset();
         }
     }
 }
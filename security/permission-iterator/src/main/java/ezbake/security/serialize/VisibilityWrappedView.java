@@ -0,0 +1,162 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.serialize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.thrift.TException;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.thrift.ThriftUtils;
+
+/**
+ * A lightweight view of a value serialized with {@link ezbake.security.serialize.VisibilitySerialization}, in either
+ * format. Creating a view only reads the length prefixes; the visibility and raw data are exposed as slices of the
+ * original array and nothing is copied until asked for. The visibility is deserialized on first access and then kept.
+ * <p/>
+ * Views are not thread safe, and reflect any later changes to the underlying array.
+ */
+public final class VisibilityWrappedView {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final boolean reference;
+    private final int visibilityOffset;
+    private final int visibilityLength;
+    private final int rawOffset;
+    private final int rawLength;
+    private Visibility visibility;
+
+    /**
+     * Parse the header of a serialized value.
+     *
+     * @param bytes an array containing a value that has been serialized with BVSerialization
+     * @param offset the offset of the serialized value in the array
+     * @param length the length of the serialized value
+     * @throws java.io.IOException if the value is truncated
+     */
+    VisibilityWrappedView(byte[] bytes, int offset, int length) throws IOException {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        reference = VisibilitySerialization.isVisibilityReference(bytes, offset, length);
+        visibilityOffset = offset + VisibilitySerialization.VISIBILITY_OFFSET;
+        visibilityLength = reference ? VisibilitySerialization.REFERENCE_LENGTH
+                : VisibilitySerialization.readVisibilityLength(bytes, offset, length);
+
+        final int rawLengthOffset = VisibilitySerialization.VISIBILITY_OFFSET + visibilityLength;
+        rawLength = VisibilitySerialization.readInt(bytes, offset + rawLengthOffset, length - rawLengthOffset);
+        if (rawLength < 0 || rawLength > length - rawLengthOffset - 4) {
+            throw new EOFException("Serialized raw data length " + rawLength + " does not fit in value");
+        }
+        rawOffset = offset + rawLengthOffset + 4;
+    }
+
+    /**
+     * Whether the value holds a version 2 visibility reference rather than the visibility itself.
+     *
+     * @return true for version 2 values
+     */
+    public boolean isVisibilityReference() {
+        return reference;
+    }
+
+    /**
+     * Get the visibility markings, deserializing them on first access. Version 2 values can only be read with {@link
+     * #getVisibility(VisibilityDictionary)}.
+     *
+     * @return the visibility markings
+     * @throws java.io.IOException if the value holds a visibility reference
+     * @throws TException
+     */
+    public Visibility getVisibility() throws IOException, TException {
+        return getVisibility(null);
+    }
+
+    /**
+     * Get the visibility markings, deserializing or resolving them on first access.
+     *
+     * @param dictionary the dictionary to resolve visibility references with, may be null for version 1 values
+     * @return the visibility markings
+     * @throws java.io.IOException if the value holds a reference that can't be resolved
+     * @throws TException
+     */
+    public Visibility getVisibility(VisibilityDictionary dictionary) throws IOException, TException {
+        if (visibility == null) {
+            if (reference) {
+                visibility = VisibilitySerialization.deserializeVisibility(bytes, offset, length, dictionary);
+            } else {
+                visibility = ThriftUtils.deserialize(Visibility.class, bytes, visibilityOffset, visibilityLength);
+            }
+        }
+
+        return visibility;
+    }
+
+    /**
+     * Get the serialized visibility (version 1) or visibility reference (version 2) without copying it.
+     *
+     * @return a read-only buffer over the region of the underlying array
+     */
+    public ByteBuffer getVisibilityBuffer() {
+        return ByteBuffer.wrap(bytes, visibilityOffset, visibilityLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the raw data without copying it.
+     *
+     * @return a read-only buffer over the region of the underlying array
+     */
+    public ByteBuffer getRawDataBuffer() {
+        return ByteBuffer.wrap(bytes, rawOffset, rawLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a copy of the raw data.
+     *
+     * @return the raw data
+     */
+    public byte[] getRawData() {
+        return Arrays.copyOfRange(bytes, rawOffset, rawOffset + rawLength);
+    }
+
+    /**
+     * Get the underlying array, for use with the offsets and lengths of this view.
+     *
+     * @return the array the view was created over, not a copy
+     */
+    public byte[] getArray() {
+        return bytes;
+    }
+
+    public int getVisibilityOffset() {
+        return visibilityOffset;
+    }
+
+    public int getVisibilityLength() {
+        return visibilityLength;
+    }
+
+    public int getRawDataOffset() {
+        return rawOffset;
+    }
+
+    public int getRawDataLength() {
+        return rawLength;
+    }
+}
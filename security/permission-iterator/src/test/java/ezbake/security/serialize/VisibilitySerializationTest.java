@@ -20,14 +20,26 @@ import ezbake.base.thrift.PlatformObjectVisibilities;
 import ezbake.base.thrift.Visibility;
 import ezbake.security.serialize.thrift.VisibilityWrapper;
 import ezbake.thrift.ThriftUtils;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.apache.thrift.TException;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -141,6 +153,130 @@ public class VisibilitySerializationTest {
                 .getVisibilityMarkings());
     }
 
+    @Test
+    public void testDeserializeVisibilityOnly() throws Exception {
+        final Visibility visibility = createVisibility();
+        final Value value = VisibilitySerialization.serializeVisibilityWithDataToValue(visibility, new byte[1024]);
+
+        assertEquals(visibility, VisibilitySerialization.deserializeVisibility(value));
+
+        // Visibility comes from the region only, anything around it is ignored
+        final byte[] padded = new byte[value.get().length + 10];
+        System.arraycopy(value.get(), 0, padded, 5, value.get().length);
+        assertEquals(visibility, VisibilitySerialization.deserializeVisibility(padded, 5, value.get().length));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testDeserializeVisibilityTruncated() throws Exception {
+        final byte[] serialized = VisibilitySerialization.serializeVisibilityWithData(createVisibility(), new byte[0]);
+        VisibilitySerialization.deserializeVisibility(serialized, 0, 10);
+    }
+
+    @Test
+    public void testReferenceFormat() throws Exception {
+        final Visibility visibility = createVisibility();
+        final byte[] data = "Test Data".getBytes();
+        final byte[] reference = VisibilitySerialization.getVisibilityReference(visibility);
+        final byte[] serialized = VisibilitySerialization.serializeVisibilityReferenceWithData(reference, data);
+
+        assertTrue(VisibilitySerialization.isVisibilityReference(serialized, 0, serialized.length));
+        assertArrayEquals(reference, VisibilitySerialization.readVisibilityReference(serialized, 0, serialized.length));
+        assertArrayEquals(data, VisibilitySerialization.deserializeRawData(serialized, 0, serialized.length));
+
+        final VisibilityDictionary dictionary = new VisibilityDictionary() {
+            @Override
+            public Visibility getVisibility(byte[] ref) throws TException {
+                return Arrays.equals(reference, ref) ? createVisibilityUnchecked() : null;
+            }
+        };
+        final VisibilityWrapper wrapper =
+                VisibilitySerialization.deserializeVisibilityWrappedBytes(serialized, dictionary);
+        assertEquals(visibility, wrapper.getVisibilityMarkings());
+        assertArrayEquals(data, wrapper.getValue());
+
+        // Version 1 values are still readable with a dictionary
+        final byte[] version1 = VisibilitySerialization.serializeVisibilityWithData(visibility, data);
+        assertFalse(VisibilitySerialization.isVisibilityReference(version1, 0, version1.length));
+        assertEquals(visibility,
+                VisibilitySerialization.deserializeVisibilityWrappedBytes(version1, dictionary).getVisibilityMarkings());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReferenceFormatNeedsDictionary() throws Exception {
+        final byte[] reference = VisibilitySerialization.getVisibilityReference(createVisibility());
+        VisibilitySerialization.deserializeVisibilityWrappedBytes(
+                VisibilitySerialization.serializeVisibilityReferenceWithData(reference, new byte[0]));
+    }
+
+    @Test
+    public void testDictionaryEntry() throws Exception {
+        final Visibility visibility = createVisibility();
+        final Mutation mutation = new Mutation("row");
+        final byte[] reference = VisibilitySerialization.putVisibilityDictionaryEntry(mutation, visibility);
+        assertArrayEquals(VisibilitySerialization.getVisibilityReference(visibility), reference);
+
+        final ColumnUpdate update = mutation.getUpdates().get(0);
+        assertTrue(VisibilitySerialization.isVisibilityDictionaryColumn(
+                new ArrayByteSequence(update.getColumnFamily())));
+        assertFalse(VisibilitySerialization.isVisibilityDictionaryColumn(new ArrayByteSequence("data")));
+        assertEquals(VisibilitySerialization.getVisibilityDictionaryQualifier(reference),
+                new Text(update.getColumnQualifier()));
+
+        assertTrue(VisibilitySerialization.isDictionaryEntryFor(reference, update.getValue()));
+        assertEquals(visibility, ThriftUtils.deserialize(Visibility.class, update.getValue()));
+    }
+
+    private static Visibility createVisibilityUnchecked() {
+        try {
+            return createVisibility();
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSerializeToBuffer() throws Exception {
+        final Visibility visibility = createVisibility();
+        final byte[] data = "Test Data".getBytes();
+        final byte[] expected = VisibilitySerialization.serializeVisibilityWithData(visibility, data);
+        assertEquals(expected.length, VisibilitySerialization.getSerializedSize(visibility, data.length));
+
+        // Lengths are big endian even if the buffer isn't
+        final ByteBuffer buffer = ByteBuffer.allocate(expected.length + 3).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 7);
+        assertEquals(expected.length, VisibilitySerialization.serializeVisibilityWithData(visibility, data, buffer));
+        assertEquals(expected.length + 1, buffer.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+        assertArrayEquals(expected, Arrays.copyOfRange(buffer.array(), 1, expected.length + 1));
+    }
+
+    @Test
+    public void testSerializeToSmallBuffer() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        try {
+            VisibilitySerialization.serializeVisibilityWithData(createVisibility(), new byte[4], buffer);
+            fail("Expected BufferOverflowException");
+        } catch (final BufferOverflowException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testView() throws Exception {
+        final Visibility visibility = createVisibility();
+        final byte[] data = "Test Data".getBytes();
+        final byte[] serialized = VisibilitySerialization.serializeVisibilityWithData(visibility, data);
+
+        final VisibilityWrappedView view = VisibilitySerialization.view(ByteBuffer.wrap(serialized));
+        assertFalse(view.isVisibilityReference());
+        assertTrue(view.getArray() == serialized);
+        assertEquals(ByteBuffer.wrap(data), view.getRawDataBuffer());
+        assertArrayEquals(data, view.getRawData());
+        assertEquals(ByteBuffer.wrap(ThriftUtils.serialize(visibility)), view.getVisibilityBuffer());
+        assertEquals(visibility, view.getVisibility());
+        assertTrue(view.getVisibility() == view.getVisibility());
+    }
+
     @Test
     public void testLargeSerialize() throws Exception {
         final int size = 127000000;
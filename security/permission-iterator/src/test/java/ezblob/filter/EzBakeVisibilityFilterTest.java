@@ -17,21 +17,40 @@ package ezblob.filter;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import static ezbake.security.serialize.VisibilitySerialization.DICTIONARY_COLUMN_FAMILY;
+import static ezbake.security.serialize.VisibilitySerialization.getVisibilityReference;
+import static ezbake.security.serialize.VisibilitySerialization.putVisibilityDictionaryEntry;
+import static ezbake.security.serialize.VisibilitySerialization.serializeVisibilityReferenceWithDataToValue;
 import static ezbake.security.serialize.VisibilitySerialization.serializeVisibilityWithDataToValue;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.system.ColumnFamilySkippingIterator;
+import org.apache.hadoop.io.Text;
 import org.apache.thrift.TException;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -237,6 +256,176 @@ public class EzBakeVisibilityFilterTest {
         assertFalse(ezBakeVisibilityFilter.accept(key, value));
     }
 
+    @Test
+    public void acceptRemembersDecisionsPerVisibility() throws TException, IOException {
+        final Authorizations auths = new Authorizations();
+        auths.setPlatformObjectAuthorizations(Sets.newHashSet(1L));
+
+        final Map<String, String> options = Maps.newHashMap();
+        options.put("userAuthorizationBase64", ThriftUtils.serializeToBase64(auths));
+        options.put("requiredPermissions", "READ");
+        options.put("visibilityCacheSize", "1");
+        ezBakeVisibilityFilter.init(ezBakeVisibilityFilter, options, null);
+
+        final Key key = new Key("key");
+        for (int i = 0; i < 10; i++) {
+            // Alternate so the single cache entry is evicted each time, and vary the data so only the visibility
+            // bytes decide
+            final long readId = i % 2;
+            final PlatformObjectVisibilities platformObjectVisibilities = new PlatformObjectVisibilities();
+            platformObjectVisibilities.setPlatformObjectReadVisibility(Sets.newHashSet(readId));
+            final AdvancedMarkings advancedMarkings = new AdvancedMarkings();
+            advancedMarkings.setPlatformObjectVisibility(platformObjectVisibilities);
+            final Visibility visibility = new Visibility();
+            visibility.setAdvancedMarkings(advancedMarkings);
+
+            final Value value = serializeVisibilityWithDataToValue(visibility, ("test" + i).getBytes());
+            assertEquals(readId == 1L, ezBakeVisibilityFilter.accept(key, value));
+            assertEquals(readId == 1L, ezBakeVisibilityFilter.accept(key, value));
+        }
+    }
+
+    @Test
+    public void returnRawDataStripsVisibility() throws TException, IOException {
+        final Authorizations auths = new Authorizations();
+        auths.setPlatformObjectAuthorizations(Sets.newHashSet(1L));
+
+        final TreeMap<Key, Value> data = new TreeMap<>();
+        for (long readId = 0; readId < 4; readId++) {
+            final PlatformObjectVisibilities platformObjectVisibilities = new PlatformObjectVisibilities();
+            platformObjectVisibilities.setPlatformObjectReadVisibility(Sets.newHashSet(readId % 2));
+            final AdvancedMarkings advancedMarkings = new AdvancedMarkings();
+            advancedMarkings.setPlatformObjectVisibility(platformObjectVisibilities);
+            final Visibility visibility = new Visibility();
+            visibility.setAdvancedMarkings(advancedMarkings);
+
+            data.put(new Key("row" + readId), serializeVisibilityWithDataToValue(visibility, ("data" + readId)
+                    .getBytes()));
+        }
+
+        final IteratorSetting setting = new IteratorSetting(15, "test", EzBakeVisibilityFilter.class);
+        EzBakeVisibilityFilter.setOptions(setting, auths, EnumSet.of(Permission.READ), true);
+        ezBakeVisibilityFilter.init(new SortedMapIterator(data), setting.getOptions(), null);
+        ezBakeVisibilityFilter.seek(new Range(), Collections.<ByteSequence>emptySet(), false);
+
+        final List<String> values = Lists.newArrayList();
+        while (ezBakeVisibilityFilter.hasTop()) {
+            values.add(new String(ezBakeVisibilityFilter.getTopValue().get()));
+            ezBakeVisibilityFilter.next();
+        }
+
+        assertEquals(Lists.newArrayList("data1", "data3"), values);
+    }
+
+    @Test
+    public void acceptResolvesDictionaryReferences() throws TException, IOException {
+        final Authorizations auths = new Authorizations();
+        auths.setPlatformObjectAuthorizations(Sets.newHashSet(1L));
+
+        final TreeMap<Key, Value> data = new TreeMap<>();
+        putReference(data, "row0", readVisibility(0L), "data0", true);
+        putReference(data, "row1", readVisibility(1L), "data1", true);
+        data.put(new Key("row2", "data"), serializeVisibilityWithDataToValue(readVisibility(1L), "data2".getBytes()));
+        putReference(data, "row3", new Visibility().setFormalVisibility("missing"), "data3", false);
+        putReference(data, "row4", readVisibility(1L), "data4", true);
+
+        assertEquals(Lists.newArrayList("data1", "data2", "data4"), scan(data, auths));
+    }
+
+    @Test
+    public void acceptResolvesDictionaryReferencesAcrossSplits() throws TException, IOException {
+        final Authorizations auths = new Authorizations();
+        auths.setPlatformObjectAuthorizations(Sets.newHashSet(1L));
+
+        final TreeMap<Key, Value> data = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            putReference(data, "row" + i, readVisibility(i % 2), "data" + i, true);
+        }
+        // The only entry for this visibility is in a row of the first tablet
+        final Visibility firstTabletOnly = readVisibility(1L).setFormalVisibility("U");
+        putReference(data, "row0a", firstTabletOnly, "data0a", true);
+        putReference(data, "row8a", firstTabletOnly, "data8a", false);
+
+        // Each tablet's iterator stack only sees the tablet's own rows
+        final List<String> values = Lists.newArrayList();
+        values.addAll(scan(data.headMap(new Key("row4")), auths));
+        values.addAll(scan(data.subMap(new Key("row4"), new Key("row7")), auths));
+        values.addAll(scan(data.tailMap(new Key("row7")), auths));
+
+        assertEquals(Lists.newArrayList("data0a", "data1", "data3", "data5", "data7", "data9"), values);
+    }
+
+    @Test
+    public void acceptFailsWhenFetchedColumnsHideTheDictionary() throws TException, IOException {
+        final Authorizations auths = new Authorizations();
+        auths.setPlatformObjectAuthorizations(Sets.newHashSet(1L));
+
+        final TreeMap<Key, Value> data = new TreeMap<>();
+        for (int i = 0; i < 4; i++) {
+            putReference(data, "row" + i, readVisibility(i % 2), "data" + i, true);
+        }
+
+        // The scan's fetched families are applied below user iterators, including on their deep copies
+        final Set<ByteSequence> dataOnly = Collections.<ByteSequence>singleton(new ArrayByteSequence("data"));
+        try {
+            scan(new ColumnFamilySkippingIterator(new SortedMapIterator(data)), dataOnly, auths);
+            fail("Version 2 values can't be resolved without the dictionary");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        final Set<ByteSequence> withDictionary = Sets.<ByteSequence>newHashSet(new ArrayByteSequence("data"),
+                new ArrayByteSequence(DICTIONARY_COLUMN_FAMILY.getBytes(), 0, DICTIONARY_COLUMN_FAMILY.getLength()));
+        assertEquals(Lists.newArrayList("data1", "data3"),
+                scan(new ColumnFamilySkippingIterator(new SortedMapIterator(data)), withDictionary, auths));
+    }
+
+    private static Visibility readVisibility(long readId) {
+        final PlatformObjectVisibilities platformObjectVisibilities = new PlatformObjectVisibilities();
+        platformObjectVisibilities.setPlatformObjectReadVisibility(Sets.newHashSet(readId));
+        final AdvancedMarkings advancedMarkings = new AdvancedMarkings();
+        advancedMarkings.setPlatformObjectVisibility(platformObjectVisibilities);
+        return new Visibility().setAdvancedMarkings(advancedMarkings);
+    }
+
+    private static void putReference(
+            TreeMap<Key, Value> data, String row, Visibility visibility, String rawData, boolean withDictionaryEntry)
+            throws TException {
+        final Mutation mutation = new Mutation(row);
+        if (withDictionaryEntry) {
+            putVisibilityDictionaryEntry(mutation, visibility);
+        }
+        mutation.put(new Text("data"), new Text(), serializeVisibilityReferenceWithDataToValue(
+                getVisibilityReference(visibility), rawData.getBytes()));
+
+        for (final ColumnUpdate update : mutation.getUpdates()) {
+            data.put(new Key(mutation.getRow(), update.getColumnFamily(), update.getColumnQualifier(),
+                    update.getColumnVisibility(), 0L), new Value(update.getValue()));
+        }
+    }
+
+    private static List<String> scan(SortedMap<Key, Value> tablet, Authorizations auths)
+            throws TException, IOException {
+        return scan(new SortedMapIterator(tablet), Collections.<ByteSequence>emptySet(), auths);
+    }
+
+    private static List<String> scan(
+            SortedKeyValueIterator<Key, Value> source, Set<ByteSequence> fetchedColumnFamilies, Authorizations auths)
+            throws TException, IOException {
+        final EzBakeVisibilityFilter filter = new EzBakeVisibilityFilter();
+        final IteratorSetting setting = new IteratorSetting(15, "test", EzBakeVisibilityFilter.class);
+        EzBakeVisibilityFilter.setOptions(setting, auths, EnumSet.of(Permission.READ), true);
+        filter.init(source, setting.getOptions(), null);
+        filter.seek(new Range(), fetchedColumnFamilies, !fetchedColumnFamilies.isEmpty());
+
+        final List<String> values = Lists.newArrayList();
+        while (filter.hasTop()) {
+            values.add(new String(filter.getTopValue().get()));
+            filter.next();
+        }
+        return values;
+    }
+
     @Test
     public void testSetOptionsReturnsProperIteratorSetting() throws Exception {
         final Authorizations expectedAuths =
@@ -0,0 +1,186 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A set of string authorizations (formal or external community) compiled for fast evaluation of {@link
+ * ezbake.security.permissions.VisibilityExpression}s.
+ * <p/>
+ * Authorization strings are interned into a process-wide dictionary that assigns each distinct string a small integer
+ * ID, and the set is stored as a bitset over those IDs, so checking a term of a compiled expression is a single bit
+ * test. Build one of these per user authorization set and reuse it for every expression evaluated against it.
+ */
+public final class AuthorizationSet {
+    /**
+     * Maximum number of distinct strings to assign IDs to. Strings seen after the dictionary is full are still
+     * evaluated correctly, through a set lookup instead of a bit test.
+     */
+    static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * Term to ID dictionary shared by all expressions and authorization sets.
+     */
+    private static final ConcurrentMap<String, Integer> dictionary = new ConcurrentHashMap<>();
+
+    /**
+     * Next ID to hand out.
+     */
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Authorization set containing nothing.
+     */
+    public static final AuthorizationSet EMPTY = new AuthorizationSet(Collections.<String>emptySet());
+
+    /**
+     * Bits set for the IDs of each authorization.
+     */
+    private final BitSet bits;
+
+    /**
+     * The authorization strings, for terms that could not be assigned an ID.
+     */
+    private final Set<String> auths;
+
+    /**
+     * Whether any authorization could not be assigned an ID, in which case bits may be incomplete.
+     */
+    private final boolean overflow;
+
+    /**
+     * Construct a new AuthorizationSet.
+     *
+     * @param auths The authorizations to compile
+     */
+    private AuthorizationSet(Collection<String> auths) {
+        this.auths = ImmutableSet.copyOf(auths);
+        this.bits = new BitSet();
+        boolean overflow = false;
+        for (final String auth : this.auths) {
+            final int id = intern(auth);
+            if (id >= 0) {
+                bits.set(id);
+            } else {
+                overflow = true;
+            }
+        }
+        this.overflow = overflow;
+    }
+
+    /**
+     * Compile a set of authorizations.
+     *
+     * @param auths The authorizations, may be null
+     * @return The compiled authorizations
+     */
+    public static AuthorizationSet of(Collection<String> auths) {
+        if (auths == null || auths.isEmpty()) {
+            return EMPTY;
+        }
+
+        return new AuthorizationSet(auths);
+    }
+
+    /**
+     * Check for an authorization.
+     *
+     * @param id The dictionary ID of the authorization, negative if it has none
+     * @param auth The authorization string
+     * @return true if this set contains the authorization
+     */
+    boolean contains(int id, String auth) {
+        if (id >= 0 && bits.get(id)) {
+            return true;
+        }
+
+        return (id < 0 || overflow) && auths.contains(auth);
+    }
+
+    /**
+     * Check for an authorization.
+     *
+     * @param auth The authorization string
+     * @return true if this set contains the authorization
+     */
+    public boolean contains(String auth) {
+        return auths.contains(auth);
+    }
+
+    /**
+     * Whether the set contains no authorizations.
+     *
+     * @return true if there are no authorizations in this set
+     */
+    public boolean isEmpty() {
+        return auths.isEmpty();
+    }
+
+    /**
+     * Get the authorizations in this set.
+     *
+     * @return The authorization strings
+     */
+    public Set<String> getAuthorizations() {
+        return auths;
+    }
+
+    @Override
+    public int hashCode() {
+        return auths.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        return auths.equals(((AuthorizationSet) o).auths);
+    }
+
+    /**
+     * Get the dictionary ID for a term, assigning one if the term is new and the dictionary is not full.
+     *
+     * @param term The term to look up
+     * @return The ID, or -1 if the dictionary is full and the term has none
+     */
+    static int intern(String term) {
+        final Integer id = dictionary.get(term);
+        if (id != null) {
+            return id;
+        }
+
+        if (nextId.get() >= MAX_DICTIONARY_SIZE) {
+            return -1;
+        }
+
+        final Integer newId = nextId.getAndIncrement();
+        final Integer existing = dictionary.putIfAbsent(term, newId);
+        return existing != null ? existing : newId;
+    }
+}
@@ -0,0 +1,130 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import ezbake.base.thrift.Authorizations;
+
+/**
+ * An immutable, compiled snapshot of an {@link ezbake.base.thrift.Authorizations} object.
+ * <p/>
+ * Compiled authorizations are safe to share between threads and compare by value, so they can be used as cache keys.
+ * Users with identical authorizations produce equal compiled authorizations, which lets caches such as {@link
+ * ezbake.security.permissions.SharedPermissionEvaluator} reuse decisions across users. The fingerprint is computed once
+ * from the contents and is used as the hash code; equality always compares the full contents.
+ */
+public final class CompiledAuthorizations {
+    /**
+     * Formal authorizations.
+     */
+    private final AuthorizationSet formal;
+
+    /**
+     * External community authorizations.
+     */
+    private final AuthorizationSet externalCommunity;
+
+    /**
+     * Platform object authorizations.
+     */
+    private final PlatformObjectIds platformObject;
+
+    /**
+     * Fingerprint of the contents.
+     */
+    private final int fingerprint;
+
+    /**
+     * Construct a new CompiledAuthorizations.
+     *
+     * @param auths The authorizations to compile
+     */
+    private CompiledAuthorizations(Authorizations auths) {
+        formal = AuthorizationSet.of(auths.getFormalAuthorizations());
+        externalCommunity = AuthorizationSet.of(auths.getExternalCommunityAuthorizations());
+        platformObject = PlatformObjectIds.of(auths.getPlatformObjectAuthorizations());
+
+        int result = formal.hashCode();
+        result = 31 * result + externalCommunity.hashCode();
+        result = 31 * result + platformObject.hashCode();
+        fingerprint = result;
+    }
+
+    /**
+     * Compile an Authorizations object. The compiled form does not change if the Authorizations object is later
+     * modified.
+     *
+     * @param auths The authorizations to compile
+     * @return The compiled authorizations, or null if {@code auths} is null
+     */
+    public static CompiledAuthorizations of(Authorizations auths) {
+        return auths == null ? null : new CompiledAuthorizations(auths);
+    }
+
+    /**
+     * Get the formal authorizations.
+     *
+     * @return The compiled formal authorizations
+     */
+    public AuthorizationSet getFormalAuthorizations() {
+        return formal;
+    }
+
+    /**
+     * Get the external community authorizations.
+     *
+     * @return The compiled external community authorizations
+     */
+    public AuthorizationSet getExternalCommunityAuthorizations() {
+        return externalCommunity;
+    }
+
+    /**
+     * Get the platform object authorizations.
+     *
+     * @return The compiled platform object authorizations
+     */
+    public PlatformObjectIds getPlatformObjectAuthorizations() {
+        return platformObject;
+    }
+
+    /**
+     * Get the fingerprint of these authorizations. Equal authorizations always have equal fingerprints.
+     *
+     * @return The fingerprint
+     */
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+        return fingerprint;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final CompiledAuthorizations that = (CompiledAuthorizations) o;
+
+        return fingerprint == that.fingerprint && formal.equals(that.formal)
+                && externalCommunity.equals(that.externalCommunity) && platformObject.equals(that.platformObject);
+    }
+}
@@ -0,0 +1,136 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import ezbake.base.thrift.Permission;
+import ezbake.base.thrift.PlatformObjectVisibilities;
+
+/**
+ * An immutable, compiled snapshot of a {@link ezbake.base.thrift.PlatformObjectVisibilities} object, with the IDs for
+ * each permission held as {@link ezbake.security.permissions.PlatformObjectIds}. An empty set of IDs means the
+ * permission is world-accessible, as it does for the thrift object.
+ */
+public final class CompiledPlatformObjectVisibilities {
+    /**
+     * IDs that grant read.
+     */
+    private final PlatformObjectIds read;
+
+    /**
+     * IDs that grant write.
+     */
+    private final PlatformObjectIds write;
+
+    /**
+     * IDs that grant manage visibility.
+     */
+    private final PlatformObjectIds manage;
+
+    /**
+     * IDs that grant discover.
+     */
+    private final PlatformObjectIds discover;
+
+    /**
+     * Construct a new CompiledPlatformObjectVisibilities.
+     *
+     * @param pov The visibilities to compile
+     */
+    private CompiledPlatformObjectVisibilities(PlatformObjectVisibilities pov) {
+        read = PlatformObjectIds.of(pov.getPlatformObjectReadVisibility());
+        write = PlatformObjectIds.of(pov.getPlatformObjectWriteVisibility());
+        manage = PlatformObjectIds.of(pov.getPlatformObjectManageVisibility());
+        discover = PlatformObjectIds.of(pov.getPlatformObjectDiscoverVisibility());
+    }
+
+    /**
+     * Compile a PlatformObjectVisibilities object.
+     *
+     * @param pov The visibilities to compile
+     * @return The compiled visibilities, or null if {@code pov} is null
+     */
+    public static CompiledPlatformObjectVisibilities of(PlatformObjectVisibilities pov) {
+        return pov == null ? null : new CompiledPlatformObjectVisibilities(pov);
+    }
+
+    /**
+     * Get the IDs that grant a permission.
+     *
+     * @param permission The permission
+     * @return The IDs, empty if the permission is world-accessible
+     */
+    public PlatformObjectIds getVisibility(Permission permission) {
+        switch (permission) {
+            case READ:
+                return read;
+            case WRITE:
+                return write;
+            case MANAGE_VISIBILITY:
+                return manage;
+            case DISCOVER:
+                return discover;
+            default:
+                throw new IllegalArgumentException("Unknown Permission enum value" + permission);
+        }
+    }
+
+    /**
+     * Get the permissions granted to a set of platform object authorizations.
+     *
+     * @param auths Platform object authorizations of the user
+     * @param subsetToCheck The subset of permissions to check
+     * @return The set of permissions granted (a subset of the subsetToCheck)
+     */
+    public Set<Permission> getPermissions(PlatformObjectIds auths, Set<Permission> subsetToCheck) {
+        final Set<Permission> perms = EnumSet.noneOf(Permission.class);
+        for (final Permission permToCheck : subsetToCheck) {
+            final PlatformObjectIds permVisibility = getVisibility(permToCheck);
+
+            // Empty visibility means world-accessible, else check intersection
+            if (permVisibility.isEmpty() || auths.intersects(permVisibility)) {
+                perms.add(permToCheck);
+            }
+        }
+
+        return perms;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = read.hashCode();
+        result = 31 * result + write.hashCode();
+        result = 31 * result + manage.hashCode();
+        result = 31 * result + discover.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final CompiledPlatformObjectVisibilities that = (CompiledPlatformObjectVisibilities) o;
+
+        return read.equals(that.read) && write.equals(that.write) && manage.equals(that.manage)
+                && discover.equals(that.discover);
+    }
+}
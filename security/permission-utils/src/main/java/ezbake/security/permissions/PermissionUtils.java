@@ -14,16 +14,20 @@
 
 package ezbake.security.permissions;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import org.apache.accumulo.core.security.ColumnVisibility;
-import org.apache.accumulo.core.security.VisibilityEvaluator;
-import org.apache.accumulo.core.security.VisibilityParseException;
 import org.apache.commons.lang3.StringUtils;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import ezbake.base.thrift.AdvancedMarkings;
@@ -46,6 +50,11 @@ public class PermissionUtils {
      */
     public static final Set<Permission> ALL_PERMS = Collections.unmodifiableSet(EnumSet.allOf(Permission.class));
 
+    /**
+     * Number of distinct visibilities below which a batch is evaluated on the calling thread, even if a pool is given.
+     */
+    private static final int PARALLEL_BATCH_THRESHOLD = 1000;
+
     /**
      * Get permissions for user (based their authorizations) against the data's visibility including formal auths.
      *
@@ -71,7 +80,9 @@ public class PermissionUtils {
     }
 
     /**
-     * Get permissions for user (based their authorizations) against the data's visibility.
+     * Get permissions for user (based their authorizations) against the data's visibility. The authorizations are
+     * used as they are rather than compiled, which is cheapest for a one-off check. Use the {@link
+     * CompiledAuthorizations} overloads when evaluating many visibilities against the same authorizations.
      *
      * @param auths Authorizations of the user
      * @param visibility Visibility of the data
@@ -112,27 +123,65 @@ public class PermissionUtils {
         final Set<Long> authCheck = auths.getPlatformObjectAuthorizations();
         final Set<Permission> perms = EnumSet.noneOf(Permission.class);
         for (final Permission permToCheck : subsetToCheck) {
-            Set<Long> permVisibility = null;
-            switch (permToCheck) {
-                case READ:
-                    permVisibility = pov.getPlatformObjectReadVisibility();
-                    break;
-                case WRITE:
-                    permVisibility = pov.getPlatformObjectWriteVisibility();
-                    break;
-                case MANAGE_VISIBILITY:
-                    permVisibility = pov.getPlatformObjectManageVisibility();
-                    break;
-                case DISCOVER:
-                    permVisibility = pov.getPlatformObjectDiscoverVisibility();
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown Permission enum value" + permToCheck);
+            final Set<Long> permVisibility = getPlatformObjectVisibility(pov, permToCheck);
+
+            // Null/Empty visibility means world-accessible, else check intersection
+            if (permVisibility == null || permVisibility.isEmpty() || intersects(authCheck, permVisibility)) {
+                perms.add(permToCheck);
             }
+        }
+
+        return perms;
+    }
+
+    /**
+     * Get permissions for user (based their compiled authorizations) against the data's visibility. Use this when
+     * evaluating many visibilities against the same authorizations.
+     *
+     * @param auths Compiled authorizations of the user
+     * @param visibility Visibility of the data
+     * @param validateFormalAuths true to validate formal authorizations, false to skip
+     * @param subsetToCheck The subset of permissions to check (to avoid more bitvector operations than needed)
+     * @return The set of permissions the user has for the data (a subset of the subsetToCheck)
+     */
+    public static Set<Permission> getPermissions(
+            CompiledAuthorizations auths, Visibility visibility, boolean validateFormalAuths,
+            Set<Permission> subsetToCheck) {
+        if (visibility == null) {
+            return ALL_PERMS; // No visibility to check
+        }
+
+        if (auths == null) {
+            return NO_PERMS; // Has visibility but no auths
+        }
+
+        if (validateFormalAuths && !validateVisibilityExpression(
+                auths.getFormalAuthorizations(), visibility.getFormalVisibility())) {
+            return NO_PERMS; // Formals auths check failed
+        }
+
+        final AdvancedMarkings markings = visibility.getAdvancedMarkings();
+        if (markings == null) {
+            return ALL_PERMS; // No further visibility to check
+        }
+
+        if (!validateVisibilityExpression(
+                auths.getExternalCommunityAuthorizations(), markings.getExternalCommunityVisibility())) {
+            return NO_PERMS; // External community auths check failed
+        }
+
+        final PlatformObjectVisibilities pov = markings.getPlatformObjectVisibility();
+        if (pov == null) {
+            return ALL_PERMS; // No further visibility to check
+        }
+
+        final PlatformObjectIds authCheck = auths.getPlatformObjectAuthorizations();
+        final Set<Permission> perms = EnumSet.noneOf(Permission.class);
+        for (final Permission permToCheck : subsetToCheck) {
+            final Set<Long> permVisibility = getPlatformObjectVisibility(pov, permToCheck);
 
             // Null/Empty visibility means world-accessible, else check intersection
-            if (permVisibility == null || permVisibility.isEmpty() || authCheck != null && !Sets
-                    .intersection(authCheck, permVisibility).isEmpty()) {
+            if (permVisibility == null || permVisibility.isEmpty() || authCheck.containsAny(permVisibility)) {
                 perms.add(permToCheck);
             }
         }
@@ -140,6 +189,115 @@ public class PermissionUtils {
         return perms;
     }
 
+    /**
+     * Get permissions for user (based their compiled platform object authorizations) against the data's compiled
+     * platform object visibilities. Use this when the same platform object visibilities are evaluated many times.
+     *
+     * @param auths Compiled authorizations of the user
+     * @param pov Compiled platform object visibilities of the data, null if there are none
+     * @param subsetToCheck The subset of permissions to check
+     * @return The set of permissions the user has for the data (a subset of the subsetToCheck)
+     */
+    public static Set<Permission> getPermissions(
+            CompiledAuthorizations auths, CompiledPlatformObjectVisibilities pov, Set<Permission> subsetToCheck) {
+        if (pov == null) {
+            return ALL_PERMS; // No visibility to check
+        }
+
+        if (auths == null) {
+            return NO_PERMS; // Has visibility but no auths
+        }
+
+        return pov.getPermissions(auths.getPlatformObjectAuthorizations(), subsetToCheck);
+    }
+
+    /**
+     * Get permissions for user (based their authorizations) against each of a batch of visibilities including formal
+     * auths. The authorizations are compiled once and identical visibilities are only evaluated once.
+     *
+     * @param auths Authorizations of the user
+     * @param visibilities Visibilities of the data, may contain nulls
+     * @return The immutable set of permissions the user has for each visibility, in the order of {@code visibilities}
+     */
+    public static List<Set<Permission>> getPermissions(
+            Authorizations auths, Collection<Visibility> visibilities) {
+        return getPermissions(auths, visibilities, true, ALL_PERMS, null);
+    }
+
+    /**
+     * Get permissions for user (based their authorizations) against each of a batch of visibilities. The authorizations
+     * are compiled once and identical visibilities are only evaluated once. If a pool is given and the batch has enough
+     * distinct visibilities, they are evaluated in parallel on that pool.
+     *
+     * @param auths Authorizations of the user
+     * @param visibilities Visibilities of the data, may contain nulls
+     * @param validateFormalAuths true to validate formal authorizations, false to skip
+     * @param subsetToCheck The subset of permissions to check (to avoid more bitvector operations than needed)
+     * @param pool The pool to evaluate large batches on, or null to always evaluate on the calling thread
+     * @return The immutable set of permissions the user has for each visibility, in the order of {@code visibilities}
+     */
+    public static List<Set<Permission>> getPermissions(
+            Authorizations auths, Collection<Visibility> visibilities, boolean validateFormalAuths,
+            Set<Permission> subsetToCheck, ForkJoinPool pool) {
+        return getPermissions(
+                CompiledAuthorizations.of(auths), visibilities, validateFormalAuths, subsetToCheck, pool);
+    }
+
+    /**
+     * Get permissions for user (based their compiled authorizations) against each of a batch of visibilities.
+     * Identical visibilities are only evaluated once. If a pool is given and the batch has enough distinct
+     * visibilities, they are evaluated in parallel on that pool.
+     *
+     * @param compiledAuths Compiled authorizations of the user
+     * @param visibilities Visibilities of the data, may contain nulls
+     * @param validateFormalAuths true to validate formal authorizations, false to skip
+     * @param subsetToCheck The subset of permissions to check (to avoid more bitvector operations than needed)
+     * @param pool The pool to evaluate large batches on, or null to always evaluate on the calling thread
+     * @return The immutable set of permissions the user has for each visibility, in the order of {@code visibilities}
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Set<Permission>> getPermissions(
+            CompiledAuthorizations compiledAuths, Collection<Visibility> visibilities, boolean validateFormalAuths,
+            Set<Permission> subsetToCheck, ForkJoinPool pool) {
+        // Map each input to the index of its first distinct occurrence
+        final Map<VisibilityKey, Integer> distinctIndexes = Maps.newHashMapWithExpectedSize(visibilities.size());
+        final Visibility[] distinct = new Visibility[visibilities.size()];
+        final int[] indexes = new int[visibilities.size()];
+        int distinctCount = 0;
+        int i = 0;
+        for (final Visibility visibility : visibilities) {
+            if (visibility == null) {
+                indexes[i++] = -1;
+                continue;
+            }
+
+            final VisibilityKey key = VisibilityKey.of(visibility);
+            Integer index = distinctIndexes.get(key);
+            if (index == null) {
+                index = distinctCount++;
+                distinctIndexes.put(key, index);
+                distinct[index] = visibility;
+            }
+            indexes[i++] = index;
+        }
+
+        final boolean parallel = pool != null && distinctCount >= PARALLEL_BATCH_THRESHOLD;
+        final BatchEvaluation evaluation = new BatchEvaluation(compiledAuths, distinct, new Set[distinctCount],
+                validateFormalAuths, subsetToCheck, parallel, 0, distinctCount);
+        if (parallel) {
+            pool.invoke(evaluation);
+        } else {
+            evaluation.compute();
+        }
+
+        final Set<Permission>[] results = new Set[indexes.length];
+        for (i = 0; i < indexes.length; i++) {
+            results[i] = indexes[i] < 0 ? ALL_PERMS : evaluation.results[indexes[i]];
+        }
+
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
     /**
      * Validate Accumulo-style visibility expression against a set of authorizations.
      *
@@ -156,15 +314,27 @@ public class PermissionUtils {
             return false; // Has visibility but no auths
         }
 
-        final VisibilityEvaluator visEval = new VisibilityEvaluator(
-                new org.apache.accumulo.core.security.Authorizations(
-                        auths.toArray(new String[] {})));
+        return VisibilityExpression.compile(visibilityExpression).evaluate(AuthorizationSet.of(auths));
+    }
 
-        try {
-            return visEval.evaluate(new ColumnVisibility(visibilityExpression));
-        } catch (final VisibilityParseException e) {
-            return false;
+    /**
+     * Validate Accumulo-style visibility expression against a set of pre-compiled authorizations. Use this when
+     * evaluating many expressions against the same authorizations.
+     *
+     * @param auths Compiled authorizations of the user
+     * @param visibilityExpression Accumulo-style visibility expression
+     * @return true if validation authorizations against visibility expression, false otherwise
+     */
+    public static boolean validateVisibilityExpression(AuthorizationSet auths, String visibilityExpression) {
+        if (StringUtils.isBlank(visibilityExpression)) {
+            return true; // No visibility to check
+        }
+
+        if (auths == null || auths.isEmpty()) {
+            return false; // Has visibility but no auths
         }
+
+        return VisibilityExpression.compile(visibilityExpression).evaluate(auths);
     }
 
     /**
@@ -174,6 +344,19 @@ public class PermissionUtils {
      * @return the visibility expression computed from both the formal visibility string and community visibility string
      */
     public static String getVisibilityString(Visibility visibility) {
+        return getVisibilityString(visibility, false);
+    }
+
+    /**
+     * Generate Accumulo-style visibility expression from a Visibility object, optionally in canonical form. Equivalent
+     * visibilities always produce the same canonical expression, which makes it suitable as a cache key.
+     *
+     * @param visibility the visibility object to derive the expression from
+     * @param canonical true to return the canonical form of the expression
+     * @return the visibility expression computed from both the formal visibility string and community visibility string
+     * @see ezbake.security.permissions.VisibilityCanonicalizer#canonicalizeExpression(String)
+     */
+    public static String getVisibilityString(Visibility visibility, boolean canonical) {
         String fullVisibility = "";
         if (visibility.isSetFormalVisibility() && !Strings.isNullOrEmpty(visibility.getFormalVisibility())) {
             fullVisibility = visibility.getFormalVisibility();
@@ -190,6 +373,101 @@ public class PermissionUtils {
                 fullVisibility = externalCommunityVisibility;
             }
         }
-        return fullVisibility;
+        return canonical ? VisibilityCanonicalizer.canonicalizeExpression(fullVisibility) : fullVisibility;
+    }
+
+    /**
+     * Get the platform object visibility for a permission.
+     *
+     * @param pov Platform object visibilities of the data
+     * @param permission The permission
+     * @return The IDs that grant the permission, null or empty if it is world-accessible
+     */
+    private static Set<Long> getPlatformObjectVisibility(PlatformObjectVisibilities pov, Permission permission) {
+        switch (permission) {
+            case READ:
+                return pov.getPlatformObjectReadVisibility();
+            case WRITE:
+                return pov.getPlatformObjectWriteVisibility();
+            case MANAGE_VISIBILITY:
+                return pov.getPlatformObjectManageVisibility();
+            case DISCOVER:
+                return pov.getPlatformObjectDiscoverVisibility();
+            default:
+                throw new IllegalArgumentException("Unknown Permission enum value" + permission);
+        }
+    }
+
+    /**
+     * Check whether two possibly null sets share an element, probing the larger set with the smaller one.
+     *
+     * @param first The first set
+     * @param second The second set
+     * @return true if an element is in both sets
+     */
+    private static boolean intersects(Set<Long> first, Set<Long> second) {
+        if (first == null || second == null) {
+            return false;
+        }
+
+        final Set<Long> smaller = first.size() <= second.size() ? first : second;
+        final Set<Long> larger = smaller == first ? second : first;
+        for (final Long id : smaller) {
+            if (larger.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates a range of distinct visibilities, splitting it in half until it is small enough to do directly.
+     */
+    private static class BatchEvaluation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledAuthorizations auths;
+        private final Visibility[] visibilities;
+        private final Set<Permission>[] results;
+        private final boolean validateFormalAuths;
+        private final Set<Permission> subsetToCheck;
+        private final boolean parallel;
+        private final int start;
+        private final int end;
+
+        /**
+         * Constructor to initialize this POJO's members.
+         */
+        BatchEvaluation(
+                CompiledAuthorizations auths, Visibility[] visibilities, Set<Permission>[] results,
+                boolean validateFormalAuths, Set<Permission> subsetToCheck, boolean parallel, int start, int end) {
+            this.auths = auths;
+            this.visibilities = visibilities;
+            this.results = results;
+            this.validateFormalAuths = validateFormalAuths;
+            this.subsetToCheck = subsetToCheck;
+            this.parallel = parallel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            // Only split when asked to, a caller that happens to run in a pool did not necessarily ask for it
+            if (!parallel || end - start <= PARALLEL_BATCH_THRESHOLD / 2) {
+                for (int i = start; i < end; i++) {
+                    results[i] = Sets.immutableEnumSet(
+                            getPermissions(auths, visibilities[i], validateFormalAuths, subsetToCheck));
+                }
+                return;
+            }
+
+            final int middle = (start + end) >>> 1;
+            invokeAll(
+                    new BatchEvaluation(
+                            auths, visibilities, results, validateFormalAuths, subsetToCheck, true, start, middle),
+                    new BatchEvaluation(
+                            auths, visibilities, results, validateFormalAuths, subsetToCheck, true, middle, end));
+        }
     }
 }
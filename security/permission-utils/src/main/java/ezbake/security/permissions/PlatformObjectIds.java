@@ -0,0 +1,223 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of platform object IDs (group IDs) stored as a sorted array of primitive longs.
+ * <p/>
+ * Build one of these once per {@link ezbake.base.thrift.Authorizations} or {@link
+ * ezbake.base.thrift.PlatformObjectVisibilities} and reuse it; intersection tests then touch no boxed values and
+ * allocate nothing.
+ */
+public final class PlatformObjectIds {
+    /**
+     * When one array is at least this many times longer than the other, intersection searches the longer one instead
+     * of merging.
+     */
+    private static final int SEARCH_RATIO = 16;
+
+    /**
+     * Set containing no IDs.
+     */
+    public static final PlatformObjectIds EMPTY = new PlatformObjectIds(new long[0]);
+
+    /**
+     * Sorted, distinct IDs.
+     */
+    private final long[] ids;
+
+    /**
+     * Construct a new PlatformObjectIds.
+     *
+     * @param ids Sorted, distinct IDs, not copied
+     */
+    private PlatformObjectIds(long[] ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * Build a set of IDs.
+     *
+     * @param ids The IDs, may be null
+     * @return The compiled IDs
+     */
+    public static PlatformObjectIds of(Collection<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return EMPTY;
+        }
+
+        long[] sorted = new long[ids.size()];
+        int size = 0;
+        for (final Long id : ids) {
+            sorted[size++] = id;
+        }
+        Arrays.sort(sorted);
+
+        // Remove duplicates, which can only come from collections that aren't sets
+        int distinct = 1;
+        for (int i = 1; i < size; i++) {
+            if (sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        if (distinct < size) {
+            sorted = Arrays.copyOf(sorted, distinct);
+        }
+
+        return new PlatformObjectIds(sorted);
+    }
+
+    /**
+     * Check for an ID.
+     *
+     * @param id The ID to look for
+     * @return true if this set contains the ID
+     */
+    public boolean contains(long id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * Check whether any of a collection of IDs is in this set, without building a compiled form of the collection.
+     *
+     * @param other The IDs to look for, may be null
+     * @return true if at least one of the IDs is in this set
+     */
+    public boolean containsAny(Collection<Long> other) {
+        if (other == null || ids.length == 0) {
+            return false;
+        }
+
+        for (final Long id : other) {
+            if (Arrays.binarySearch(ids, id) >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether this set and another have any IDs in common.
+     *
+     * @param other The other set
+     * @return true if the sets intersect
+     */
+    public boolean intersects(PlatformObjectIds other) {
+        final long[] a = ids;
+        final long[] b = other.ids;
+        if (a.length == 0 || b.length == 0 || a[0] > b[b.length - 1] || b[0] > a[a.length - 1]) {
+            return false;
+        }
+
+        if (a.length >= SEARCH_RATIO * b.length) {
+            return search(a, b);
+        }
+        if (b.length >= SEARCH_RATIO * a.length) {
+            return search(b, a);
+        }
+
+        // Merge, advancing whichever side is behind without branching on which one it is
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            final long x = a[i];
+            final long y = b[j];
+            if (x == y) {
+                return true;
+            }
+            i += x < y ? 1 : 0;
+            j += x > y ? 1 : 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Intersection test for arrays of very different lengths.
+     *
+     * @param large The longer array
+     * @param small The shorter array
+     * @return true if the arrays have an element in common
+     */
+    private static boolean search(long[] large, long[] small) {
+        int from = 0;
+        for (final long id : small) {
+            final int index = Arrays.binarySearch(large, from, large.length, id);
+            if (index >= 0) {
+                return true;
+            }
+
+            from = -index - 1;
+            if (from == large.length) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the set contains no IDs.
+     *
+     * @return true if the set is empty
+     */
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    /**
+     * Get the number of IDs in the set.
+     *
+     * @return The number of IDs
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Get the IDs in the set.
+     *
+     * @return A sorted copy of the IDs
+     */
+    public long[] toArray() {
+        return ids.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        return Arrays.equals(ids, ((PlatformObjectIds) o).ids);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ids);
+    }
+}
@@ -0,0 +1,217 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+
+import ezbake.base.thrift.AdvancedMarkings;
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Permission;
+import ezbake.base.thrift.Visibility;
+
+/**
+ * Evaluates {@link ezbake.base.thrift.Visibility} objects for any number of users and caches each decision keyed by
+ * the fingerprint of the user's {@link ezbake.security.permissions.CompiledAuthorizations} and the fingerprint of the
+ * canonical form of the relevant part of the visibility. Users with identical authorizations share cached decisions,
+ * as do equivalent visibilities, so a single instance can be used as a service-wide cache.
+ * <p/>
+ * All methods are thread safe. Evaluation uses no shared mutable state, and the caches are split into independently
+ * locked shards (one per core by default) so that concurrent lookups rarely contend.
+ */
+public class SharedPermissionEvaluator {
+    /**
+     * Default size for caches in this class.
+     */
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * Keeps track of the result of the comparison of a user's formal authorizations with a formal visibility.
+     */
+    private final Cache<DecisionKey, Boolean> formalVisibilityEvaluations;
+
+    /**
+     * Keeps track of the result of the comparison of a user's authorizations with the important parts of a {@link
+     * ezbake.base.thrift.AdvancedMarkings} object.
+     */
+    private final Cache<DecisionKey, Set<Permission>> advancedMarkingsEvaluations;
+
+    /**
+     * Construct a new SharedPermissionEvaluator with the default cache size and one shard per core.
+     */
+    public SharedPermissionEvaluator() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Construct a new SharedPermissionEvaluator with one shard per core.
+     *
+     * @param cacheSize The number of decisions of each kind to cache
+     */
+    public SharedPermissionEvaluator(int cacheSize) {
+        this(cacheSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a new SharedPermissionEvaluator.
+     *
+     * @param cacheSize The number of decisions of each kind to cache
+     * @param shards The number of independently locked shards to split the caches into
+     */
+    public SharedPermissionEvaluator(int cacheSize, int shards) {
+        formalVisibilityEvaluations =
+                CacheBuilder.newBuilder().maximumSize(cacheSize).concurrencyLevel(shards).build();
+        advancedMarkingsEvaluations =
+                CacheBuilder.newBuilder().maximumSize(cacheSize).concurrencyLevel(shards).build();
+    }
+
+    /**
+     * Evaluate a Visibility object against a user's authorizations and cache the result. Callers that evaluate many
+     * visibilities for the same user should compile the authorizations once and use {@link
+     * #getPermissions(CompiledAuthorizations, ezbake.base.thrift.Visibility)}.
+     *
+     * @param auths The user's authorizations
+     * @param visibility The Visibility to evaluate
+     * @return The permissions the user has against the passed in Visibility
+     */
+    public Set<Permission> getPermissions(Authorizations auths, Visibility visibility) {
+        return getPermissions(CompiledAuthorizations.of(auths), visibility);
+    }
+
+    /**
+     * Evaluate a Visibility object against a user's compiled authorizations and cache the result.
+     *
+     * @param auths The user's compiled authorizations
+     * @param visibility The Visibility to evaluate
+     * @return The permissions the user has against the passed in Visibility
+     */
+    public Set<Permission> getPermissions(CompiledAuthorizations auths, Visibility visibility) {
+        if (visibility == null) {
+            return PermissionUtils.ALL_PERMS; // No visibility to check
+        }
+
+        if (auths == null) {
+            return PermissionUtils.NO_PERMS; // Has visibility but no auths
+        }
+
+        final String formalVisibility = visibility.getFormalVisibility();
+        if (!StringUtils.isBlank(formalVisibility) && !getFormalPermission(auths, formalVisibility)) {
+            return PermissionUtils.NO_PERMS;
+        }
+
+        final AdvancedMarkings advancedMarkings = visibility.getAdvancedMarkings();
+        if (advancedMarkings == null) {
+            return PermissionUtils.ALL_PERMS;
+        }
+
+        final VisibilityKey markingsKey = VisibilityKey.ofMarkings(advancedMarkings);
+        Set<Permission> perms = advancedMarkingsEvaluations.getIfPresent(new DecisionKey(auths, markingsKey));
+        if (perms == null) {
+            perms = Sets.immutableEnumSet(
+                    PermissionUtils.getPermissions(
+                            auths, new Visibility().setAdvancedMarkings(advancedMarkings), false,
+                            PermissionUtils.ALL_PERMS));
+
+            // Store a copy so later changes to the caller's visibility can't change the key
+            advancedMarkingsEvaluations.put(new DecisionKey(auths, markingsKey.snapshot()), perms);
+        }
+
+        return perms;
+    }
+
+    /**
+     * Discard all cached decisions.
+     */
+    public void invalidateAll() {
+        formalVisibilityEvaluations.invalidateAll();
+        advancedMarkingsEvaluations.invalidateAll();
+    }
+
+    /**
+     * Evaluate a formal visibility against a user's formal authorizations, using the cached decision if there is one.
+     *
+     * @param auths The user's compiled authorizations
+     * @param formalVisibility A non-blank formal visibility expression
+     * @return true if the user's formal authorizations satisfy the expression
+     */
+    private boolean getFormalPermission(CompiledAuthorizations auths, String formalVisibility) {
+        // Key on the canonical form so that equivalent expressions share a decision
+        final VisibilityExpression expression = VisibilityExpression.compile(formalVisibility);
+        final DecisionKey key = new DecisionKey(auths, expression.getCanonicalExpression());
+        Boolean permitted = formalVisibilityEvaluations.getIfPresent(key);
+        if (permitted == null) {
+            permitted = expression.evaluate(auths.getFormalAuthorizations());
+            formalVisibilityEvaluations.put(key, permitted);
+        }
+
+        return permitted;
+    }
+
+    /**
+     * Cache key combining the authorizations of a user with the part of a visibility being evaluated.
+     */
+    private static class DecisionKey {
+        /**
+         * The user's authorizations.
+         */
+        private final CompiledAuthorizations auths;
+
+        /**
+         * The part of the visibility being evaluated, must be immutable.
+         */
+        private final Object visibility;
+
+        /**
+         * Combined fingerprint of {@code auths} and {@code visibility}.
+         */
+        private final int hash;
+
+        /**
+         * Constructor to initialize this POJO's members.
+         *
+         * @param auths The user's authorizations
+         * @param visibility The part of the visibility being evaluated
+         */
+        private DecisionKey(CompiledAuthorizations auths, Object visibility) {
+            this.auths = auths;
+            this.visibility = visibility;
+            this.hash = 31 * auths.getFingerprint() + visibility.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final DecisionKey that = (DecisionKey) o;
+
+            return hash == that.hash && visibility.equals(that.visibility) && auths.equals(that.auths);
+        }
+    }
+}
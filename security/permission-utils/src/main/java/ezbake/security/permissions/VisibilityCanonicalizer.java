@@ -0,0 +1,166 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import ezbake.base.thrift.AdvancedMarkings;
+import ezbake.base.thrift.PlatformObjectVisibilities;
+import ezbake.base.thrift.Visibility;
+
+/**
+ * Produces stable normalized forms of {@link ezbake.base.thrift.Visibility} objects so that visibilities that grant the
+ * same permissions can share cache entries.
+ * <p/>
+ * Formal and external community expressions are replaced by their {@link
+ * ezbake.security.permissions.VisibilityExpression#getCanonicalExpression() canonical expressions}, and platform object
+ * visibility sets are replaced by sorted sets so that they always serialize in the same order.
+ */
+public final class VisibilityCanonicalizer {
+    /**
+     * Separates the fields hashed into a fingerprint.
+     */
+    private static final int FIELD_SEPARATOR = -1;
+
+    /**
+     * Marks a platform object visibility set that is null or empty, which both mean world-accessible.
+     */
+    private static final int WORLD_ACCESSIBLE = -2;
+
+    private VisibilityCanonicalizer() {
+    }
+
+    /**
+     * Get the canonical form of an Accumulo-style visibility expression.
+     *
+     * @param expression The expression, may be blank
+     * @return The canonical expression, empty if the expression is blank
+     * @throws org.apache.accumulo.core.util.BadArgumentException if the expression is not valid
+     */
+    public static String canonicalizeExpression(String expression) {
+        if (StringUtils.isBlank(expression)) {
+            return "";
+        }
+
+        return VisibilityExpression.compile(expression).getCanonicalExpression();
+    }
+
+    /**
+     * Get a canonical copy of a visibility. Only the parts that determine permissions are changed; the original
+     * visibility is left untouched.
+     *
+     * @param visibility The visibility to canonicalize
+     * @return A canonical copy of the visibility, or null if {@code visibility} is null
+     * @throws org.apache.accumulo.core.util.BadArgumentException if an expression is not valid
+     */
+    public static Visibility canonicalize(Visibility visibility) {
+        if (visibility == null) {
+            return null;
+        }
+
+        final Visibility canonical = visibility.deepCopy();
+        if (canonical.isSetFormalVisibility()) {
+            canonical.setFormalVisibility(canonicalizeExpression(canonical.getFormalVisibility()));
+        }
+
+        final AdvancedMarkings markings = canonical.getAdvancedMarkings();
+        if (markings != null) {
+            if (markings.isSetExternalCommunityVisibility()) {
+                markings.setExternalCommunityVisibility(
+                        canonicalizeExpression(markings.getExternalCommunityVisibility()));
+            }
+
+            final PlatformObjectVisibilities pov = markings.getPlatformObjectVisibility();
+            if (pov != null) {
+                pov.setPlatformObjectReadVisibility(sorted(pov.getPlatformObjectReadVisibility()));
+                pov.setPlatformObjectWriteVisibility(sorted(pov.getPlatformObjectWriteVisibility()));
+                pov.setPlatformObjectManageVisibility(sorted(pov.getPlatformObjectManageVisibility()));
+                pov.setPlatformObjectDiscoverVisibility(sorted(pov.getPlatformObjectDiscoverVisibility()));
+            }
+        }
+
+        return canonical;
+    }
+
+    /**
+     * Get a 64-bit fingerprint of the parts of a visibility that determine permissions. Visibilities with the same
+     * canonical form always have the same fingerprint, as do visibilities that differ only in ways that never change
+     * permissions, such as a null versus an empty platform object visibility set.
+     *
+     * @param visibility The visibility to fingerprint
+     * @return The fingerprint
+     * @throws org.apache.accumulo.core.util.BadArgumentException if an expression is not valid
+     */
+    public static long fingerprint(Visibility visibility) {
+        final AdvancedMarkings markings = visibility == null ? null : visibility.getAdvancedMarkings();
+        final PlatformObjectVisibilities pov = markings == null ? null : markings.getPlatformObjectVisibility();
+
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        putExpression(hasher, visibility == null ? null : visibility.getFormalVisibility());
+        putExpression(hasher, markings == null ? null : markings.getExternalCommunityVisibility());
+        putIds(hasher, pov == null ? null : pov.getPlatformObjectReadVisibility());
+        putIds(hasher, pov == null ? null : pov.getPlatformObjectWriteVisibility());
+        putIds(hasher, pov == null ? null : pov.getPlatformObjectManageVisibility());
+        putIds(hasher, pov == null ? null : pov.getPlatformObjectDiscoverVisibility());
+
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Get a sorted copy of a possibly null set.
+     *
+     * @param ids The set to copy
+     * @return A sorted copy, or null
+     */
+    private static Set<Long> sorted(Set<Long> ids) {
+        return ids == null ? null : new TreeSet<>(ids);
+    }
+
+    /**
+     * Add the canonical form of an expression to a fingerprint.
+     *
+     * @param hasher The fingerprint being built
+     * @param expression The expression to add, may be blank
+     */
+    private static void putExpression(Hasher hasher, String expression) {
+        hasher.putBytes(canonicalizeExpression(expression).getBytes(StandardCharsets.UTF_8));
+        hasher.putInt(FIELD_SEPARATOR);
+    }
+
+    /**
+     * Add a platform object visibility set to a fingerprint in sorted order.
+     *
+     * @param hasher The fingerprint being built
+     * @param ids The set to add, may be null
+     */
+    private static void putIds(Hasher hasher, Set<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            hasher.putInt(WORLD_ACCESSIBLE);
+            return;
+        }
+
+        hasher.putInt(ids.size());
+        for (final long id : PlatformObjectIds.of(ids).toArray()) {
+            hasher.putLong(id);
+        }
+    }
+}
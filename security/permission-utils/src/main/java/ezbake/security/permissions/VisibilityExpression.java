@@ -0,0 +1,331 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * An Accumulo-style visibility expression that has been parsed and compiled for repeated evaluation against {@link
+ * ezbake.security.permissions.AuthorizationSet}s.
+ * <p/>
+ * Expressions are parsed with Accumulo's {@link org.apache.accumulo.core.security.ColumnVisibility}, so the accepted
+ * syntax is exactly Accumulo's, and then converted to a small tree whose terms are dictionary IDs. Compiled
+ * expressions are immutable and are cached process-wide by expression string.
+ * <p/>
+ * Each compiled expression also has a canonical form in which nested operations of the same kind are flattened,
+ * redundant parentheses are dropped, and duplicate operands are removed and the rest sorted. Expressions that differ
+ * only in these ways, such as {@code A&B} and {@code (B&A)}, have the same canonical expression, which makes it a better
+ * cache key than the original string.
+ */
+public final class VisibilityExpression {
+    /**
+     * Maximum number of compiled expressions to keep.
+     */
+    private static final int CACHE_SIZE = 10000;
+
+    /**
+     * Compiled expressions keyed by expression string.
+     */
+    private static final Cache<String, VisibilityExpression> compiled =
+            CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    /**
+     * The expression this was compiled from.
+     */
+    private final String expression;
+
+    /**
+     * Root of the canonical compiled expression tree, null if the expression is empty.
+     */
+    private final Node root;
+
+    /**
+     * Construct a new VisibilityExpression.
+     *
+     * @param expression The expression string
+     * @param root The canonical compiled expression tree
+     */
+    private VisibilityExpression(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Get the compiled form of an expression, parsing it only if it is not already cached.
+     *
+     * @param expression Accumulo-style visibility expression
+     * @return The compiled expression
+     * @throws org.apache.accumulo.core.util.BadArgumentException if the expression is not valid
+     */
+    public static VisibilityExpression compile(String expression) {
+        VisibilityExpression result = compiled.getIfPresent(expression);
+        if (result == null) {
+            final ColumnVisibility visibility = new ColumnVisibility(expression);
+            final byte[] bytes = visibility.getExpression();
+            final Node root = bytes.length == 0 ? null : canonicalize(compile(bytes, visibility.getParseTree()));
+
+            result = new VisibilityExpression(expression, root);
+            compiled.put(expression, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Evaluate the expression.
+     *
+     * @param auths The authorizations to evaluate against
+     * @return true if the authorizations satisfy this expression
+     */
+    public boolean evaluate(AuthorizationSet auths) {
+        return root == null || root.evaluate(auths);
+    }
+
+    /**
+     * Whether this is the empty expression, which every set of authorizations satisfies.
+     *
+     * @return true if the expression is empty
+     */
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Get the expression string this was compiled from.
+     *
+     * @return The expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Get the canonical form of this expression. Equivalent expressions that differ only in operand order, grouping of
+     * the same operator, redundant parentheses, or repeated operands have the same canonical form. The canonical form
+     * is itself a valid expression that compiles to an equivalent expression.
+     *
+     * @return The canonical expression, empty if this expression is empty
+     */
+    public String getCanonicalExpression() {
+        return root == null ? "" : root.canonical;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Convert an Accumulo parse tree node to a compiled node.
+     *
+     * @param expression The expression bytes the parse tree points into
+     * @param node The parse tree node
+     * @return The compiled node
+     */
+    private static Node compile(byte[] expression, ColumnVisibility.Node node) {
+        switch (node.getType()) {
+            case TERM:
+                final String term = unescape(
+                        new String(expression, node.getTermStart(), node.getTermEnd() - node.getTermStart(),
+                                StandardCharsets.UTF_8));
+                return new Term(AuthorizationSet.intern(term), term);
+            case AND:
+            case OR:
+                final List<ColumnVisibility.Node> children = node.getChildren();
+                final Node[] compiledChildren = new Node[children.size()];
+                for (int i = 0; i < compiledChildren.length; i++) {
+                    compiledChildren[i] = compile(expression, children.get(i));
+                }
+                return node.getType() == ColumnVisibility.NodeType.AND
+                        ? new And(compiledChildren) : new Or(compiledChildren);
+            default:
+                throw new IllegalArgumentException("Unexpected visibility node type " + node.getType());
+        }
+    }
+
+    /**
+     * Build the canonical form of a compiled node. Children of the same operator are flattened into their parent,
+     * duplicate operands are removed, the remaining operands are sorted by their canonical text, and an operation left
+     * with a single operand is replaced by that operand.
+     *
+     * @param node The compiled node
+     * @return The canonical node
+     */
+    private static Node canonicalize(Node node) {
+        if (node instanceof Term) {
+            return node;
+        }
+
+        final boolean isAnd = node instanceof And;
+        final Map<String, Node> operands = new TreeMap<>();
+        for (final Node child : ((Operation) node).children) {
+            final Node canonicalChild = canonicalize(child);
+            if (canonicalChild instanceof Operation && canonicalChild instanceof And == isAnd) {
+                for (final Node grandchild : ((Operation) canonicalChild).children) {
+                    operands.put(grandchild.canonical, grandchild);
+                }
+            } else {
+                operands.put(canonicalChild.canonical, canonicalChild);
+            }
+        }
+
+        if (operands.size() == 1) {
+            return operands.values().iterator().next();
+        }
+
+        final Node[] children = operands.values().toArray(new Node[operands.size()]);
+        return isAnd ? new And(children) : new Or(children);
+    }
+
+    /**
+     * Remove the escaping from a quoted term. Unquoted terms can never contain a backslash.
+     *
+     * @param term The term as it appears in the expression
+     * @return The authorization the term refers to
+     */
+    private static String unescape(String term) {
+        if (term.indexOf('\\') < 0) {
+            return term;
+        }
+
+        final StringBuilder unescaped = new StringBuilder(term.length());
+        for (int i = 0; i < term.length(); i++) {
+            final char c = term.charAt(i);
+            if (c == '\\' && i + 1 < term.length()) {
+                unescaped.append(term.charAt(++i));
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * A node of a compiled expression.
+     */
+    private abstract static class Node {
+        /**
+         * Text of this node with minimal parentheses, which is the canonical text once the tree is canonicalized.
+         */
+        final String canonical;
+
+        Node(String canonical) {
+            this.canonical = canonical;
+        }
+
+        /**
+         * Evaluate this node.
+         *
+         * @param auths The authorizations to evaluate against
+         * @return true if the authorizations satisfy this node
+         */
+        abstract boolean evaluate(AuthorizationSet auths);
+    }
+
+    /**
+     * A single authorization term.
+     */
+    private static final class Term extends Node {
+        private final int id;
+        private final String auth;
+
+        private Term(int id, String auth) {
+            super(ColumnVisibility.quote(auth));
+            this.id = id;
+            this.auth = auth;
+        }
+
+        @Override
+        boolean evaluate(AuthorizationSet auths) {
+            return auths.contains(id, auth);
+        }
+    }
+
+    /**
+     * An operation on child nodes.
+     */
+    private abstract static class Operation extends Node {
+        final Node[] children;
+
+        Operation(Node[] children, char operator) {
+            super(join(children, operator));
+            this.children = children;
+        }
+
+        /**
+         * Join the canonical text of child nodes, parenthesizing children that are themselves operations.
+         */
+        private static String join(Node[] children, char operator) {
+            final StringBuilder joined = new StringBuilder();
+            for (final Node child : children) {
+                if (joined.length() > 0) {
+                    joined.append(operator);
+                }
+                if (child instanceof Operation) {
+                    joined.append('(').append(child.canonical).append(')');
+                } else {
+                    joined.append(child.canonical);
+                }
+            }
+            return joined.toString();
+        }
+    }
+
+    /**
+     * Conjunction of child nodes.
+     */
+    private static final class And extends Operation {
+        private And(Node[] children) {
+            super(children, '&');
+        }
+
+        @Override
+        boolean evaluate(AuthorizationSet auths) {
+            for (final Node child : children) {
+                if (!child.evaluate(auths)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Disjunction of child nodes.
+     */
+    private static final class Or extends Operation {
+        private Or(Node[] children) {
+            super(children, '|');
+        }
+
+        @Override
+        boolean evaluate(AuthorizationSet auths) {
+            for (final Node child : children) {
+                if (child.evaluate(auths)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import java.util.Set;
+
+import org.apache.accumulo.core.util.BadArgumentException;
+
+import com.google.common.collect.ImmutableSet;
+
+import ezbake.base.thrift.AdvancedMarkings;
+import ezbake.base.thrift.PlatformObjectVisibilities;
+import ezbake.base.thrift.Visibility;
+
+/**
+ * The parts of a {@link ezbake.base.thrift.Visibility} that permissions depend on, usable as a hash key. The hash is
+ * computed from the contents, since generated thrift objects do not provide a useful hash code. Expressions are keyed
+ * by their canonical form and empty platform object visibility sets are treated as absent, so visibilities that differ
+ * only in ways that never change permissions have equal keys.
+ * <p/>
+ * Keys made with {@link #of(ezbake.base.thrift.Visibility)} refer to the visibility's sets without copying them, which
+ * makes lookups cheap; use {@link #snapshot()} before storing a key anywhere that outlives the visibility.
+ */
+final class VisibilityKey {
+    /**
+     * Canonical formal visibility, empty if not part of this key.
+     */
+    private final String formal;
+
+    /**
+     * Canonical external community visibility.
+     */
+    private final String ecv;
+
+    /**
+     * Platform object read visibility.
+     */
+    private final Set<Long> read;
+
+    /**
+     * Platform object write visibility.
+     */
+    private final Set<Long> write;
+
+    /**
+     * Platform object manage visibility.
+     */
+    private final Set<Long> manage;
+
+    /**
+     * Platform object discover visibility.
+     */
+    private final Set<Long> discover;
+
+    /**
+     * Hash of the contents.
+     */
+    private final int hash;
+
+    /**
+     * Constructor to initialize this POJO's members.
+     */
+    private VisibilityKey(
+            String formal, String ecv, Set<Long> read, Set<Long> write, Set<Long> manage, Set<Long> discover) {
+        this.formal = formal;
+        this.ecv = ecv;
+        this.read = read;
+        this.write = write;
+        this.manage = manage;
+        this.discover = discover;
+
+        int result = formal.hashCode();
+        result = 31 * result + ecv.hashCode();
+        result = 31 * result + (read != null ? read.hashCode() : 0);
+        result = 31 * result + (write != null ? write.hashCode() : 0);
+        result = 31 * result + (manage != null ? manage.hashCode() : 0);
+        result = 31 * result + (discover != null ? discover.hashCode() : 0);
+        this.hash = result;
+    }
+
+    /**
+     * Get the key for a whole visibility.
+     *
+     * @param visibility The visibility
+     * @return A key referring to the visibility's contents
+     */
+    static VisibilityKey of(Visibility visibility) {
+        return of(visibility.getFormalVisibility(), visibility.getAdvancedMarkings());
+    }
+
+    /**
+     * Get the key for just the advanced markings of a visibility.
+     *
+     * @param markings The advanced markings, may be null
+     * @return A key referring to the markings' contents
+     */
+    static VisibilityKey ofMarkings(AdvancedMarkings markings) {
+        return of(null, markings);
+    }
+
+    /**
+     * Build a key.
+     *
+     * @param formal The formal visibility
+     * @param markings The advanced markings, may be null
+     * @return A key referring to the contents
+     */
+    private static VisibilityKey of(String formal, AdvancedMarkings markings) {
+        final PlatformObjectVisibilities pov = markings == null ? null : markings.getPlatformObjectVisibility();
+        return new VisibilityKey(
+                canonical(formal), canonical(markings == null ? null : markings.getExternalCommunityVisibility()),
+                pov == null ? null : nonEmpty(pov.getPlatformObjectReadVisibility()),
+                pov == null ? null : nonEmpty(pov.getPlatformObjectWriteVisibility()),
+                pov == null ? null : nonEmpty(pov.getPlatformObjectManageVisibility()),
+                pov == null ? null : nonEmpty(pov.getPlatformObjectDiscoverVisibility()));
+    }
+
+    /**
+     * Get the canonical form of an expression for use in a key.
+     *
+     * @param expression The expression, may be null
+     * @return The canonical expression, empty if {@code expression} is blank, or the expression itself if it is not
+     * valid so that the error is left to evaluation
+     */
+    private static String canonical(String expression) {
+        try {
+            return VisibilityCanonicalizer.canonicalizeExpression(expression);
+        } catch (final BadArgumentException e) {
+            return expression;
+        }
+    }
+
+    /**
+     * Treat an empty platform object visibility set, which is world-accessible, the same as an absent one.
+     *
+     * @param ids The set, may be null
+     * @return The set, or null if it is empty
+     */
+    private static Set<Long> nonEmpty(Set<Long> ids) {
+        return ids == null || ids.isEmpty() ? null : ids;
+    }
+
+    /**
+     * Get a copy of this key that does not refer to any mutable sets.
+     *
+     * @return An immutable key equal to this one
+     */
+    VisibilityKey snapshot() {
+        return new VisibilityKey(
+                formal, ecv, copy(read), copy(write), copy(manage), copy(discover));
+    }
+
+    /**
+     * Copy a possibly null set.
+     *
+     * @param set The set to copy
+     * @return An immutable copy, or null
+     */
+    private static Set<Long> copy(Set<Long> set) {
+        return set == null ? null : ImmutableSet.copyOf(set);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final VisibilityKey that = (VisibilityKey) o;
+
+        return hash == that.hash && formal.equals(that.formal) && ecv.equals(that.ecv) && equal(read, that.read)
+                && equal(write, that.write) && equal(manage, that.manage) && equal(discover, that.discover);
+    }
+
+    /**
+     * Null-safe equality.
+     */
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -17,7 +17,7 @@ package ezbake.security.permissions;
 import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
-
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -96,11 +96,21 @@ public class PermissionEvaluatorTest extends AbstractBenchmark {
             "A&B&(AUS|CAN|GBR|NZL|USA)", "A&B&USA", "C&(AUS|CAN|GBR|NZL|USA)", "C&USA", "C&D&(AUS|CAN|GBR|NZL|USA)",
             "C&D&USA", "C&D&(AUS|CAN|GBR|NZL|USA)", "E&D&USA", "E&D&F&(AUS|CAN|GBR|NZL|USA)", "E&D&F&USA");
 
+    /**
+     * Number of platform object authorizations held by a user in thousands of groups.
+     */
+    private static final int LARGE_NUM_GROUPS = 5000;
+
     /**
      * Authorizations to use when testing PermissionsEvaluator.
      */
     private static Authorizations auths;
 
+    /**
+     * Authorizations of a user in {@link #LARGE_NUM_GROUPS} groups.
+     */
+    private static Authorizations largeAuths;
+
     /**
      * Build different lists of visibilities for use in metrics.
      */
@@ -111,6 +121,13 @@ public class PermissionEvaluatorTest extends AbstractBenchmark {
         setupVisibility(SMALL_NUM_ADV_VARIATIONS, smallAdvVariations);
         setupVisibility(0, noAdvVariations);
         auths = getAuths();
+
+        final Set<Long> groups = Sets.newHashSet();
+        for (long i = 1; i <= LARGE_NUM_GROUPS; i++) {
+            groups.add(i * 2);
+        }
+        largeAuths = PermTestHelpers.createAuths(
+                Sets.newHashSet("USA", "D", "C"), Sets.newHashSet("USA", "D", "C"), groups);
     }
 
     /**
@@ -255,6 +272,39 @@ public class PermissionEvaluatorTest extends AbstractBenchmark {
         }
     }
 
+    /**
+     * Test one-off evaluation of a user in thousands of groups, as when each document is checked on its own. The
+     * authorizations must not be rebuilt for every document.
+     */
+    @Test
+    public void testLargeGroupsOneShotMetrics() {
+        for (final Visibility v : smallAdvVariations) {
+            PermissionUtils.getPermissions(largeAuths, v);
+        }
+    }
+
+    /**
+     * Test one-off evaluation of a user in thousands of groups against visibilities without advanced markings.
+     */
+    @Test
+    public void testLargeGroupsOneShotNoAdvancedMarkingsMetrics() {
+        for (final Visibility v : noAdvVariations) {
+            PermissionUtils.getPermissions(largeAuths, v);
+        }
+    }
+
+    /**
+     * Ensure that one-off evaluation agrees with evaluation against compiled authorizations.
+     */
+    @Test
+    public void testOneShotValuesExpected() {
+        final CompiledAuthorizations compiled = CompiledAuthorizations.of(largeAuths);
+        for (final Visibility v : smallAdvVariations.subList(0, 20000)) {
+            assertEquals(PermissionUtils.getPermissions(compiled, v, true, PermissionUtils.ALL_PERMS),
+                    PermissionUtils.getPermissions(largeAuths, v));
+        }
+    }
+
     /**
      * Ensure that output from the evaluator is the same as output from PermissionUtils.
      */
@@ -277,6 +327,58 @@ public class PermissionEvaluatorTest extends AbstractBenchmark {
         }
     }
 
+    /**
+     * Evaluators for different users with the same auths should agree with PermissionUtils when sharing a cache and
+     * when used from many threads at once.
+     */
+    @Test
+    public void testSharedEvaluatorConcurrent() throws InterruptedException {
+        final SharedPermissionEvaluator shared = new SharedPermissionEvaluator(100, 4);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < 8; i++) {
+            final PermissionEvaluator evaluator = new PermissionEvaluator(getAuths(), shared);
+            final Thread thread = new Thread(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (final Visibility v : highAdvVariations.subList(0, 20000)) {
+                                    assertEquals(
+                                            PermissionUtils.getPermissions(auths, v), evaluator.getPermissions(v));
+                                }
+                            } catch (final Throwable t) {
+                                failures.add(t);
+                            }
+                        }
+                    });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+    }
+
+    /**
+     * Changing a visibility after it has been evaluated should not affect cached decisions.
+     */
+    @Test
+    public void testSharedEvaluatorCopiesKeys() {
+        final SharedPermissionEvaluator shared = new SharedPermissionEvaluator();
+        final CompiledAuthorizations compiled = CompiledAuthorizations.of(auths);
+        final Visibility vis = new Visibility().setAdvancedMarkings(
+                new AdvancedMarkings().setPlatformObjectVisibility(createPlatformObjectVisibilities(1L)));
+
+        assertEquals(PermissionUtils.ALL_PERMS, shared.getPermissions(compiled, vis));
+        vis.getAdvancedMarkings().getPlatformObjectVisibility().getPlatformObjectReadVisibility().clear();
+        vis.getAdvancedMarkings().getPlatformObjectVisibility().getPlatformObjectReadVisibility().add(9L);
+        assertEquals(PermissionUtils.getPermissions(auths, vis), shared.getPermissions(compiled, vis));
+        assertEquals(compiled, CompiledAuthorizations.of(getAuths()));
+    }
+
     @Test
     public void testEmptyVisibilitiesStandardMetrics() {
         for (int i = 0; i < NUM_VISIBIILITY_OBJECTS; i++) {
@@ -26,10 +26,13 @@ import static ezbake.security.test.PermTestHelpers.createVisibility;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import ezbake.base.thrift.AdvancedMarkings;
@@ -281,4 +284,81 @@ public class PermissionUtilsTest {
 
         assertEquals("TS&AB&CD", PermissionUtils.getVisibilityString(visibility));
     }
+
+    @Test
+    public void testGetPermissionsBatch() {
+        final Authorizations auths = createAuths(
+                Sets.newHashSet("U", "C", "S", "TS", "USA"), Sets.newHashSet("Foo", "Bar"), Sets.newHashSet(56L));
+
+        final List<Visibility> visibilities = Lists.newArrayList();
+        for (int i = 0; i < 3000; i++) {
+            switch (i % 4) {
+                case 0:
+                    visibilities.add(createVisibility());
+                    break;
+                case 1:
+                    visibilities.add(new Visibility().setFormalVisibility("TS&(USA|GBR)&ID" + i));
+                    break;
+                case 2:
+                    visibilities.add(new Visibility().setFormalVisibility("U").setAdvancedMarkings(
+                            new AdvancedMarkings().setPlatformObjectVisibility(
+                                    new PlatformObjectVisibilities().setPlatformObjectReadVisibility(
+                                            Sets.newHashSet((long) i % 100)))));
+                    break;
+                default:
+                    visibilities.add(null);
+            }
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final List<Set<Permission>> serial = PermissionUtils.getPermissions(auths, visibilities);
+            final List<Set<Permission>> parallel =
+                    PermissionUtils.getPermissions(auths, visibilities, true, ALL_PERMS, pool);
+
+            assertEquals(visibilities.size(), serial.size());
+            for (int i = 0; i < visibilities.size(); i++) {
+                final Set<Permission> expected = PermissionUtils.getPermissions(auths, visibilities.get(i));
+                assertEquals(expected, serial.get(i));
+                assertEquals(expected, parallel.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testGenerateExpression_Canonical() {
+        final Visibility visibility = new Visibility().setFormalVisibility("TS&(CD&AB)").setAdvancedMarkings(
+                new AdvancedMarkings().setExternalCommunityVisibility("COM2&COM1"));
+
+        assertEquals("AB&CD&COM1&COM2&TS", PermissionUtils.getVisibilityString(visibility, true));
+        assertEquals("(TS&(CD&AB))&(COM2&COM1)", PermissionUtils.getVisibilityString(visibility, false));
+    }
+
+    @Test
+    public void testCanonicalVisibilitiesShareFingerprint() {
+        final Visibility visibility = new Visibility().setFormalVisibility("B&A").setAdvancedMarkings(
+                new AdvancedMarkings().setExternalCommunityVisibility("Y|X").setPlatformObjectVisibility(
+                        new PlatformObjectVisibilities().setPlatformObjectReadVisibility(Sets.newHashSet(9L, 3L))
+                                .setPlatformObjectWriteVisibility(Sets.<Long>newHashSet())));
+        final Visibility equivalent = new Visibility().setFormalVisibility("(A&B)").setAdvancedMarkings(
+                new AdvancedMarkings().setExternalCommunityVisibility("X|Y").setPlatformObjectVisibility(
+                        new PlatformObjectVisibilities().setPlatformObjectReadVisibility(Sets.newHashSet(3L, 9L))));
+
+        assertEquals(VisibilityCanonicalizer.fingerprint(visibility), VisibilityCanonicalizer.fingerprint(equivalent));
+        assertEquals(VisibilityKey.of(visibility), VisibilityKey.of(equivalent));
+        assertFalse(
+                VisibilityCanonicalizer.fingerprint(visibility) == VisibilityCanonicalizer.fingerprint(
+                        new Visibility().setFormalVisibility("A|B")));
+
+        final Visibility canonical = VisibilityCanonicalizer.canonicalize(visibility);
+        assertEquals("A&B", canonical.getFormalVisibility());
+        assertEquals("X|Y", canonical.getAdvancedMarkings().getExternalCommunityVisibility());
+        assertEquals(
+                Lists.newArrayList(3L, 9L), Lists.newArrayList(
+                        canonical.getAdvancedMarkings().getPlatformObjectVisibility()
+                                .getPlatformObjectReadVisibility()));
+        assertEquals("B&A", visibility.getFormalVisibility());
+    }
 }
@@ -0,0 +1,108 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import ezbake.base.thrift.AdvancedMarkings;
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.Permission;
+import ezbake.base.thrift.PlatformObjectVisibilities;
+import ezbake.base.thrift.Visibility;
+import ezbake.security.test.PermTestHelpers;
+
+/**
+ * Tests for {@link ezbake.security.permissions.PlatformObjectIds} and {@link
+ * ezbake.security.permissions.CompiledPlatformObjectVisibilities}.
+ */
+public class PlatformObjectIdsTest {
+    /**
+     * IDs should be sorted and de-duplicated.
+     */
+    @Test
+    public void testOf() {
+        final PlatformObjectIds ids = PlatformObjectIds.of(Lists.newArrayList(5L, -3L, 5L, 9L));
+        assertArrayEquals(new long[] {-3L, 5L, 9L}, ids.toArray());
+        assertTrue(ids.contains(5L));
+        assertFalse(ids.contains(4L));
+        assertTrue(PlatformObjectIds.of(null).isEmpty());
+        assertEquals(ids, PlatformObjectIds.of(Sets.newHashSet(9L, 5L, -3L)));
+    }
+
+    /**
+     * Intersection should agree with set intersection for merges and for searches of very different sizes.
+     */
+    @Test
+    public void testIntersects() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            final Set<Long> a = randomIds(random, 1 + random.nextInt(i % 2 == 0 ? 5 : 500));
+            final Set<Long> b = randomIds(random, 1 + random.nextInt(50));
+            final boolean expected = !Collections.disjoint(a, b);
+
+            assertEquals(expected, PlatformObjectIds.of(a).intersects(PlatformObjectIds.of(b)));
+            assertEquals(expected, PlatformObjectIds.of(b).intersects(PlatformObjectIds.of(a)));
+            assertEquals(expected, PlatformObjectIds.of(a).containsAny(b));
+        }
+
+        assertFalse(PlatformObjectIds.EMPTY.intersects(PlatformObjectIds.of(Sets.newHashSet(1L))));
+    }
+
+    /**
+     * Compiled platform object visibilities should give the same permissions as PermissionUtils.
+     */
+    @Test
+    public void testCompiledPermissions() {
+        final Authorizations auths = PermTestHelpers.createAuths(
+                null, null, Sets.newHashSet(1L, 2L, 3L));
+        final PlatformObjectVisibilities pov = new PlatformObjectVisibilities();
+        pov.setPlatformObjectReadVisibility(Sets.newHashSet(3L, 4L));
+        pov.setPlatformObjectWriteVisibility(Sets.newHashSet(4L));
+        pov.setPlatformObjectDiscoverVisibility(Sets.<Long>newHashSet());
+
+        final Set<Permission> expected = EnumSet.of(Permission.READ, Permission.DISCOVER, Permission.MANAGE_VISIBILITY);
+        final Visibility visibility = new Visibility().setAdvancedMarkings(
+                new AdvancedMarkings().setPlatformObjectVisibility(pov));
+        assertEquals(expected, PermissionUtils.getPermissions(auths, visibility));
+        assertEquals(
+                expected, PermissionUtils.getPermissions(
+                        CompiledAuthorizations.of(auths), visibility, true, PermissionUtils.ALL_PERMS));
+        assertEquals(
+                expected, PermissionUtils.getPermissions(
+                        CompiledAuthorizations.of(auths), CompiledPlatformObjectVisibilities.of(pov),
+                        PermissionUtils.ALL_PERMS));
+    }
+
+    private static Set<Long> randomIds(Random random, int size) {
+        final Set<Long> ids = Sets.newHashSet();
+        for (int i = 0; i < size; i++) {
+            ids.add((long) random.nextInt(2000));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,105 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.security.permissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.core.security.VisibilityEvaluator;
+import org.apache.accumulo.core.security.VisibilityParseException;
+import org.apache.accumulo.core.util.BadArgumentException;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class VisibilityExpressionTest {
+    private static final List<String> expressions = Lists.newArrayList(
+            "A", "B", "A&B", "A|B", "A&(B|C)", "(A|B)&(C|D)", "A&B&(AUS|CAN|GBR|NZL|USA)", "(A&B)|(C&D)",
+            "((A|Z)&(B|Y))|E", "\"quoted term\"&A", "\"esc\\\"aped\"|Z", "a.b:c/d-e_f");
+
+    private static final List<Set<String>> authSets = Lists.newArrayList(
+            Sets.newHashSet("A"), Sets.newHashSet("A", "B"), Sets.newHashSet("C", "D"), Sets.newHashSet("A", "USA"),
+            Sets.newHashSet("A", "B", "USA"), Sets.newHashSet("quoted term", "A"), Sets.newHashSet("esc\"aped"),
+            Sets.newHashSet("E"), Sets.newHashSet("a.b:c/d-e_f"), Sets.<String>newHashSet("Q"));
+
+    @Test
+    public void testMatchesAccumuloEvaluation() throws VisibilityParseException {
+        for (final Set<String> auths : authSets) {
+            final VisibilityEvaluator accumulo = new VisibilityEvaluator(
+                    new org.apache.accumulo.core.security.Authorizations(auths.toArray(new String[] {})));
+            final AuthorizationSet compiled = AuthorizationSet.of(auths);
+
+            for (final String expression : expressions) {
+                assertEquals(
+                        expression + " against " + auths, accumulo.evaluate(new ColumnVisibility(expression)),
+                        VisibilityExpression.compile(expression).evaluate(compiled));
+            }
+        }
+    }
+
+    @Test
+    public void testCanonicalExpression() throws VisibilityParseException {
+        for (final String expression : Lists.newArrayList("A&B", "B&A", "(B&A)", "A&B&A", "((A)&B)")) {
+            assertEquals(expression, "A&B", VisibilityExpression.compile(expression).getCanonicalExpression());
+        }
+
+        assertEquals("A&B&C", VisibilityExpression.compile("(C&A)&B").getCanonicalExpression());
+        assertEquals("A&B&C", VisibilityExpression.compile("A&((B&C)|(C&B))").getCanonicalExpression());
+        assertEquals("A|(B&C)", VisibilityExpression.compile("(C&B)|A").getCanonicalExpression());
+        assertEquals("\"quoted term\"&A", VisibilityExpression.compile("A&\"quoted term\"").getCanonicalExpression());
+        assertEquals("", VisibilityExpression.compile("").getCanonicalExpression());
+
+        // The canonical form must evaluate exactly like the original
+        for (final Set<String> auths : authSets) {
+            final AuthorizationSet compiled = AuthorizationSet.of(auths);
+            for (final String expression : expressions) {
+                final VisibilityExpression original = VisibilityExpression.compile(expression);
+                assertEquals(
+                        expression, original.evaluate(compiled),
+                        VisibilityExpression.compile(original.getCanonicalExpression()).evaluate(compiled));
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledExpressionsAreCached() {
+        assertSame(VisibilityExpression.compile("X&(Y|Z)"), VisibilityExpression.compile("X&(Y|Z)"));
+    }
+
+    @Test
+    public void testEmptyExpression() {
+        assertTrue(VisibilityExpression.compile("").isEmpty());
+        assertTrue(VisibilityExpression.compile("").evaluate(AuthorizationSet.EMPTY));
+    }
+
+    @Test
+    public void testEmptyAuths() {
+        assertFalse(VisibilityExpression.compile("A").evaluate(AuthorizationSet.of(null)));
+        assertFalse(PermissionUtils.validateVisibilityExpression(AuthorizationSet.EMPTY, "A"));
+        assertTrue(PermissionUtils.validateVisibilityExpression(AuthorizationSet.EMPTY, ""));
+    }
+
+    @Test(expected = BadArgumentException.class)
+    public void testInvalidExpression() {
+        VisibilityExpression.compile("A&|B");
+    }
+}
@@ -190,6 +190,27 @@ public class ThriftUtils {
         }
     }
 
+    /**
+     * Deserialize a thrift object from a region of a byte array, without copying the region
+     *
+     * @param type The type of object
+     * @param bytes The array containing the bytes of the object
+     * @param offset The offset of the object in the array
+     * @param length The length of the object in bytes
+     * @param <T> The type of object
+     * @return The object
+     */
+    public static <T extends TBase<?, ?>> T deserialize(Class<T> type, byte[] bytes, int offset, int length)
+            throws TException {
+        try {
+            final T object = type.newInstance();
+            object.read(new TBinaryProtocol(new TMemoryInputTransport(bytes, offset, length)));
+            return object;
+        } catch (final Exception ex) {
+            throw new TException(ex);
+        }
+    }
+
     /**
      * Deserialize a thrift object from a base64-encoded string.
      *
@@ -17,18 +17,16 @@ package ezbake.thrift.authentication;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
-import javax.naming.ldap.LdapName;
-
 /**
  * User: jhastings
  * Date: 2/7/14
  * Time: 2:39 PM
  */
 public class EzX509 {
-    private Optional<LdapName> peerDn;
+    private Optional<PeerIdentity> peerDn;
 
     public EzX509() {
-        peerDn = PeerSharedData.getPeerPrincipal();
+        peerDn = PeerSharedData.getPeerIdentity();
     }
 
     public boolean isValidPeer() {
@@ -47,6 +45,6 @@ public class EzX509 {
         if (!peerDn.isPresent()) {
             throw new ThriftPeerUnavailableException("Peer DN is not present");
         }
-        return X509Utils.getCn(peerDn.get());
+        return peerDn.get().getCn();
     }
 }
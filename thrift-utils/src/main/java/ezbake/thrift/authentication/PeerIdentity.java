@@ -0,0 +1,138 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.thrift.authentication;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.util.Set;
+
+/**
+ * Immutable view of the fields of an X509 distinguished name that are used to identify thrift peers.
+ *
+ * Parsed identities are cached by DN string, since the same few peers connect over and over. Looking up the fields of
+ * a cached identity does no parsing and no allocation.
+ */
+public final class PeerIdentity {
+    private static final Cache<String, PeerIdentity> parsed = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    private final String dn;
+    private final LdapName name;
+    private final String cn;
+    private final ImmutableSet<String> ous;
+    private final String o;
+    private final String c;
+
+    private PeerIdentity(String dn, LdapName name) {
+        this.dn = dn;
+        this.name = name;
+
+        String cn = null, o = null, c = null;
+        ImmutableSet.Builder<String> ous = ImmutableSet.builder();
+        for (Rdn rdn : name.getRdns()) {
+            String type = rdn.getType();
+            if (X509Utils.DnFields.CN.toString().equals(type)) {
+                cn = first(cn, rdn);
+            } else if (X509Utils.DnFields.OU.toString().equals(type)) {
+                ous.add(rdn.getValue().toString());
+            } else if (X509Utils.DnFields.O.toString().equals(type)) {
+                o = first(o, rdn);
+            } else if (X509Utils.DnFields.C.toString().equals(type)) {
+                c = first(c, rdn);
+            }
+        }
+        this.cn = (cn == null) ? "" : cn;
+        this.ous = ous.build();
+        this.o = (o == null) ? "" : o;
+        this.c = (c == null) ? "" : c;
+    }
+
+    private static String first(String current, Rdn rdn) {
+        return (current == null) ? rdn.getValue().toString() : current;
+    }
+
+    /**
+     * Get the identity for a DN string, parsing it only if it hasn't been seen recently
+     *
+     * @param dn the distinguished name
+     * @return the identity
+     * @throws InvalidNameException if the DN cannot be parsed
+     */
+    public static PeerIdentity fromDn(String dn) throws InvalidNameException {
+        Preconditions.checkNotNull(dn, "principal name must not be null");
+        PeerIdentity identity = parsed.getIfPresent(dn);
+        if (identity == null) {
+            identity = new PeerIdentity(dn, new LdapName(dn));
+            parsed.put(dn, identity);
+        }
+        return identity;
+    }
+
+    /**
+     * Get the identity for an already parsed name
+     *
+     * @param name the distinguished name
+     * @return the identity
+     */
+    public static PeerIdentity fromName(LdapName name) {
+        Preconditions.checkNotNull(name, "principal name must not be null");
+        String dn = name.toString();
+        PeerIdentity identity = parsed.getIfPresent(dn);
+        if (identity == null) {
+            identity = new PeerIdentity(dn, (LdapName) name.clone());
+            parsed.put(dn, identity);
+        }
+        return identity;
+    }
+
+    public String getDn() {
+        return dn;
+    }
+
+    /**
+     * @return a copy of the parsed name, since LdapName is mutable
+     */
+    public LdapName getName() {
+        return (LdapName) name.clone();
+    }
+
+    public String getCn() {
+        return cn;
+    }
+
+    public Set<String> getOUs() {
+        return ous;
+    }
+
+    public String getO() {
+        return o;
+    }
+
+    public String getC() {
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return dn;
+    }
+}
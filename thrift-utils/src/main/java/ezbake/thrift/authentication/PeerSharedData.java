@@ -35,9 +35,9 @@ public class PeerSharedData {
             return false;
         }
     };
-    private static ThreadLocal<Optional<LdapName>> peerPrincipal = new ThreadLocal<Optional<LdapName>>() {
+    private static ThreadLocal<Optional<PeerIdentity>> peerPrincipal = new ThreadLocal<Optional<PeerIdentity>>() {
         @Override
-        protected Optional<LdapName> initialValue() {
+        protected Optional<PeerIdentity> initialValue() {
             return Optional.absent();
         }
     };
@@ -61,18 +61,31 @@ public class PeerSharedData {
 
     public static void setPeerPrincipal(String dn) {
         try {
-            peerPrincipal.set(Optional.fromNullable(new LdapName(dn)));
+            peerPrincipal.set(Optional.of(PeerIdentity.fromDn(dn)));
         } catch (InvalidNameException e) {
             logger.warn("Unable to parse peer DN. PeerPrincipal will be unavailable");
         }
     }
 
     public static Optional<LdapName> getPeerPrincipal() {
+        Optional<PeerIdentity> identity = peerPrincipal.get();
+        if (identity.isPresent()) {
+            return Optional.of(identity.get().getName());
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Get the peer identity, with the DN fields already extracted
+     *
+     * @return the peer identity, if the peer was authenticated
+     */
+    public static Optional<PeerIdentity> getPeerIdentity() {
         return peerPrincipal.get();
     }
 
     public static void clearPeerPrincipal() {
-        peerPrincipal.set(Optional.<LdapName>absent());
+        peerPrincipal.set(Optional.<PeerIdentity>absent());
     }
 
 }
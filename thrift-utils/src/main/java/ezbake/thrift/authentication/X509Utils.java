@@ -14,15 +14,7 @@
 
 package ezbake.thrift.authentication;
 
-import com.google.common.base.Function;
-import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.FluentIterable;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Sets;
-
 import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
 import java.util.Set;
 
 /**
@@ -39,37 +31,21 @@ public class X509Utils {
     }
 
     public static String getCn(LdapName name) {
-        return Iterables.getFirst(getValueOfType(name, DnFields.CN), "");
+        return PeerIdentity.fromName(name).getCn();
     }
 
+    /**
+     * @return the OUs of the name, which is immutable
+     */
     public static Set<String> getOUs(LdapName name) {
-        return Sets.newHashSet(getValueOfType(name, DnFields.OU));
+        return PeerIdentity.fromName(name).getOUs();
     }
 
     public static String getO(LdapName name) {
-        return Iterables.getFirst(getValueOfType(name, DnFields.O), "");
+        return PeerIdentity.fromName(name).getO();
     }
 
     public static String getC(LdapName name) {
-        return Iterables.getFirst(getValueOfType(name, DnFields.C), "");
-    }
-
-    private static Iterable<String> getValueOfType(final LdapName name, final DnFields type) {
-        Preconditions.checkNotNull(name, "principal name must not be null");
-
-        Set<String> values = Sets.newHashSet(FluentIterable.from(name.getRdns()).filter(new Predicate<Rdn>() {
-            @Override
-            public boolean apply(Rdn rdn) {
-                return rdn.getType().equals(type.toString());
-            }
-        }).transform(new Function<Rdn, String>() {
-
-            @Override
-            public String apply(Rdn rdn) {
-                return rdn.getValue().toString();
-            }
-        }));
-
-        return values;
+        return PeerIdentity.fromName(name).getC();
     }
 }
@@ -15,14 +15,13 @@
 package ezbake.thrift.transport;
 
 import com.google.common.base.Optional;
+import ezbake.thrift.authentication.PeerIdentity;
 import ezbake.thrift.authentication.PeerSharedData;
-import ezbake.thrift.authentication.X509Utils;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.naming.ldap.LdapName;
 import java.util.Properties;
 
 /**
@@ -53,12 +52,12 @@ public class EzSecureClientTransport extends EzSecureTransport {
         super.open();
         // If using SSL, check the the CN of the peer against the target security id
         if (validationRequired() && targetSecurityId != null) {
-                Optional<LdapName> peerId = PeerSharedData.getPeerPrincipal();
+                Optional<PeerIdentity> peerId = PeerSharedData.getPeerIdentity();
                 if (!peerId.isPresent()) {
                     throw new TTransportException("No Peer SSL Certificate present, but peer authentication is " +
                             "required");
                 } else {
-                    String peerCn = X509Utils.getCn(peerId.get());
+                    String peerCn = peerId.get().getCn();
                     if (!targetSecurityId.equals(peerCn)) {
                         close();
                         throw new TTransportException("SSL Certificate of server does not match security ID of " +
@@ -84,7 +84,7 @@ public abstract class EzSecureTransport extends TTransport {
                         e);
             }
         }
-        log.debug("EzTransport SSL Peer CN is : {}", PeerSharedData.getPeerPrincipal().get());
+        log.debug("EzTransport SSL Peer CN is : {}", PeerSharedData.getPeerIdentity().orNull());
     }
 
     @Override
@@ -94,4 +94,15 @@ public class ThriftUtilsTest {
         assertEquals(10, newStruct.getMyInt());
         assertEquals("Hello", newStruct.getMyString());
     }
+
+    @Test
+    public void testDeserializeRegion() throws Exception {
+        final byte[] struct = ThriftUtils.serialize(new SampleStruct(10, "Hello"));
+        final byte[] buffer = new byte[struct.length + 7];
+        System.arraycopy(struct, 0, buffer, 3, struct.length);
+
+        final SampleStruct newStruct = ThriftUtils.deserialize(SampleStruct.class, buffer, 3, struct.length);
+        assertEquals(10, newStruct.getMyInt());
+        assertEquals("Hello", newStruct.getMyString());
+    }
 }
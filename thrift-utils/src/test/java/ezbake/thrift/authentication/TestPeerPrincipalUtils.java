@@ -79,4 +79,27 @@ public class TestPeerPrincipalUtils {
         Assert.assertNotNull(c);
         Assert.assertEquals("US", c);
     }
+
+    @Test
+    public void testPeerIdentity() throws InvalidNameException {
+        PeerIdentity identity = PeerIdentity.fromDn(dnMultiOU);
+        Assert.assertSame(identity, PeerIdentity.fromDn(dnMultiOU));
+        Assert.assertEquals("Last First", identity.getCn());
+        Assert.assertEquals(ImmutableSet.of("CSC", "People"), identity.getOUs());
+        Assert.assertEquals("U.S. Government", identity.getO());
+        Assert.assertEquals("US", identity.getC());
+    }
+
+    @Test
+    public void testPeerSharedData() {
+        PeerSharedData.setPeerPrincipal(dn);
+        try {
+            Assert.assertTrue(PeerSharedData.getPeerIdentity().isPresent());
+            Assert.assertEquals("Last First", PeerSharedData.getPeerIdentity().get().getCn());
+            Assert.assertEquals(dn, PeerSharedData.getPeerPrincipal().get().toString());
+        } finally {
+            PeerSharedData.cleanUp();
+        }
+        Assert.assertFalse(PeerSharedData.getPeerIdentity().isPresent());
+    }
 }